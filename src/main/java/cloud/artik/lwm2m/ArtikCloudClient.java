@@ -1,10 +1,13 @@
 package cloud.artik.lwm2m;
 
+import java.io.IOException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,17 +19,25 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.scandium.DTLSConnector;
 import org.eclipse.leshan.LwM2mId;
 import org.eclipse.leshan.client.californium.LeshanClient;
 import org.eclipse.leshan.client.californium.LeshanClientBuilder;
 import org.eclipse.leshan.client.object.Security;
 import org.eclipse.leshan.client.object.Server;
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mInstanceEnabler;
 import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
 import org.eclipse.leshan.client.resource.ObjectsInitializer;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.request.ReadRequest;
 import org.eclipse.leshan.util.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cloud.artik.lwm2m.BootstrapCache.CachedServer;
+import cloud.artik.lwm2m.enums.ConnectionEventType;
 import cloud.artik.lwm2m.enums.SupportedBinding;
 
 /**
@@ -57,11 +68,42 @@ public class ArtikCloudClient {
     protected String serverName = "coaps-api.artik.cloud";
     protected SSLContext sslContext = null;
     protected KeyConfig keyConfig = null;
+    protected List<String> additionalServers = new ArrayList<String>();
+    protected long slowServerThreshold = ServerFailover.DEFAULT_SLOW_THRESHOLD;
+    protected long serverProbeTimeout = ServerFailover.DEFAULT_PROBE_TIMEOUT;
+    protected String bootstrapServerUri = null;
+    protected BootstrapCache bootstrapCache = null;
+    protected boolean dtlsSessionResumption = true;
+    protected TransportConfig transportConfig = null;
+    protected TcpTransport tcpTransport = null;
+    protected boolean registrationWatchdog = true;
+    protected long watchdogResponseTimeout = RegistrationWatchdog.DEFAULT_RESPONSE_TIMEOUT;
+    protected long minLifetime = 0;
+    protected long maxLifetime = 0;
+    protected TelemetryBuffer telemetryBuffer = null;
 
     protected Device device = null;
     protected Location location = null;
     protected FirmwareUpdate updater = null;
 
+    private final ConnectionMonitor connectionMonitor = new ConnectionMonitor();
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+    private ServerFailover failover = null;
+    private RegistrationWatchdog watchdog = null;
+    private LifetimeTuner lifetimeTuner = null;
+    private RawPublicKeyTrust rawPublicKeyTrust = null;
+    private boolean closed = false;
+
+    // Caches the Security and Server instances written by the bootstrap server
+    private final ConnectionListener bootstrapRecorder = new ConnectionListener() {
+        @Override
+        public void onConnectionEvent(ConnectionEvent event) {
+            if (event.getType() == ConnectionEventType.BOOTSTRAP_SUCCESS && bootstrapCache != null) {
+                storeBootstrapConfiguration();
+            }
+        }
+    };
+
     /**
      * Initialize the LWM2M Client with the DeviceId and the DeviceToken.
      * This sets the shortServerID to a random Integer, the lifetime to DEFAULT_LIFETIME (300 seconds)
@@ -88,7 +130,7 @@ public class ArtikCloudClient {
      * @param deviceId
      * @param deviceToken
      * @param device
-     * @param keyConfig Set the key config to use device certificates
+     * @param keyConfig Set the key config to use device certificates or raw public keys
      */
     public ArtikCloudClient(String deviceId, String deviceToken, Device device, KeyConfig keyConfig) {
         this(deviceId, deviceToken, device, keyConfig, new Random().nextInt(Integer.MAX_VALUE),
@@ -104,7 +146,7 @@ public class ArtikCloudClient {
      * @param deviceId
      * @param deviceToken
      * @param device
-     * @param keyConfig         - Used to enable device certificates
+     * @param keyConfig         - Used to enable device certificates or raw public keys
      * @param shortServerID     - Used as link to associate server Object Instance (1-65535)
      * @param lifetime          - Specify the lifetime of the registration in seconds.
      * @param notifyWhenDisable - If true, the LWM2M Client stores “Notify” operations to the LWM2M Server
@@ -120,6 +162,8 @@ public class ArtikCloudClient {
         this.lifetime = lifetime;
         this.notifyWhenDisable = notifyWhenDisable;
         this.sslContext = getTLSContext();
+        this.connectionMonitor.addListener(connectionMetrics);
+        this.connectionMonitor.addListener(bootstrapRecorder);
     }
 
     /**
@@ -131,16 +175,7 @@ public class ArtikCloudClient {
                 throw new NullPointerException("Device is null");
             }
 
-            String coapURL;
-            if (device.getSupportedBinding() == SupportedBinding.TCP) {
-                if (sslContext == null) {
-                    coapURL = "coap+tcp://" + serverName + ":" + serverTCPPort;
-                } else {
-                    coapURL = "coaps+tcp://" + serverName + ":" + serverTLSPort;
-                }
-            } else {
-                coapURL = "coaps://" + serverName + ":" + serverUDPPort;
-            }
+            connectionMonitor.startProvisioning();
 
             // Initialize object list
             ObjectsInitializer initializer = new ObjectsInitializer();
@@ -148,67 +183,84 @@ public class ArtikCloudClient {
             // Create common object instances
             initializer.setInstancesForObject(LwM2mId.DEVICE, this.device);
 
-            initializer.setInstancesForObject(
-                    LwM2mId.SERVER,
-                    new Server(
-                            this.shortServerID,
-                            this.lifetime,
-                            device.getSupportedBinding().toBindingMode(),
-                            this.notifyWhenDisable));
-
-            if (device.getSupportedBinding() == SupportedBinding.TCP) {
-                if (sslContext == null) {
-                    initializer.setInstancesForObject(
-                            LwM2mId.SECURITY,
-                            Security.tcp(
-                                    coapURL,
-                                    this.shortServerID
-                            ));
+            Security security = null;
+            if (bootstrapServerUri != null) {
+                // The bootstrap server provides the Server and Security instances, unless they are cached
+                List<LwM2mInstanceEnabler> securities = new ArrayList<LwM2mInstanceEnabler>();
+                List<LwM2mInstanceEnabler> servers = new ArrayList<LwM2mInstanceEnabler>();
+                if (bootstrapCache != null) {
+                    for (CachedServer cached : bootstrapCache.load()) {
+                        securities.add(cached.getSecurity());
+                        servers.add(cached.getServer());
+                    }
+                }
+                // kept, to bootstrap again when the cached servers reject the registration
+                if (bootstrapServerUri.startsWith("coaps")) {
+                    securities.add(Security.pskBootstrap(bootstrapServerUri, deviceId.getBytes(),
+                            Hex.decodeHex(deviceToken.toCharArray())));
                 } else {
-                    initializer.setInstancesForObject(
-                            LwM2mId.SECURITY,
-                            Security.tls(
-                                    coapURL,
-                                    this.shortServerID
-                            ));
+                    securities.add(Security.noSecBootstap(bootstrapServerUri));
                 }
+                initializer.setInstancesForObject(LwM2mId.SECURITY,
+                        securities.toArray(new LwM2mInstanceEnabler[securities.size()]));
+                if (!servers.isEmpty()) {
+                    initializer.setInstancesForObject(LwM2mId.SERVER,
+                            servers.toArray(new LwM2mInstanceEnabler[servers.size()]));
+                }
+                LOGGER.info(servers.isEmpty() ? "Bootstrapping from " + bootstrapServerUri
+                        : "Registering with " + servers.size() + " cached server(s)");
             } else {
-                // PSK
-                if (keyConfig == null) {
-                    initializer.setInstancesForObject(
-                            LwM2mId.SECURITY,
-                            Security.psk(
-                                    coapURL,
-                                    this.shortServerID,
-                                    deviceId.getBytes(),
-                                    Hex.decodeHex(deviceToken.toCharArray())));
-                // Certificate
-                } else {
-                    try {
-                        X509Certificate clientCert = keyConfig.getClientCertificate();
-                        PrivateKey privateKey = keyConfig.getPrivateKey();
-                        X509Certificate serverCert = keyConfig.getServerCertificate();
-                        Security security = Security.certificate(coapURL, this.shortServerID,
-                                clientCert.getEncoded(), privateKey.getEncoded(), serverCert.getEncoded());
-                        initializer.setInstancesForObject(
-                                LwM2mId.SECURITY,
-                                security);
-                    } catch (CertificateEncodingException e) {
-                        throw new IllegalArgumentException("Certificate encoding error", e);
-                    }
+                List<String> serverUris = new ArrayList<String>();
+                serverUris.add(serverUri(serverName));
+                for (String server : additionalServers) {
+                    serverUris.add(serverUri(server));
                 }
-            }
+                failover = new ServerFailover(serverUris);
+                failover.setSlowThreshold(slowServerThreshold);
+                failover.setProbeTimeout(serverProbeTimeout);
+                connectionMonitor.addListener(failover);
 
-            List<LwM2mObjectEnabler> objectEnablers;
+                initializer.setInstancesForObject(
+                        LwM2mId.SERVER,
+                        new Server(
+                                this.shortServerID,
+                                this.lifetime,
+                                device.getSupportedBinding().toBindingMode(),
+                                this.notifyWhenDisable));
+
+                // A single Security instance for all the servers, its URI is rewritten on failover
+                security = createSecurity(serverUris.get(0));
+                initializer.setInstancesForObject(LwM2mId.SECURITY, security);
+            }
 
             if (this.updater != null) {
                 initializer.setInstancesForObject(LwM2mId.FIRMWARE, this.updater);
+            }
+            if (this.location != null) {
+                initializer.setInstancesForObject(LwM2mId.LOCATION, this.location);
+            }
 
+            List<LwM2mObjectEnabler> objectEnablers;
+
+            if (this.updater != null && this.location != null) {
+                objectEnablers = initializer.create(
+                        LwM2mId.SECURITY,
+                        LwM2mId.SERVER,
+                        LwM2mId.DEVICE,
+                        LwM2mId.FIRMWARE,
+                        LwM2mId.LOCATION);
+            } else if (this.updater != null) {
                 objectEnablers = initializer.create(
                         LwM2mId.SECURITY,
                         LwM2mId.SERVER,
                         LwM2mId.DEVICE,
                         LwM2mId.FIRMWARE);
+            } else if (this.location != null) {
+                objectEnablers = initializer.create(
+                        LwM2mId.SECURITY,
+                        LwM2mId.SERVER,
+                        LwM2mId.DEVICE,
+                        LwM2mId.LOCATION);
             } else {
                 objectEnablers = initializer.create(
                         LwM2mId.SECURITY,
@@ -227,15 +279,173 @@ public class ArtikCloudClient {
                 builder.setSSLContext(sslContext);
             }
 
-            client = builder.build();
+            if (transportConfig != null) {
+                client = transportConfig.build(builder);
+            } else {
+                // another client may have replaced the standard NetworkConfig for its build
+                synchronized (TransportConfig.STANDARD_LOCK) {
+                    client = builder.build();
+                }
+            }
 
-            // Start the client
-            client.start();
+            // Share the I/O threads of the TCP connections with the other clients of the transport
+            if (device.getSupportedBinding() == SupportedBinding.TCP && tcpTransport != null) {
+                for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+                    tcpTransport.install(endpoint, sslContext);
+                }
+            }
+
+            // Track the registration life-cycle on every binding
+            client.addObserver(connectionMonitor);
+            for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+                connectionMonitor.attach(endpoint);
+            }
+
+            DTLSConnector connector = null;
+            if (device.getSupportedBinding() != SupportedBinding.TCP) {
+                Endpoint secureEndpoint = client.getCoapServer().getEndpoint(client.getSecureAddress());
+                connector = ConnectionMonitor.dtlsConnectorOf(secureEndpoint);
+
+                // Raw public keys instead of certificate chains in the handshake
+                if (keyConfig != null && keyConfig.isRawPublicKey()) {
+                    if (connector == null) {
+                        throw new IllegalStateException("Raw Public Key mode needs the DTLS connector");
+                    }
+                    rawPublicKeyTrust = RawPublicKeyTrust.configure(secureEndpoint, connector, keyConfig);
+                }
+
+                // Resume the DTLS session when the NAT changed our address, rather than a full handshake
+                if (connector != null && dtlsSessionResumption) {
+                    secureEndpoint.addInterceptor(new DtlsSessionResumer(connector));
+                }
+            }
+
+            // Update, re-handshake then register again when the Registration Updates stall
+            if (registrationWatchdog) {
+                watchdog = new RegistrationWatchdog(connectionMonitor, lifetime);
+                watchdog.setResponseTimeout(watchdogResponseTimeout);
+                watchdog.attach(client, connector);
+                connectionMonitor.addListener(watchdog);
+            }
+
+            // Tune the lifetime to the NAT binding timeout
+            if (maxLifetime > 0) {
+                lifetimeTuner = new LifetimeTuner(lifetime, minLifetime, maxLifetime,
+                        device.getSupportedBinding() != SupportedBinding.TCP);
+                lifetimeTuner.attach(client);
+                for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+                    endpoint.addInterceptor(lifetimeTuner);
+                }
+            }
+
+            // Send the recorded samples in batches
+            if (telemetryBuffer != null) {
+                telemetryBuffer.attach(client);
+                connectionMonitor.addListener(telemetryBuffer);
+            }
+
+            // Composite read and observe over the objects of this library
+            CompositeResource composite = new CompositeResource();
+            for (LwM2mObjectEnabler enabler : objectEnablers) {
+                Resource resource;
+                switch (enabler.getId()) {
+                case LwM2mId.DEVICE:
+                    resource = this.device;
+                    break;
+                case LwM2mId.FIRMWARE:
+                    resource = this.updater;
+                    break;
+                case LwM2mId.LOCATION:
+                    resource = this.location;
+                    break;
+                default:
+                    continue;
+                }
+                composite.addObject(enabler.getObjectModel(), resource);
+                if (telemetryBuffer != null) {
+                    resource.setTelemetry(telemetryBuffer, "/" + enabler.getId() + "/0/");
+                }
+            }
+            client.getCoapServer().add(composite);
+
+            if (failover != null) {
+                // Measure the servers and register with the preferred one
+                failover.attach(client, security);
+                if (failover.getServers().size() > 1) {
+                    client.getCoapServer().start();
+                    failover.probeAll();
+                }
+                if (rawPublicKeyTrust != null) {
+                    // Check the server key before the Register, with the token, is sent
+                    client.getCoapServer().start();
+                    verifyServerKey(failover.getActive().getUri());
+                }
+                failover.activate(failover.getActive());
+            } else {
+                client.start();
+            }
         } else {
+            connectionMonitor.startProvisioning();
             client.start();
         }
     }
 
+    private void verifyServerKey(String serverUri) {
+        try {
+            if (!rawPublicKeyTrust.verify(serverUri, serverProbeTimeout)) {
+                LOGGER.warn("Server " + serverUri + " did not authenticate with its public key yet");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Security createSecurity(String coapURL) {
+        Security security;
+        if (device.getSupportedBinding() == SupportedBinding.TCP) {
+            if (keyConfig != null && keyConfig.isRawPublicKey()) {
+                throw new IllegalStateException("Raw public keys are only supported over DTLS");
+            }
+            if (sslContext == null) {
+                security = Security.tcp(
+                        coapURL,
+                        this.shortServerID
+                );
+            } else {
+                security = Security.tls(
+                        coapURL,
+                        this.shortServerID
+                );
+            }
+        } else {
+            // PSK
+            if (keyConfig == null) {
+                security = Security.psk(
+                        coapURL,
+                        this.shortServerID,
+                        deviceId.getBytes(),
+                        Hex.decodeHex(deviceToken.toCharArray()));
+            // Raw Public Key
+            } else if (keyConfig.isRawPublicKey()) {
+                security = Security.rpk(coapURL, this.shortServerID,
+                        keyConfig.getClientPublicKey().getEncoded(), keyConfig.getPrivateKey().getEncoded(),
+                        keyConfig.getServerPublicKey().getEncoded());
+            // Certificate
+            } else {
+                try {
+                    X509Certificate clientCert = keyConfig.getClientCertificate();
+                    PrivateKey privateKey = keyConfig.getPrivateKey();
+                    X509Certificate serverCert = keyConfig.getServerCertificate();
+                    security = Security.certificate(coapURL, this.shortServerID,
+                            clientCert.getEncoded(), privateKey.getEncoded(), serverCert.getEncoded());
+                } catch (CertificateEncodingException e) {
+                    throw new IllegalArgumentException("Certificate encoding error", e);
+                }
+            }
+        }
+        return security;
+    }
+
     public FirmwareUpdate getFirmwareUpdate() {
         return updater;
     }
@@ -244,14 +454,237 @@ public class ArtikCloudClient {
         this.updater = updater;
     }
 
+    public Location getLocation() {
+        return location;
+    }
+
+    /**
+     * Exposes the Location object (6). Must be set before start().
+     */
+    public void setLocation(Location location) {
+        this.location = location;
+    }
+
     public void setServerName(String serverName) {
         this.serverName = serverName;
     }
 
+    /**
+     * Adds a server to fail over to, after the one set with setServerName(). Either a host name, served on
+     * the ports of the binding, or a full URI such as coaps://host:5686. Must be called before start().
+     * <p>
+     * With several servers, the client probes them all at start and registers with the fastest reachable
+     * one. It fails over to the next fastest on a registration or update timeout, or when the server becomes
+     * much slower than the others.
+     */
+    public void addServer(String server) {
+        this.additionalServers.add(server);
+    }
+
+    /**
+     * Gets the Server and Security instances from a LWM2M Bootstrap Server instead of the configured
+     * servers, e.g. coaps://bootstrap.example.com:5684. The bootstrap session uses the device id and token
+     * as PSK credentials on coaps, no security on coap. Must be called before start().
+     */
+    public void setBootstrapServer(String bootstrapServerUri) {
+        this.bootstrapServerUri = bootstrapServerUri;
+    }
+
+    /**
+     * Caches the configuration written by the bootstrap server, so that the next starts register without
+     * bootstrapping. The client still bootstraps again if the cached servers reject the registration.
+     * Compare ConnectionMetrics.getColdProvisioningTime() and getWarmProvisioningTime().
+     */
+    public void setBootstrapCache(BootstrapCache bootstrapCache) {
+        this.bootstrapCache = bootstrapCache;
+    }
+
+    /**
+     * Whether a request retransmitted over DTLS resumes the session with an abbreviated handshake, so that
+     * a NAT rebinding of the device costs one round trip instead of a registration timeout and a full
+     * handshake. Enabled by default. Must be called before start().
+     */
+    public void setDtlsSessionResumption(boolean dtlsSessionResumption) {
+        this.dtlsSessionResumption = dtlsSessionResumption;
+    }
+
+    /**
+     * CoAP transport settings of the UDP binding, see the presets of TransportConfig. Californium defaults
+     * apply if not set. Must be called before start().
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+
+    /**
+     * Event loop shared by the connections of the TCP binding, instead of a thread per client. The transport
+     * is not shut down by close(). Must be called before start().
+     */
+    public void setTcpTransport(TcpTransport tcpTransport) {
+        this.tcpTransport = tcpTransport;
+    }
+
+    /**
+     * Whether a watchdog keeps the registration alive when the Registration Updates stall, e.g. behind a NAT
+     * which dropped the binding of the device: it sends an update of its own, then over DTLS an update after
+     * a new handshake, then registers again. ConnectionMetrics counts the WATCHDOG_* events of each step.
+     * Enabled by default. Must be called before start().
+     */
+    public void setRegistrationWatchdog(boolean registrationWatchdog) {
+        this.registrationWatchdog = registrationWatchdog;
+    }
+
+    /**
+     * Time to wait for the response to each step of the registration watchdog, and after the scheduled
+     * Registration Update before the first step. Defaults to 5 seconds.
+     */
+    public void setWatchdogResponseTimeout(long millis) {
+        this.watchdogResponseTimeout = millis;
+    }
+
+    /**
+     * Tunes the lifetime, within the given bounds in seconds, to the longest one keeping the device reachable
+     * behind its NAT: the lifetime given to the constructor is the starting point. The client measures the
+     * idle time before the requests of the server, and over DTLS before each update, to learn when the NAT
+     * binding times out. A shorter lifetime only brings the updates forward. A longer one needs a new
+     * registration, which drops the observations of the server: notifications stop until the server observes
+     * again. The client therefore lengthens the lifetime once the search converged or reached the upper bound,
+     * and otherwise at most once an hour. Must be called before start().
+     */
+    public void setAdaptiveLifetime(long minLifetime, long maxLifetime) {
+        if (minLifetime < 1 || maxLifetime < minLifetime) {
+            throw new IllegalArgumentException("Invalid lifetime bounds " + minLifetime + "-" + maxLifetime);
+        }
+        this.minLifetime = minLifetime;
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * The registration lifetime in seconds, as tuned when the adaptive lifetime is enabled.
+     */
+    public long getLifetime() {
+        return lifetimeTuner == null ? lifetime : lifetimeTuner.getLifetime();
+    }
+
+    /**
+     * Estimated NAT binding timeout in milliseconds with the adaptive lifetime: the longest idle time after
+     * which the device was still reachable. 0 while unknown.
+     */
+    public long getNatBindingTimeout() {
+        return lifetimeTuner == null ? 0 : lifetimeTuner.getBindingTimeout();
+    }
+
+    /**
+     * Buffer sending the values recorded with record() on the Device, Location and Firmware Update objects,
+     * in batches with the LwM2M Send operation. Without buffer, recorded values are notified to the
+     * observers one by one. Must be called before start().
+     */
+    public void setTelemetryBuffer(TelemetryBuffer telemetryBuffer) {
+        this.telemetryBuffer = telemetryBuffer;
+    }
+
+    /**
+     * Latency above which a register or update is slow: the client then moves to another server if one
+     * answers at least twice as fast. Defaults to 5 seconds.
+     */
+    public void setSlowServerThreshold(long millis) {
+        this.slowServerThreshold = millis;
+    }
+
+    /**
+     * Time to wait for each request of a server probe. Defaults to 2 seconds.
+     */
+    public void setServerProbeTimeout(long millis) {
+        this.serverProbeTimeout = millis;
+    }
+
+    /**
+     * Returns the latency and health of the configured servers, in the configured order, once started. Empty
+     * with a bootstrap server, which provides the servers itself.
+     */
+    public List<ServerStatus> getServers() {
+        if (failover == null) {
+            return Collections.emptyList();
+        }
+        return failover.getServers();
+    }
+
+    /**
+     * Returns the server the client registers with, or null before start() and with a bootstrap server.
+     */
+    public ServerStatus getActiveServer() {
+        return failover == null ? null : failover.getActive();
+    }
+
+    private void storeBootstrapConfiguration() {
+        LwM2mObject securities = null;
+        LwM2mObject servers = null;
+        for (LwM2mObjectEnabler enabler : client.getObjectEnablers()) {
+            if (enabler.getId() == LwM2mId.SECURITY) {
+                securities = (LwM2mObject) enabler.read(ServerIdentity.SYSTEM, new ReadRequest(LwM2mId.SECURITY))
+                        .getContent();
+            } else if (enabler.getId() == LwM2mId.SERVER) {
+                servers = (LwM2mObject) enabler.read(ServerIdentity.SYSTEM, new ReadRequest(LwM2mId.SERVER))
+                        .getContent();
+            }
+        }
+        if (securities == null || servers == null) {
+            return;
+        }
+        try {
+            int count = bootstrapCache.store(securities, servers);
+            LOGGER.info("Cached " + count + " bootstrapped server(s) in " + bootstrapCache.getFile());
+        } catch (IOException e) {
+            LOGGER.error("Cannot cache the bootstrap configuration", e);
+        }
+    }
+
+    private String serverUri(String server) {
+        if (server.contains("://")) {
+            return server;
+        }
+        if (device.getSupportedBinding() == SupportedBinding.TCP) {
+            if (keyConfig != null && keyConfig.isRawPublicKey()) {
+                throw new IllegalStateException("Raw public keys are only supported over DTLS");
+            }
+            if (sslContext == null) {
+                return "coap+tcp://" + server + ":" + serverTCPPort;
+            } else {
+                return "coaps+tcp://" + server + ":" + serverTLSPort;
+            }
+        }
+        return "coaps://" + server + ":" + serverUDPPort;
+    }
+
     public void close() {
+        close(true);
+    }
+
+    /**
+     * Destroys the client, after de-registering from the server if deregister is true. Closing a client
+     * already closed has no effect. To close many clients at once, see FleetShutdown.
+     */
+    public synchronized void close(boolean deregister) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (failover != null) {
+            failover.shutdown();
+        }
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
+        if (lifetimeTuner != null) {
+            lifetimeTuner.shutdown();
+        }
+        if (telemetryBuffer != null) {
+            // the last samples, before de-registering
+            telemetryBuffer.close(deregister);
+        }
         if (client != null) {
             try {
-                client.destroy(true);
+                client.destroy(deregister);
             } catch (NullPointerException npe) {
                 if (device.getSupportedBinding() != SupportedBinding.TCP) {
                     throw npe;
@@ -261,6 +694,10 @@ public class ArtikCloudClient {
     }
 
     public void stop(boolean deregister) {
+        if (watchdog != null) {
+            // until the next registration
+            watchdog.cancel();
+        }
         if (client != null)
             client.stop(deregister);
     }
@@ -272,10 +709,34 @@ public class ArtikCloudClient {
         return null;
     }
 
+    /**
+     * Registers a listener notified of handshake, register, update and de-register events,
+     * including timeouts and failures.
+     * 
+     * @param listener
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionMonitor.addListener(listener);
+    }
+
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionMonitor.removeListener(listener);
+    }
+
+    /**
+     * Returns the registration life-cycle counters, durations and last failure of this client.
+     */
+    public ConnectionMetrics getConnectionMetrics() {
+        return connectionMetrics;
+    }
+
     private SSLContext getTLSContext() {
         SSLContext sslContext = null;
         
-        if (keyConfig == null) {
+        if (keyConfig != null && keyConfig.isRawPublicKey()) {
+            // TLS has no Raw Public Key mode, start() rejects the TCP binding
+            return null;
+        } else if (keyConfig == null) {
             // Install the all-trusting trust manager
             try {
                 sslContext = SSLContext.getInstance("TLS");
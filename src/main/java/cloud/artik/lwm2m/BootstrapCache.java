@@ -0,0 +1,226 @@
+package cloud.artik.lwm2m;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.client.object.Security;
+import org.eclipse.leshan.client.object.Server;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.util.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Security and Server instances written by the LWM2M Bootstrap Server in a local file, so that
+ * the following starts register directly, without the bootstrap round trips.
+ * <p>
+ * The file is a properties file holding the server accounts (URI, security mode, keys, short server id,
+ * lifetime and binding); the bootstrap server account itself is not cached. It holds the credentials of the
+ * device, so it is only readable and writable by its owner. It is written to a temporary file and renamed,
+ * so a crash leaves either the previous or the new configuration.
+ */
+public class BootstrapCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BootstrapCache.class);
+
+    private static final int SRV_NOTIFY_WHEN_DISABLE = 6;
+
+    private static final String KEY_SERVERS = "servers";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_SECURITY_MODE = "securityMode";
+    private static final String KEY_IDENTITY = "identity";
+    private static final String KEY_SERVER_PUBLIC_KEY = "serverPublicKey";
+    private static final String KEY_SECRET_KEY = "secretKey";
+    private static final String KEY_SHORT_SERVER_ID = "shortServerId";
+    private static final String KEY_LIFETIME = "lifetime";
+    private static final String KEY_BINDING = "binding";
+    private static final String KEY_NOTIFY_WHEN_DISABLE = "notifyWhenDisable";
+
+    private final File file;
+
+    /**
+     * A server account, as written by the bootstrap server.
+     */
+    public static class CachedServer {
+        private final Security security;
+        private final Server server;
+
+        CachedServer(Security security, Server server) {
+            this.security = security;
+            this.server = server;
+        }
+
+        public Security getSecurity() {
+            return security;
+        }
+
+        public Server getServer() {
+            return server;
+        }
+    }
+
+    public BootstrapCache(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stores the server accounts of the Security and Server objects, replacing the cached ones.
+     *
+     * @return the number of server accounts stored
+     */
+    public synchronized int store(LwM2mObject securities, LwM2mObject servers) throws IOException {
+        Properties properties = new Properties();
+        int count = 0;
+        for (LwM2mObjectInstance security : securities.getInstances().values()) {
+            if (Boolean.TRUE.equals(value(security, LwM2mId.SEC_BOOTSTRAP))) {
+                continue;
+            }
+            Object shortServerId = value(security, LwM2mId.SEC_SERVER_ID);
+            LwM2mObjectInstance server = null;
+            for (LwM2mObjectInstance candidate : servers.getInstances().values()) {
+                if (shortServerId != null && shortServerId.equals(value(candidate, LwM2mId.SRV_SERVER_ID))) {
+                    server = candidate;
+                    break;
+                }
+            }
+            if (server == null) {
+                LOGGER.warn("No Server instance for the Security instance " + security.getId());
+                continue;
+            }
+            String prefix = "server." + count + ".";
+            properties.setProperty(prefix + KEY_URI, (String) value(security, LwM2mId.SEC_SERVER_URI));
+            properties.setProperty(prefix + KEY_SECURITY_MODE,
+                    String.valueOf(value(security, LwM2mId.SEC_SECURITY_MODE)));
+            properties.setProperty(prefix + KEY_IDENTITY, hex(value(security, LwM2mId.SEC_PUBKEY_IDENTITY)));
+            properties.setProperty(prefix + KEY_SERVER_PUBLIC_KEY, hex(value(security, LwM2mId.SEC_SERVER_PUBKEY)));
+            properties.setProperty(prefix + KEY_SECRET_KEY, hex(value(security, LwM2mId.SEC_SECRET_KEY)));
+            properties.setProperty(prefix + KEY_SHORT_SERVER_ID, String.valueOf(shortServerId));
+            properties.setProperty(prefix + KEY_LIFETIME, String.valueOf(value(server, LwM2mId.SRV_LIFETIME)));
+            properties.setProperty(prefix + KEY_BINDING, String.valueOf(value(server, LwM2mId.SRV_BINDING)));
+            Object notifyWhenDisable = value(server, SRV_NOTIFY_WHEN_DISABLE);
+            properties.setProperty(prefix + KEY_NOTIFY_WHEN_DISABLE,
+                    String.valueOf(notifyWhenDisable == null || Boolean.TRUE.equals(notifyWhenDisable)));
+            count++;
+        }
+        properties.setProperty(KEY_SERVERS, String.valueOf(count));
+        write(properties);
+        return count;
+    }
+
+    /**
+     * Loads the cached server accounts.
+     *
+     * @return the accounts, empty if nothing is cached or the cache cannot be read
+     */
+    public synchronized List<CachedServer> load() {
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+        try {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            int count = Integer.parseInt(properties.getProperty(KEY_SERVERS, "0"));
+            List<CachedServer> cached = new ArrayList<CachedServer>(count);
+            for (int i = 0; i < count; i++) {
+                String prefix = "server." + i + ".";
+                int shortServerId = Integer.parseInt(required(properties, prefix + KEY_SHORT_SERVER_ID));
+                Security security = new Security(
+                        required(properties, prefix + KEY_URI),
+                        false,
+                        Integer.parseInt(required(properties, prefix + KEY_SECURITY_MODE)),
+                        Hex.decodeHex(required(properties, prefix + KEY_IDENTITY).toCharArray()),
+                        Hex.decodeHex(required(properties, prefix + KEY_SERVER_PUBLIC_KEY).toCharArray()),
+                        Hex.decodeHex(required(properties, prefix + KEY_SECRET_KEY).toCharArray()),
+                        shortServerId);
+                Server server = new Server(
+                        shortServerId,
+                        Long.parseLong(required(properties, prefix + KEY_LIFETIME)),
+                        BindingMode.valueOf(required(properties, prefix + KEY_BINDING)),
+                        Boolean.parseBoolean(properties.getProperty(prefix + KEY_NOTIFY_WHEN_DISABLE, "true")));
+                cached.add(new CachedServer(security, server));
+            }
+            return cached;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Ignoring invalid bootstrap cache " + file + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Removes the cached accounts, so that the next start bootstraps again.
+     */
+    public synchronized void clear() {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot remove bootstrap cache " + file);
+        }
+    }
+
+    private void write(Properties properties) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        properties.store(content, "LWM2M server accounts written by the bootstrap server");
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            // owner only, before writing the keys
+            tmp.setReadable(false, false);
+            tmp.setWritable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(true, true);
+            content.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Object value(LwM2mObjectInstance instance, int resourceId) {
+        LwM2mResource resource = instance.getResource(resourceId);
+        return resource == null ? null : resource.getValue();
+    }
+
+    private static String hex(Object value) {
+        return value instanceof byte[] ? Hex.encodeHexString((byte[]) value) : "";
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key);
+        }
+        return value;
+    }
+}
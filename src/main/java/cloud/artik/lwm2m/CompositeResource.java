@@ -0,0 +1,336 @@
+package cloud.artik.lwm2m;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.observe.ObserveRelationFilter;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.leshan.client.californium.impl.ResourceUtil;
+import org.eclipse.leshan.client.resource.ResourceChangedListener;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.WriteResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.senml.SenMLCbor;
+import cloud.artik.lwm2m.senml.SenMLJson;
+import cloud.artik.lwm2m.senml.SenMLPack;
+import cloud.artik.lwm2m.senml.SenMLRecord;
+
+/**
+ * Composite read and observe of the Device, Location and Firmware Update objects: one GET on /composite
+ * returns the values of several paths, e.g. <code>GET /composite?/3/0/9&amp;/3/0/7&amp;/6/0</code>, as SenML
+ * JSON, or SenML CBOR when the server accepts it. Paths may also be given as <code>p=/3/0/9</code>. With the
+ * Observe option, a notification with all the values is sent whenever one of them changes, in the format
+ * negotiated by the request.
+ * <p>
+ * A POST of a SenML CBOR pack writes the values of several resources.
+ * <p>
+ * The values come from one consistent snapshot across the objects: they are read again if a write happened
+ * meanwhile. Each object has a single instance, 0.
+ */
+class CompositeResource extends CoapResource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompositeResource.class);
+
+    public final static String NAME = "composite";
+
+    /**
+     * Maximum number of reads racing writes before the last one is answered.
+     */
+    final static int MAX_ATTEMPTS = 8;
+
+    private final Map<Integer, Resource> objects = new TreeMap<Integer, Resource>();
+    private final Map<Integer, ObjectModel> models = new HashMap<Integer, ObjectModel>();
+
+    CompositeResource() {
+        super(NAME);
+        setObservable(true);
+        getAttributes().setObservable();
+    }
+
+    /**
+     * Makes the instance of an object available to composite operations.
+     */
+    void addObject(ObjectModel model, Resource instance) {
+        final int objectId = model.id;
+        objects.put(objectId, instance);
+        models.put(objectId, model);
+        instance.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                changed(new ChangedFilter(objectId, resourceIds));
+            }
+        });
+    }
+
+    @Override
+    public void handleGET(CoapExchange exchange) {
+        List<LwM2mPath> paths;
+        try {
+            paths = parsePaths(exchange.getRequestOptions().getUriQuery());
+        } catch (IllegalArgumentException e) {
+            exchange.respond(ResponseCode.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (paths.isEmpty()) {
+            exchange.respond(ResponseCode.BAD_REQUEST, "No path");
+            return;
+        }
+        int format = SenMLJson.CONTENT_FORMAT;
+        if (exchange.getRequestOptions().hasAccept()) {
+            format = exchange.getRequestOptions().getAccept();
+            if (format != SenMLJson.CONTENT_FORMAT && format != SenMLCbor.CONTENT_FORMAT) {
+                exchange.respond(ResponseCode.NOT_ACCEPTABLE);
+                return;
+            }
+        }
+
+        SenMLPack pack = read(paths);
+        if (pack.isEmpty()) {
+            exchange.respond(ResponseCode.NOT_FOUND);
+        } else if (format == SenMLCbor.CONTENT_FORMAT) {
+            exchange.respond(ResponseCode.CONTENT, SenMLCbor.encode(pack), SenMLCbor.CONTENT_FORMAT);
+        } else {
+            exchange.respond(ResponseCode.CONTENT, SenMLJson.encode(pack), SenMLJson.CONTENT_FORMAT);
+        }
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+        if (exchange.getRequestOptions().getContentFormat() != SenMLCbor.CONTENT_FORMAT) {
+            exchange.respond(ResponseCode.UNSUPPORTED_CONTENT_FORMAT);
+            return;
+        }
+        List<SenMLRecord> records;
+        try {
+            records = SenMLCbor.decode(exchange.getRequestPayload());
+        } catch (IllegalArgumentException e) {
+            exchange.respond(ResponseCode.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        WriteResponse response = write(records);
+        if (response.isSuccess()) {
+            exchange.respond(ResponseCode.CHANGED);
+        } else {
+            exchange.respond(ResourceUtil.fromLwM2mCode(response.getCode()), response.getErrorMessage());
+        }
+    }
+
+    /**
+     * Writes the values of decoded records, in order. Stops at the first failure.
+     */
+    WriteResponse write(List<SenMLRecord> records) {
+        for (SenMLRecord record : records) {
+            LwM2mPath path;
+            try {
+                path = new LwM2mPath(record.getBaseName() + record.getName());
+            } catch (IllegalArgumentException e) {
+                return WriteResponse.badRequest(e.getMessage());
+            }
+            Resource instance = objects.get(path.getObjectId());
+            if (instance == null || !path.isResource() || path.getObjectInstanceId() != 0) {
+                return WriteResponse.notFound();
+            }
+            ResourceModel model = models.get(path.getObjectId()).resources.get(path.getResourceId());
+            if (model == null) {
+                return WriteResponse.notFound();
+            }
+            if (!model.operations.isWritable()) {
+                return WriteResponse.methodNotAllowed();
+            }
+            Object value = toModelType(record, model.type);
+            if (value == null) {
+                return WriteResponse.badRequest("Invalid value for " + path + ": " + record.getValue());
+            }
+            WriteResponse response = instance.write(model.id,
+                    LwM2mSingleResource.newResource(model.id, value, model.type));
+            if (!response.isSuccess()) {
+                return response;
+            }
+        }
+        return WriteResponse.success();
+    }
+
+    private static Object toModelType(SenMLRecord record, ResourceModel.Type type) {
+        Object value = record.getValue();
+        switch (type) {
+        case INTEGER:
+            return value instanceof Long ? value : null;
+        case FLOAT:
+            return value instanceof Number ? ((Number) value).doubleValue() : null;
+        case TIME:
+            return value instanceof Number ? new Date(Math.round(((Number) value).doubleValue() * 1000)) : null;
+        case STRING:
+            return value instanceof String ? value : null;
+        case BOOLEAN:
+            return value instanceof Boolean ? value : null;
+        case OPAQUE:
+            return value instanceof byte[] ? value : null;
+        default:
+            return null;
+        }
+    }
+
+    static List<LwM2mPath> parsePaths(List<String> queries) {
+        List<LwM2mPath> paths = new ArrayList<LwM2mPath>(queries.size());
+        for (String query : queries) {
+            if (query.startsWith("p=")) {
+                query = query.substring(2);
+            }
+            if (!query.startsWith("/")) {
+                // other parameters, e.g. observe attributes
+                continue;
+            }
+            LwM2mPath path = new LwM2mPath(query);
+            if (path.isRoot()) {
+                throw new IllegalArgumentException("Invalid path: " + query);
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the values of the paths from a consistent snapshot. Unknown paths are skipped.
+     */
+    SenMLPack read(Collection<LwM2mPath> paths) {
+        List<Resource> involved = new ArrayList<Resource>();
+        for (LwM2mPath path : paths) {
+            Resource instance = objects.get(path.getObjectId());
+            if (instance != null && !involved.contains(instance)) {
+                involved.add(instance);
+            }
+        }
+        long[] versions = new long[involved.size()];
+
+        SenMLPack pack = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            boolean stable = true;
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = involved.get(i).stableVersion();
+                stable &= versions[i] >= 0;
+            }
+            if (!stable) {
+                Thread.yield();
+                continue;
+            }
+
+            pack = new SenMLPack();
+            for (LwM2mPath path : paths) {
+                readPath(path, pack);
+            }
+
+            boolean consistent = true;
+            for (int i = 0; i < versions.length; i++) {
+                consistent &= involved.get(i).isVersion(versions[i]);
+            }
+            if (consistent) {
+                return pack;
+            }
+        }
+
+        LOGGER.warn("Composite read of " + paths + " raced writes " + MAX_ATTEMPTS + " times");
+        if (pack == null) {
+            pack = new SenMLPack();
+            for (LwM2mPath path : paths) {
+                readPath(path, pack);
+            }
+        }
+        return pack;
+    }
+
+    private void readPath(LwM2mPath path, SenMLPack pack) {
+        Resource instance = objects.get(path.getObjectId());
+        if (instance == null || (path.getObjectInstanceId() != null && path.getObjectInstanceId() != 0)) {
+            return;
+        }
+        String baseName = "/" + path.getObjectId() + "/0/";
+        if (path.getResourceId() == null) {
+            for (ResourceModel resourceModel : new TreeMap<Integer, ResourceModel>(
+                    models.get(path.getObjectId()).resources).values()) {
+                if (resourceModel.operations.isReadable()) {
+                    LwM2mResource value = readResource(instance, resourceModel.id);
+                    if (value != null) {
+                        pack.add(baseName, value);
+                    }
+                }
+            }
+            return;
+        }
+
+        LwM2mResource value = readResource(instance, path.getResourceId());
+        if (value == null) {
+            return;
+        }
+        if (path.getResourceInstanceId() == null) {
+            pack.add(baseName, value);
+        } else if (value.isMultiInstances() && value.getValues().containsKey(path.getResourceInstanceId())) {
+            pack.add(baseName, path.getResourceId() + "/" + path.getResourceInstanceId(), value.getType(),
+                    value.getValues().get(path.getResourceInstanceId()));
+        }
+    }
+
+    private LwM2mResource readResource(Resource instance, int resourceId) {
+        ReadResponse response;
+        try {
+            response = instance.read(resourceId);
+        } catch (RuntimeException e) {
+            // the objects index their enums with the resource id
+            return null;
+        }
+        if (response.isSuccess() && response.getContent() instanceof LwM2mResource) {
+            return (LwM2mResource) response.getContent();
+        }
+        return null;
+    }
+
+    /**
+     * Selects the observe relations including one of the changed resources.
+     */
+    private static class ChangedFilter implements ObserveRelationFilter {
+        private final int objectId;
+        private final int[] resourceIds;
+
+        ChangedFilter(int objectId, int[] resourceIds) {
+            this.objectId = objectId;
+            this.resourceIds = resourceIds;
+        }
+
+        @Override
+        public boolean accept(ObserveRelation relation) {
+            List<LwM2mPath> paths;
+            try {
+                paths = parsePaths(relation.getExchange().getRequest().getOptions().getUriQuery());
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            for (LwM2mPath path : paths) {
+                if (path.getObjectId() != objectId) {
+                    continue;
+                }
+                if (path.getResourceId() == null) {
+                    return true;
+                }
+                for (int resourceId : resourceIds) {
+                    if (path.getResourceId() == resourceId) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
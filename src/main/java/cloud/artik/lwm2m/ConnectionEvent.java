@@ -0,0 +1,76 @@
+package cloud.artik.lwm2m;
+
+import org.eclipse.leshan.ResponseCode;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+/**
+ * A registration life-cycle event.
+ */
+public class ConnectionEvent {
+
+    private final ConnectionEventType type;
+    private final long timestamp;
+    private final long duration;
+    private final String serverUri;
+    private final String registrationId;
+    private final ResponseCode responseCode;
+    private final String errorMessage;
+
+    /**
+     * Constructor.
+     * 
+     * @param type              The kind of event.
+     * @param timestamp         When the event happened, in milliseconds since the epoch.
+     * @param duration          Time elapsed since the matching request was sent, in milliseconds (-1 if unknown).
+     * @param serverUri         The server the event relates to.
+     * @param registrationId    The registration id, if any.
+     * @param responseCode      The response code of a failure, if any.
+     * @param errorMessage      The error message of a failure, if any.
+     */
+    public ConnectionEvent(ConnectionEventType type, long timestamp, long duration, String serverUri,
+            String registrationId, ResponseCode responseCode, String errorMessage) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.duration = duration;
+        this.serverUri = serverUri;
+        this.registrationId = registrationId;
+        this.responseCode = responseCode;
+        this.errorMessage = errorMessage;
+    }
+
+    public ConnectionEventType getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getServerUri() {
+        return serverUri;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    public ResponseCode getResponseCode() {
+        return responseCode;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionEvent [type=" + type + ", timestamp=" + timestamp + ", duration=" + duration
+                + ", serverUri=" + serverUri + ", registrationId=" + registrationId + ", responseCode="
+                + responseCode + ", errorMessage=" + errorMessage + "]";
+    }
+}
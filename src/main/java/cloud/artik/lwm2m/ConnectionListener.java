@@ -0,0 +1,17 @@
+package cloud.artik.lwm2m;
+
+/**
+ * Listener notified of the registration life-cycle of an ArtikCloudClient: handshake, register, update
+ * and de-register, together with their timeouts and failures.
+ * <p>
+ * Listeners are called from the CoAP and registration threads, so implementations should return quickly.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called for every registration life-cycle event.
+     * 
+     * @param event the event, including its timestamp and duration
+     */
+    void onConnectionEvent(ConnectionEvent event);
+}
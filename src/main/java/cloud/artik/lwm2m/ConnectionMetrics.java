@@ -0,0 +1,99 @@
+package cloud.artik.lwm2m;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+/**
+ * Aggregated registration life-cycle metrics of an ArtikCloudClient.
+ * <p>
+ * Counters are cumulative since the client was started. Durations are in milliseconds and
+ * timestamps in milliseconds since the epoch; both are 0 until the first matching event.
+ */
+public class ConnectionMetrics implements ConnectionListener {
+
+    private static final int SIZE = ConnectionEventType.values().length;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLongArray lastDurations = new AtomicLongArray(SIZE);
+    private final AtomicLongArray lastTimestamps = new AtomicLongArray(SIZE);
+    private volatile ConnectionEvent lastFailure = null;
+
+    @Override
+    public void onConnectionEvent(ConnectionEvent event) {
+        int index = event.getType().ordinal();
+        counts.incrementAndGet(index);
+        lastTimestamps.set(index, event.getTimestamp());
+        if (event.getDuration() >= 0) {
+            lastDurations.set(index, event.getDuration());
+        }
+        if (event.getType().isFailure() || event.getType().isTimeout()) {
+            lastFailure = event;
+        }
+    }
+
+    /**
+     * Number of events of the given type.
+     */
+    public long getCount(ConnectionEventType type) {
+        return counts.get(type.ordinal());
+    }
+
+    /**
+     * Duration of the last event of the given type, in milliseconds.
+     */
+    public long getLastDuration(ConnectionEventType type) {
+        return lastDurations.get(type.ordinal());
+    }
+
+    /**
+     * Timestamp of the last event of the given type, in milliseconds since the epoch.
+     */
+    public long getLastTimestamp(ConnectionEventType type) {
+        return lastTimestamps.get(type.ordinal());
+    }
+
+    /**
+     * Last failure or timeout, or null if none happened.
+     */
+    public ConnectionEvent getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Time of the last successful Register or Registration Update, in milliseconds since the epoch.
+     */
+    public long getLastSuccessfulRegistration() {
+        return Math.max(getLastTimestamp(ConnectionEventType.REGISTRATION_SUCCESS),
+                getLastTimestamp(ConnectionEventType.UPDATE_SUCCESS));
+    }
+
+    /**
+     * Time from start() to the first registration the last time the client had to bootstrap, in
+     * milliseconds.
+     */
+    public long getColdProvisioningTime() {
+        return getLastDuration(ConnectionEventType.PROVISIONING_COLD);
+    }
+
+    /**
+     * Time from start() to the first registration the last time the client registered with the configured or
+     * cached servers, without bootstrap, in milliseconds.
+     */
+    public long getWarmProvisioningTime() {
+        return getLastDuration(ConnectionEventType.PROVISIONING_WARM);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ConnectionMetrics [");
+        for (ConnectionEventType type : ConnectionEventType.values()) {
+            if (type.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(type).append('=').append(getCount(type)).append('/').append(getLastDuration(type))
+                    .append("ms");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,357 @@
+package cloud.artik.lwm2m;
+
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.client.observer.LwM2mClientObserverAdapter;
+import org.eclipse.leshan.client.servers.DmServerInfo;
+import org.eclipse.leshan.client.servers.ServerInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+/**
+ * Turns the Leshan registration callbacks and the CoAP traffic of the client endpoints into
+ * ConnectionEvents with timestamps and durations.
+ * <p>
+ * The monitor is attached to every endpoint, so UDP/DTLS, TCP and TLS bindings are covered alike. On the DTLS
+ * endpoint, a handshake spans from the first request sent to a server without a DTLS session, whatever
+ * dropped the previous one, to the establishment of the session, read from the connector. On the other
+ * endpoints, which do not expose their sessions, it is approximated from the first request sent without a
+ * session (at start, or after a timeout) to the first response received. The provisioning spans from
+ * startProvisioning() to the next successful registration, and is cold if a bootstrap succeeded meanwhile.
+ */
+class ConnectionMonitor extends LwM2mClientObserverAdapter implements MessageInterceptor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionMonitor.class);
+
+    private static final String RD_PATH = "rd";
+    private static final String BS_PATH = "bs";
+
+    // Scandium has no session listener: the session is polled until established, or the handshake given up
+    private static final long SESSION_POLL_INTERVAL = 10;
+    private static final long HANDSHAKE_TIMEOUT = 60000;
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Connection monitor timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final List<ConnectionListener> listeners = new CopyOnWriteArrayList<ConnectionListener>();
+
+    private volatile boolean sessionEstablished = false;
+    private volatile long handshakeStart = 0;
+    private volatile long registerStart = 0;
+    private volatile long updateStart = 0;
+    private volatile long deregisterStart = 0;
+    private volatile long bootstrapStart = 0;
+    private volatile long provisioningStart = 0;
+    private volatile boolean bootstrapped = false;
+
+    // guarded by this, the server of the DTLS handshake in progress
+    private InetSocketAddress handshakePeer = null;
+
+    public void addListener(ConnectionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ConnectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts timing the provisioning, up to the next successful registration.
+     */
+    public void startProvisioning() {
+        bootstrapped = false;
+        provisioningStart = System.nanoTime();
+    }
+
+    /**
+     * Adds the monitor to the interceptors of the endpoint, reading the DTLS sessions from its connector if
+     * it has one.
+     */
+    void attach(Endpoint endpoint) {
+        final DTLSConnector connector = dtlsConnectorOf(endpoint);
+        if (connector == null) {
+            endpoint.addInterceptor(this);
+            return;
+        }
+        endpoint.addInterceptor(new MessageInterceptor() {
+            @Override
+            public void sendRequest(Request request) {
+                ConnectionMonitor.this.sendRequest(request, connector);
+            }
+
+            @Override
+            public void sendResponse(Response response) {
+            }
+
+            @Override
+            public void sendEmptyMessage(EmptyMessage message) {
+            }
+
+            @Override
+            public void receiveRequest(Request request) {
+            }
+
+            @Override
+            public void receiveResponse(Response response) {
+            }
+
+            @Override
+            public void receiveEmptyMessage(EmptyMessage message) {
+            }
+        });
+    }
+
+    /**
+     * The DTLS connector of the endpoint, or null if it is not a DTLS endpoint. CoapEndpoint does not expose
+     * its connector, which Leshan builds itself.
+     */
+    static DTLSConnector dtlsConnectorOf(Endpoint endpoint) {
+        if (!(endpoint instanceof CoapEndpoint)) {
+            return null;
+        }
+        try {
+            Field field = CoapEndpoint.class.getDeclaredField("connector");
+            field.setAccessible(true);
+            Object connector = field.get(endpoint);
+            return connector instanceof DTLSConnector ? (DTLSConnector) connector : null;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot access the DTLS connector: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // --- MessageInterceptor
+
+    @Override
+    public void sendRequest(Request request) {
+        sendRequest(request, null);
+    }
+
+    private void sendRequest(Request request, DTLSConnector connector) {
+        if (ServerFailover.PROBE_PATH.equals(request.getOptions().getUriPathString())) {
+            // a server probe
+            return;
+        }
+        long now = System.nanoTime();
+        if (connector != null) {
+            watchSession(connector, new InetSocketAddress(request.getDestination(), request.getDestinationPort()),
+                    now);
+        } else if (!sessionEstablished && handshakeStart == 0) {
+            handshakeStart = now;
+            fire(ConnectionEventType.HANDSHAKE_STARTED, -1,
+                    request.getDestination() + ":" + request.getDestinationPort(), null, null, null);
+        }
+
+        List<String> path = request.getOptions().getUriPath();
+        if (path.size() == 1 && BS_PATH.equals(path.get(0)) && request.getCode() == Code.POST) {
+            bootstrapStart = now;
+            return;
+        }
+        if (path.isEmpty() || !RD_PATH.equals(path.get(0))) {
+            return;
+        }
+        if (request.getCode() == Code.POST) {
+            if (path.size() == 1) {
+                registerStart = now;
+            } else {
+                updateStart = now;
+            }
+        } else if (request.getCode() == Code.DELETE) {
+            deregisterStart = now;
+        }
+    }
+
+    /**
+     * Starts a handshake if the connector has no session with the server, and polls the session until it is
+     * established.
+     */
+    private void watchSession(final DTLSConnector connector, final InetSocketAddress peer, final long start) {
+        if (connector.getSessionByAddress(peer) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (peer.equals(handshakePeer)) {
+                // retransmissions and the other requests of the handshake
+                return;
+            }
+            handshakePeer = peer;
+        }
+        fire(ConnectionEventType.HANDSHAKE_STARTED, -1, peer.getAddress() + ":" + peer.getPort(), null, null, null);
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean established = connector.getSessionByAddress(peer) != null;
+                if (!established && elapsed(start) < HANDSHAKE_TIMEOUT && connector.isRunning()) {
+                    TIMER.schedule(this, SESSION_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                synchronized (ConnectionMonitor.this) {
+                    if (!peer.equals(handshakePeer)) {
+                        return;
+                    }
+                    handshakePeer = null;
+                }
+                if (established) {
+                    fire(ConnectionEventType.HANDSHAKE_COMPLETED, elapsed(start),
+                            peer.getAddress() + ":" + peer.getPort(), null, null, null);
+                }
+            }
+        }, SESSION_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        long start = handshakeStart;
+        if (!sessionEstablished && start != 0) {
+            sessionEstablished = true;
+            handshakeStart = 0;
+            fire(ConnectionEventType.HANDSHAKE_COMPLETED, elapsed(start),
+                    response.getSource() + ":" + response.getSourcePort(), null, null, null);
+        }
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+    }
+
+    // --- LwM2mClientObserver
+
+    @Override
+    public void onBootstrapSuccess(ServerInfo bsserver) {
+        bootstrapped = true;
+        fire(ConnectionEventType.BOOTSTRAP_SUCCESS, elapsed(bootstrapStart), uri(bsserver), null, null, null);
+    }
+
+    @Override
+    public void onBootstrapFailure(ServerInfo bsserver, ResponseCode responseCode, String errorMessage) {
+        fire(ConnectionEventType.BOOTSTRAP_FAILURE, elapsed(bootstrapStart), uri(bsserver), null, responseCode,
+                errorMessage);
+    }
+
+    @Override
+    public void onBootstrapTimeout(ServerInfo bsserver) {
+        sessionEstablished = false;
+        fire(ConnectionEventType.BOOTSTRAP_TIMEOUT, elapsed(bootstrapStart), uri(bsserver), null, null, null);
+    }
+
+    @Override
+    public void onRegistrationSuccess(DmServerInfo server, String registrationID) {
+        fire(ConnectionEventType.REGISTRATION_SUCCESS, elapsed(registerStart), uri(server), registrationID, null,
+                null);
+        long start = provisioningStart;
+        if (start != 0) {
+            provisioningStart = 0;
+            fire(bootstrapped ? ConnectionEventType.PROVISIONING_COLD : ConnectionEventType.PROVISIONING_WARM,
+                    elapsed(start), uri(server), registrationID, null, null);
+        }
+    }
+
+    @Override
+    public void onRegistrationFailure(DmServerInfo server, ResponseCode responseCode, String errorMessage) {
+        fire(ConnectionEventType.REGISTRATION_FAILURE, elapsed(registerStart), uri(server), null, responseCode,
+                errorMessage);
+    }
+
+    @Override
+    public void onRegistrationTimeout(DmServerInfo server) {
+        // Leshan drops the (D)TLS session on timeout, the next request starts a new handshake
+        sessionEstablished = false;
+        fire(ConnectionEventType.REGISTRATION_TIMEOUT, elapsed(registerStart), uri(server), null, null, null);
+    }
+
+    @Override
+    public void onUpdateSuccess(DmServerInfo server, String registrationID) {
+        fire(ConnectionEventType.UPDATE_SUCCESS, elapsed(updateStart), uri(server), registrationID, null, null);
+    }
+
+    @Override
+    public void onUpdateFailure(DmServerInfo server, ResponseCode responseCode, String errorMessage) {
+        fire(ConnectionEventType.UPDATE_FAILURE, elapsed(updateStart), uri(server), null, responseCode,
+                errorMessage);
+    }
+
+    @Override
+    public void onUpdateTimeout(DmServerInfo server) {
+        sessionEstablished = false;
+        fire(ConnectionEventType.UPDATE_TIMEOUT, elapsed(updateStart), uri(server), null, null, null);
+    }
+
+    @Override
+    public void onDeregistrationSuccess(DmServerInfo server, String registrationID) {
+        fire(ConnectionEventType.DEREGISTRATION_SUCCESS, elapsed(deregisterStart), uri(server), registrationID,
+                null, null);
+    }
+
+    @Override
+    public void onDeregistrationFailure(DmServerInfo server, ResponseCode responseCode, String errorMessage) {
+        fire(ConnectionEventType.DEREGISTRATION_FAILURE, elapsed(deregisterStart), uri(server), null,
+                responseCode, errorMessage);
+    }
+
+    @Override
+    public void onDeregistrationTimeout(DmServerInfo server) {
+        fire(ConnectionEventType.DEREGISTRATION_TIMEOUT, elapsed(deregisterStart), uri(server), null, null, null);
+    }
+
+    private static long elapsed(long start) {
+        if (start == 0) {
+            return -1;
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static String uri(ServerInfo server) {
+        return server == null ? null : String.valueOf(server.getFullUri());
+    }
+
+    void fire(ConnectionEventType type, long duration, String serverUri, String registrationId,
+            ResponseCode responseCode, String errorMessage) {
+        ConnectionEvent event = new ConnectionEvent(type, System.currentTimeMillis(), duration, serverUri,
+                registrationId, responseCode, errorMessage);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(event.toString());
+        }
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onConnectionEvent(event);
+            } catch (RuntimeException e) {
+                LOGGER.error("Connection listener failed on " + type, e);
+            }
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package cloud.artik.lwm2m;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cloud.artik.lwm2m.enums.DeviceEnum;
+import cloud.artik.lwm2m.enums.Lwm2mEnum;
 import cloud.artik.lwm2m.enums.SupportedBinding;
 
 /*
@@ -27,16 +26,31 @@ import cloud.artik.lwm2m.enums.SupportedBinding;
 public abstract class Device extends Resource {
     private static final Logger LOGGER = LoggerFactory.getLogger(Device.class);
 
+    /*
+     * Current Time is computed on read from the monotonic clock, so that it is not affected by wall clock
+     * jumps: wall clock at construction + elapsed monotonic time + offset set by the server time-sync.
+     */
+    private final long baseTimeMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+    private volatile long clockOffset = 0;
+    private volatile TimeZone timeZone = TimeZone.getDefault();
+
+    /*
+     * Multi-instance power source resources, set one instance at a time.
+     */
+    private final LongInstances availablePowerSources = new LongInstances();
+    private final LongInstances powerSourceVoltage = new LongInstances();
+    private final LongInstances powerSourceCurrent = new LongInstances();
+
+    private volatile ErrorCodeRing errorCodes = new ErrorCodeRing(ErrorCodeRing.DEFAULT_CAPACITY);
+
     /*
      * Creates a ArtikCloud Device.
      * 
      * Default binding = UDP
      */
     public Device() {
-        setUtcOffset(new SimpleDateFormat("X").format(Calendar.getInstance()
-                .getTime()), false);
-        setTimeZone(TimeZone.getDefault().getID(), false);
-        setCurrentTime(new Date(), false);
+        setTimeZone(timeZone.getID(), false);
         setErrorCode(0l, false);
     }
 
@@ -93,11 +107,23 @@ public abstract class Device extends Resource {
      * @return ExecuteResponse
      */
     protected ExecuteResponse executeResetErrorCode() {
-        setErrorCode(0, true);
+        beginWrite();
+        boolean changed = errorCodes.clear();
+        endWrite();
+        if (changed) {
+            updateResources(DeviceEnum.ERROR_CODE.getResourceId());
+        }
         return ExecuteResponse.success();
     }
     
 
+    @Override
+    boolean isComputed(Lwm2mEnum resource) {
+        return resource == DeviceEnum.CURRENT_TIME || resource == DeviceEnum.AVAILABLE_POWER_SOURCES
+                || resource == DeviceEnum.POWER_SOURCE_VOLTAGE || resource == DeviceEnum.POWER_SOURCE_CURRENT
+                || resource == DeviceEnum.ERROR_CODE;
+    }
+
     @Override
     public ReadResponse read(int resourceId) {
         DeviceEnum resource = DeviceEnum.values()[resourceId];
@@ -112,6 +138,18 @@ public abstract class Device extends Resource {
                 Date value = getCurrentTime();
                 LOGGER.info("value: " + value);
                 return ReadResponse.success(resource.getResourceId(), value);
+            case UTC_OFFSET:
+                String offset = getUtcOffset();
+                LOGGER.info("value: " + offset);
+                return ReadResponse.success(resource.getResourceId(), offset);
+            case AVAILABLE_POWER_SOURCES:
+                return readInstances(resourceId, availablePowerSources);
+            case POWER_SOURCE_VOLTAGE:
+                return readInstances(resourceId, powerSourceVoltage);
+            case POWER_SOURCE_CURRENT:
+                return readInstances(resourceId, powerSourceCurrent);
+            case ERROR_CODE:
+                return ReadResponse.success(errorCodes.toResource(resourceId));
             case REBOOT:
             case FACTORY_RESET:
             default:
@@ -121,6 +159,12 @@ public abstract class Device extends Resource {
         }
     }
 
+    private ReadResponse readInstances(int resourceId, LongInstances instances) {
+        LwM2mResource value = instances.toResource(resourceId);
+        LOGGER.info("value: " + value);
+        return value == null ? super.read(resourceId) : ReadResponse.success(value);
+    }
+
     @Override
     public ExecuteResponse execute(int resourceId, String params) {
         if (params != null && params.length() != 0)
@@ -141,7 +185,11 @@ public abstract class Device extends Resource {
         DeviceEnum resource = DeviceEnum.values()[resourceId];
         switch (resource) {
         case CURRENT_TIME:
-            return WriteResponse.notFound();
+            if (!(value.getValue() instanceof Date)) {
+                return WriteResponse.badRequest("Current Time must be a time value");
+            }
+            setCurrentTime((Date) value.getValue(), true);
+            return WriteResponse.success();
         case UTC_OFFSET:
             setUtcOffset((String) value.getValue(), true);
             return WriteResponse.success();
@@ -232,10 +280,8 @@ public abstract class Device extends Resource {
      * 0 – DC power 1 – Internal Battery 2 – External Battery 4 – Power over
      * Ethernet 5 – USB 6 – AC (Mains) power 7 – Solar
      */
-    @SuppressWarnings("unchecked")
     public Map<Integer, Long> getAvailablePowerSources() {
-        return (Map<Integer, Long>) this.resources
-                .get(DeviceEnum.AVAILABLE_POWER_SOURCES);
+        return availablePowerSources.toMap();
     }
 
     /*
@@ -243,20 +289,30 @@ public abstract class Device extends Resource {
      * Resource Instance ID MUST map to the value of Available Power Sources
      * Resource.
      */
-    @SuppressWarnings("unchecked")
     public Map<Integer, Long> getPowerSourceVoltage() {
-        return (Map<Integer, Long>) this.resources
-                .get(DeviceEnum.POWER_SOURCE_VOLTAGE);
+        return powerSourceVoltage.toMap();
+    }
+
+    /*
+     * Present voltage of one power source instance (mV), or -1 if unknown.
+     */
+    public long getPowerSourceVoltage(int instance) {
+        return powerSourceVoltage.get(instance, -1);
     }
 
     /*
      * Present current for each Available Power Source. Each Resource Instance
      * ID MUST map to the value of Available Power Sources Resource.
      */
-    @SuppressWarnings("unchecked")
     public Map<Integer, Long> getPowerSourceCurrent() {
-        return (Map<Integer, Long>) this.resources
-                .get(DeviceEnum.POWER_SOURCE_CURRENT);
+        return powerSourceCurrent.toMap();
+    }
+
+    /*
+     * Present current of one power source instance (mA), or -1 if unknown.
+     */
+    public long getPowerSourceCurrent(int instance) {
+        return powerSourceCurrent.get(instance, -1);
     }
 
     /*
@@ -271,9 +327,18 @@ public abstract class Device extends Resource {
      * created. This error code Resource MAY be observed by the LWM2M Server.
      * How to deal with LWM2M Client’s error report depends on the policy of the
      * LWM2M Server. Override this to return an error
+     * 
+     * Returns the most recent error code, 0 if there is no error.
      */
     public Long getErrorCode() {
-        return (Long) this.resources.get(DeviceEnum.ERROR_CODE).getValue();
+        return errorCodes.last();
+    }
+
+    /*
+     * All the error code Resource Instances, by instance id.
+     */
+    public Map<Integer, Long> getErrorCodes() {
+        return errorCodes.toMap();
     }
 
     /*
@@ -299,15 +364,52 @@ public abstract class Device extends Resource {
      * Server.
      */
     public Date getCurrentTime() {
-        return new Date();
+        return new Date(getCurrentTimeMillis());
+    }
+
+    /*
+     * Current UNIX time in milliseconds, from the monotonic clock adjusted by
+     * the server time-sync.
+     */
+    public long getCurrentTimeMillis() {
+        return baseTimeMillis + (System.nanoTime() - baseNanos) / 1000000 + clockOffset;
     }
 
     /*
      * Indicates the UTC offset currently in effect for this LWM2M Device. UTC+X
      * [ISO 8601]
+     * 
+     * Unless written by the server, it is computed on read from the Timezone
+     * resource, so that daylight saving time changes are reflected.
      */
     public String getUtcOffset() {
-        return (String) this.resources.get(DeviceEnum.UTC_OFFSET).getValue();
+        LwM2mResource utcOffset = this.resources.get(DeviceEnum.UTC_OFFSET);
+        if (utcOffset != null) {
+            return (String) utcOffset.getValue();
+        }
+        return formatUtcOffset(timeZone.getOffset(getCurrentTimeMillis()));
+    }
+
+    /*
+     * Same format as SimpleDateFormat("X") ("Z", "+09"), except that the
+     * minutes of non whole hour offsets are kept ("+0530") instead of dropped.
+     */
+    static String formatUtcOffset(int offsetMillis) {
+        if (offsetMillis == 0) {
+            return "Z";
+        }
+        int minutes = Math.abs(offsetMillis) / 60000;
+        StringBuilder offset = new StringBuilder(5);
+        offset.append(offsetMillis < 0 ? '-' : '+');
+        appendTwoDigits(offset, minutes / 60);
+        if (minutes % 60 != 0) {
+            appendTwoDigits(offset, minutes % 60);
+        }
+        return offset.toString();
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int value) {
+        builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
     }
 
     /*
@@ -338,20 +440,33 @@ public abstract class Device extends Resource {
     }
 
     /**
-     * This is a NOOP. Currently setting current time doesn't synch the clocks.
+     * Synchronizes the Current Time: the offset from the monotonic clock is
+     * adjusted, the system clock is left untouched.
      * 
      * @param date
      */
     public void setCurrentTime(Date date, boolean fireResourceChange) {
-        // To-Do: Synch time
+        clockOffset += date.getTime() - getCurrentTimeMillis();
+        if (fireResourceChange) {
+            updateResources(DeviceEnum.CURRENT_TIME.getResourceId());
+        }
     }
 
     /*
      * Indicates the UTC offset currently in effect for this LWM2M Device. UTC+X
      * [ISO 8601]
+     * 
+     * Set to null to compute it again from the Timezone resource.
      */
     public void setUtcOffset(String utcOffset, boolean fireResourceChange) {
-        setResourceValue(DeviceEnum.UTC_OFFSET, utcOffset, fireResourceChange);
+        if (utcOffset == null) {
+            this.resources.remove(DeviceEnum.UTC_OFFSET);
+            if (fireResourceChange) {
+                updateResources(DeviceEnum.UTC_OFFSET.getResourceId());
+            }
+        } else {
+            setResourceValue(DeviceEnum.UTC_OFFSET, utcOffset, fireResourceChange);
+        }
     }
 
     /*
@@ -359,7 +474,11 @@ public abstract class Device extends Resource {
      * Timezone (TZ) database format.
      */
     public void setTimeZone(String timeZone, boolean fireResourceChange) {
+        this.timeZone = TimeZone.getTimeZone(timeZone);
         setResourceValue(DeviceEnum.TIMEZONE, timeZone, fireResourceChange);
+        if (fireResourceChange && !this.resources.containsKey(DeviceEnum.UTC_OFFSET)) {
+            updateResources(DeviceEnum.UTC_OFFSET.getResourceId());
+        }
     }
 
     /*
@@ -417,10 +536,37 @@ public abstract class Device extends Resource {
     public void setAvailablePowerSources(
             HashMap<Integer, Long> availablePowerSources,
             boolean fireResourceChange) {
-        setResourceValue(DeviceEnum.AVAILABLE_POWER_SOURCES,
+        setInstances(DeviceEnum.AVAILABLE_POWER_SOURCES, this.availablePowerSources,
                 availablePowerSources, fireResourceChange);
     }
 
+    /*
+     * Sets the type of one power source instance. Observers are only notified
+     * if the value changed.
+     */
+    public void setAvailablePowerSource(int instance, long powerSource,
+            boolean fireResourceChange) {
+        setInstance(DeviceEnum.AVAILABLE_POWER_SOURCES, availablePowerSources,
+                instance, powerSource, fireResourceChange);
+    }
+
+    /*
+     * Removes one power source instance from the Available Power Sources,
+     * Power Source Voltage and Power Source Current resources.
+     */
+    public void removePowerSource(int instance, boolean fireResourceChange) {
+        beginWrite();
+        boolean sources = availablePowerSources.remove(instance);
+        boolean voltage = powerSourceVoltage.remove(instance);
+        boolean current = powerSourceCurrent.remove(instance);
+        endWrite();
+        if (fireResourceChange && (sources || voltage || current)) {
+            updateResources(DeviceEnum.AVAILABLE_POWER_SOURCES.getResourceId(),
+                    DeviceEnum.POWER_SOURCE_VOLTAGE.getResourceId(),
+                    DeviceEnum.POWER_SOURCE_CURRENT.getResourceId());
+        }
+    }
+
     /*
      * Present voltage for each Available Power Sources Resource Instance. Each
      * Resource Instance ID MUST map to the value of Available Power Sources
@@ -429,8 +575,18 @@ public abstract class Device extends Resource {
     public void setPowerSourceVoltage(
             HashMap<Integer, Long> powerSourceVoltage,
             boolean fireResourceChange) {
-        setResourceValue(DeviceEnum.POWER_SOURCE_VOLTAGE, powerSourceVoltage,
-                fireResourceChange);
+        setInstances(DeviceEnum.POWER_SOURCE_VOLTAGE, this.powerSourceVoltage,
+                powerSourceVoltage, fireResourceChange);
+    }
+
+    /*
+     * Present voltage (mV) of one power source instance. Observers are only
+     * notified if the value changed.
+     */
+    public void setPowerSourceVoltage(int instance, long voltage,
+            boolean fireResourceChange) {
+        setInstance(DeviceEnum.POWER_SOURCE_VOLTAGE, powerSourceVoltage,
+                instance, voltage, fireResourceChange);
     }
 
     /*
@@ -440,8 +596,38 @@ public abstract class Device extends Resource {
     public void setPowerSourceCurrent(
             HashMap<Integer, Long> powerSourceCurrent,
             boolean fireResourceChange) {
-        setResourceValue(DeviceEnum.POWER_SOURCE_CURRENT, powerSourceCurrent,
-                fireResourceChange);
+        setInstances(DeviceEnum.POWER_SOURCE_CURRENT, this.powerSourceCurrent,
+                powerSourceCurrent, fireResourceChange);
+    }
+
+    /*
+     * Present current (mA) of one power source instance. Observers are only
+     * notified if the value changed.
+     */
+    public void setPowerSourceCurrent(int instance, long current,
+            boolean fireResourceChange) {
+        setInstance(DeviceEnum.POWER_SOURCE_CURRENT, powerSourceCurrent,
+                instance, current, fireResourceChange);
+    }
+
+    private void setInstances(DeviceEnum resource, LongInstances instances,
+            Map<Integer, Long> values, boolean fireResourceChange) {
+        beginWrite();
+        boolean changed = instances.setAll(values);
+        endWrite();
+        if (changed && fireResourceChange) {
+            updateResources(resource.getResourceId());
+        }
+    }
+
+    private void setInstance(DeviceEnum resource, LongInstances instances,
+            int instance, long value, boolean fireResourceChange) {
+        beginWrite();
+        boolean changed = instances.put(instance, value);
+        endWrite();
+        if (changed && fireResourceChange) {
+            updateResources(resource.getResourceId());
+        }
     }
 
     /*
@@ -456,9 +642,33 @@ public abstract class Device extends Resource {
      * created. This error code Resource MAY be observed by the LWM2M Server.
      * How to deal with LWM2M Client’s error report depends on the policy of the
      * LWM2M Server. Override this to return an error
+     * 
+     * The instances are kept in a bounded ring (see setErrorCodeCapacity): a
+     * code already reported is not added again, and once the ring is full the
+     * oldest error is replaced. Setting 0 clears all the errors. Observers are
+     * only notified when the resource changed.
      */
     public void setErrorCode(long errorCode, boolean fireResourceChange) {
-        setResourceValue(DeviceEnum.ERROR_CODE, errorCode, fireResourceChange);
+        beginWrite();
+        boolean changed = errorCodes.add(errorCode);
+        endWrite();
+        if (changed && fireResourceChange) {
+            updateResources(DeviceEnum.ERROR_CODE.getResourceId());
+        }
+    }
+
+    /*
+     * Maximum number of error code Resource Instances, 8 by default. Changing
+     * it clears the errors.
+     */
+    public void setErrorCodeCapacity(int capacity, boolean fireResourceChange) {
+        boolean changed = errorCodes.size() > 0;
+        beginWrite();
+        errorCodes = new ErrorCodeRing(capacity);
+        endWrite();
+        if (changed && fireResourceChange) {
+            updateResources(DeviceEnum.ERROR_CODE.getResourceId());
+        }
     }
 
     /*
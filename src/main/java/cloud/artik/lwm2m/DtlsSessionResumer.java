@@ -0,0 +1,98 @@
+package cloud.artik.lwm2m;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the DTLS session across NAT rebindings with an abbreviated handshake.
+ * <p>
+ * When the NAT in front of the device changes its source port, the server drops the records coming from the
+ * unknown address, and the request is retransmitted. Left alone, Leshan drops all the sessions once the
+ * register or update times out, and starts a full handshake. Instead, on the first retransmission of a
+ * request, the session is resumed (RFC 5246, section 7.3): the ClientHello carries the session id, the server
+ * moves the session to the new address, and no key exchange takes place. If the path is really broken, the
+ * next retransmissions go through the resumed session unchanged, and the timeout handling of Leshan applies.
+ * <p>
+ * Scandium has no DTLS 1.2 Connection ID, which would keep the records valid without any handshake.
+ */
+class DtlsSessionResumer implements MessageInterceptor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DtlsSessionResumer.class);
+
+    // requests sent recently, to recognize their retransmissions
+    private static final int TRACKED_REQUESTS = 32;
+
+    private final DTLSConnector connector;
+    private final Map<String, Integer> transmissions = new LinkedHashMap<String, Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > TRACKED_REQUESTS;
+        }
+    };
+    private final AtomicLong resumptions = new AtomicLong();
+
+    DtlsSessionResumer(DTLSConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Number of sessions resumed after a retransmission.
+     */
+    long getResumptions() {
+        return resumptions.get();
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        if (request.getCode() == null || request.getDestination() == null) {
+            return;
+        }
+        String key = request.getDestination().getHostAddress() + ":" + request.getDestinationPort() + "/"
+                + request.getMID();
+        int count;
+        synchronized (transmissions) {
+            Integer previous = transmissions.get(key);
+            count = previous == null ? 1 : previous + 1;
+            transmissions.put(key, count);
+        }
+        if (count == 2) {
+            // first retransmission: the peer may see us from another address
+            LOGGER.info("Request " + request.getMID() + " retransmitted, resuming the DTLS session with "
+                    + request.getDestination() + ":" + request.getDestinationPort());
+            resumptions.incrementAndGet();
+            connector.forceResumeSessionFor(
+                    new InetSocketAddress(request.getDestination(), request.getDestinationPort()));
+        }
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+    }
+}
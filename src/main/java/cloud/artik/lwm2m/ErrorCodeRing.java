@@ -0,0 +1,117 @@
+package cloud.artik.lwm2m;
+
+import java.util.Map;
+
+import org.eclipse.leshan.core.node.LwM2mResource;
+
+/**
+ * Instances of the multi-instance Error Code resource, as a bounded ring.
+ * <p>
+ * Each new error code gets its own resource instance, codes already present are not added again, and once
+ * the ring is full the oldest error is overwritten in place, so its instance id is reused. Appending is
+ * O(1): presence of the codes 0 to 63 is tracked in a bit mask, other codes are looked up in the bounded ring.
+ * With no error, the resource holds a single 0 instance.
+ */
+class ErrorCodeRing {
+    public final static int DEFAULT_CAPACITY = 8;
+
+    private final long[] codes;
+    private final LongInstances instances = new LongInstances();
+    private int count = 0;
+    private int oldest = 0;
+    private long mask = 0;
+
+    ErrorCodeRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.codes = new long[capacity];
+        instances.put(0, 0);
+    }
+
+    /**
+     * Adds an error code. 0 clears the errors.
+     *
+     * @return true if the resource changed
+     */
+    synchronized boolean add(long code) {
+        if (code == 0) {
+            return clear();
+        }
+        if (contains(code)) {
+            return false;
+        }
+        int slot;
+        if (count < codes.length) {
+            slot = count++;
+        } else {
+            slot = oldest;
+            oldest = (oldest + 1) % codes.length;
+            long evicted = codes[slot];
+            if (evicted >= 0 && evicted < 64) {
+                mask &= ~(1L << evicted);
+            }
+        }
+        codes[slot] = code;
+        if (code >= 0 && code < 64) {
+            mask |= 1L << code;
+        }
+        instances.put(slot, code);
+        return true;
+    }
+
+    /**
+     * Removes all the errors, leaving the single 0 instance.
+     *
+     * @return true if the resource changed
+     */
+    synchronized boolean clear() {
+        if (count == 0) {
+            return false;
+        }
+        count = 0;
+        oldest = 0;
+        mask = 0;
+        instances.clear();
+        instances.put(0, 0);
+        return true;
+    }
+
+    private boolean contains(long code) {
+        if (code >= 0 && code < 64) {
+            return (mask & (1L << code)) != 0;
+        }
+        for (int i = 0; i < count; i++) {
+            if (codes[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The most recent error code, 0 if there is none.
+     */
+    synchronized long last() {
+        if (count == 0) {
+            return 0;
+        }
+        return count < codes.length ? codes[count - 1] : codes[(oldest + codes.length - 1) % codes.length];
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    int capacity() {
+        return codes.length;
+    }
+
+    Map<Integer, Long> toMap() {
+        return instances.toMap();
+    }
+
+    LwM2mResource toResource(int resourceId) {
+        return instances.toResource(resourceId);
+    }
+}
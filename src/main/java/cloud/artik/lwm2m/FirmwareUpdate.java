@@ -1,12 +1,26 @@
 package cloud.artik.lwm2m;
 
+import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.BYTES_RECEIVED;
+import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.DOWNLOAD_PROGRESS;
 import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.STATE;
 import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.UPDATE_RESULT;
 import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.UPDATE_SUPPORTED_OBJECTS;
 import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.PKG_NAME;
 import static cloud.artik.lwm2m.enums.FirmwareUpdateEnum.PKG_VERSION;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import cloud.artik.lwm2m.exception.ConnectionLostException;
+import cloud.artik.lwm2m.firmware.CachedPackage;
+import cloud.artik.lwm2m.firmware.DownloadListener;
+import cloud.artik.lwm2m.firmware.FirmwareStaging;
+import cloud.artik.lwm2m.firmware.FirmwareUpdateStatus;
+import cloud.artik.lwm2m.firmware.PackageCache;
+import cloud.artik.lwm2m.firmware.PackageDownloader;
 import org.eclipse.leshan.core.node.LwM2mResource;
 import org.eclipse.leshan.core.response.ExecuteResponse;
 import org.eclipse.leshan.core.response.ReadResponse;
@@ -17,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import cloud.artik.lwm2m.enums.FirmwareUpdateEnum;
 import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
 import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+import cloud.artik.lwm2m.enums.Lwm2mEnum;
 
 /**
  * This LWM2M Object enables management of firmware which is to be updated. 
@@ -29,14 +44,49 @@ import cloud.artik.lwm2m.enums.FirmwareUpdateState;
 public abstract class FirmwareUpdate extends Resource {
     public final static Logger LOGGER = LoggerFactory.getLogger(FirmwareUpdate.class);
 
+    public final static long DEFAULT_PROGRESS_NOTIFICATION_INTERVAL = 5000;
+    public final static int DEFAULT_PROGRESS_NOTIFICATION_STEP = 10;
+
+    protected PackageDownloader packageDownloader = new PackageDownloader();
+    protected PackageCache packageCache = null;
+    protected FirmwareStaging firmwareStaging = null;
+    protected long progressNotificationInterval = DEFAULT_PROGRESS_NOTIFICATION_INTERVAL;
+    protected int progressNotificationStep = DEFAULT_PROGRESS_NOTIFICATION_STEP;
+
+    private final DownloadListener progressListener = new DownloadListener() {
+        @Override
+        public void onProgress(long bytesReceived, long totalBytes) {
+            setDownloadProgress(bytesReceived, totalBytes);
+        }
+    };
+
+    private final AtomicReference<FirmwareUpdateStatus> status = new AtomicReference<FirmwareUpdateStatus>(
+            FirmwareUpdateStatus.INITIAL);
+
+    private final Object progressLock = new Object();
+
+    // incremented by every download and reset: a download only stages while its generation is current
+    private final AtomicLong downloadGeneration = new AtomicLong();
+    // held by the download staging its package, or by the reset discarding the staging
+    private final AtomicBoolean stagingBusy = new AtomicBoolean();
+    // interrupted by a reset
+    private volatile DownloadThread downloadThread = null;
+
+    // guarded by progressLock
+    private long bytesReceived = 0;
+    private int progress = 0;
+    private long lastNotificationTime = 0;
+    private int lastNotifiedProgress = 0;
+
     /**
      * Default Constructor. 
      * State initialized to IDLE(1), UpdateResult to DEFAULT(0)
      */
     public FirmwareUpdate() {
-        setState(FirmwareUpdateState.IDLE, false);
-        setUpdateResult(FirmwareUpdateResult.DEFAULT, false);
         setUpdateSupportedObjects(Boolean.FALSE, false);
+        setResourceValue(BYTES_RECEIVED, 0L, false);
+        setResourceValue(DOWNLOAD_PROGRESS, 0L, false);
+        packageDownloader.setDownloadListener(progressListener);
     }
     
     /**
@@ -56,7 +106,276 @@ public abstract class FirmwareUpdate extends Resource {
      * @return FirmwareUpdateResult
      */
     public abstract FirmwareUpdateResult executeUpdateFirmware();
+
+    /**
+     * Downloads the firmware package into the target file with the built-in PackageDownloader.
+     * Can be called from downloadPackage(String).
+     * 
+     * If the Package URI carries a digest fragment ("#sha256=..." or "#crc32=..."), or an expected digest
+     * was set on the PackageDownloader, the digest is computed while downloading and CRC_CHECK_FAILURE
+     * is returned on mismatch.
+     * 
+     * The download progress is reported through setDownloadProgress(long, long).
+     * 
+     * @param packageUri - Package URI written by the server
+     * @param target - File receiving the package
+     * @return FirmwareUpdateResult
+     */
+    protected FirmwareUpdateResult downloadPackage(String packageUri, File target) throws ConnectionLostException {
+        return packageDownloader.download(packageUri, target, getCurrentFirmware());
+    }
+
+    /**
+     * Updates the Bytes Received (100) and Download Progress (101) resources. Can be called for every
+     * received chunk by implementations downloading the package themselves: observers are only notified
+     * when the progress advanced by the notification step, when the notification interval elapsed since
+     * the last notification, and when the download completes.
+     * 
+     * @param bytesReceived - bytes of the package received so far
+     * @param totalBytes - size of the package, or -1 if unknown
+     */
+    public void setDownloadProgress(long bytesReceived, long totalBytes) {
+        boolean notify;
+        synchronized (progressLock) {
+            int percent = totalBytes > 0 ? (int) Math.min(100, bytesReceived * 100 / totalBytes) : 0;
+            if (bytesReceived == this.bytesReceived && percent == this.progress) {
+                return;
+            }
+            this.bytesReceived = bytesReceived;
+            this.progress = percent;
+            setResourceValue(BYTES_RECEIVED, bytesReceived, false);
+            setResourceValue(DOWNLOAD_PROGRESS, (long) percent, false);
+
+            long now = System.currentTimeMillis();
+            notify = (percent == 100 && lastNotifiedProgress < 100)
+                    || (progressNotificationStep > 0 && percent - lastNotifiedProgress >= progressNotificationStep)
+                    || (progressNotificationInterval > 0 && now - lastNotificationTime >= progressNotificationInterval);
+            if (notify) {
+                lastNotificationTime = now;
+                lastNotifiedProgress = percent;
+            }
+        }
+        if (notify) {
+            fireResourcesChange(BYTES_RECEIVED.getResourceId(), DOWNLOAD_PROGRESS.getResourceId());
+        }
+    }
+
+    /**
+     * Number of bytes of the package received so far.
+     */
+    public long getBytesReceived() {
+        synchronized (progressLock) {
+            return bytesReceived;
+        }
+    }
+
+    /**
+     * Download progress in percent, 0 when the package size is unknown.
+     */
+    public int getDownloadProgress() {
+        synchronized (progressLock) {
+            return progress;
+        }
+    }
+
+    /**
+     * Resets the progress to 0 and notifies the observers, done when a new download starts.
+     */
+    protected void resetDownloadProgress() {
+        synchronized (progressLock) {
+            bytesReceived = 0;
+            progress = 0;
+            lastNotificationTime = System.currentTimeMillis();
+            lastNotifiedProgress = 0;
+            setResourceValue(BYTES_RECEIVED, 0L, false);
+            setResourceValue(DOWNLOAD_PROGRESS, 0L, false);
+        }
+    }
+
+    /**
+     * Minimum time in milliseconds after which the progress is notified again, whatever its change.
+     * 0 to notify on the progress step only. Default is 5000.
+     */
+    public void setProgressNotificationInterval(long progressNotificationInterval) {
+        this.progressNotificationInterval = progressNotificationInterval;
+    }
+
+    /**
+     * Progress change, in percent, notified without waiting for the notification interval.
+     * 0 to notify on the interval only. Default is 10.
+     */
+    public void setProgressNotificationStep(int progressNotificationStep) {
+        this.progressNotificationStep = progressNotificationStep;
+    }
+
+    /**
+     * Fetches the firmware package through the PackageCache shared by the devices of this process, so that
+     * devices receiving the same package download it once. Can be called from downloadPackage(String).
+     * 
+     * The package is only downloaded, with the built-in PackageDownloader, if it is neither cached nor
+     * being downloaded for another device. CachedPackage.getBuffer() gives a read-only mapped view of it.
+     * 
+     * @param packageUri - Package URI written by the server
+     * @return CachedPackage holding the FirmwareUpdateResult
+     * @throws IllegalStateException if no PackageCache is set
+     */
+    protected CachedPackage downloadCachedPackage(String packageUri) throws ConnectionLostException {
+        if (packageCache == null) {
+            throw new IllegalStateException("No package cache set");
+        }
+        return packageCache.fetch(packageUri, packageDownloader, getCurrentFirmware());
+    }
+
+    /**
+     * Downloads the firmware package and stages it into the inactive slot of the FirmwareStaging, where
+     * executeUpdateFirmware() finds it with getFirmwareStaging().getStagedSlot(). Can be called from
+     * downloadPackage(String).
+     * 
+     * The package is downloaded into the staging directory and renamed into the slot, or, if a PackageCache
+     * is set, fetched through the cache and written into the slot from its mapped view. A reset of the state
+     * machine interrupts the download, and a download ending after the reset is not staged.
+     * 
+     * @param packageUri - Package URI written by the server
+     * @return FirmwareUpdateResult
+     * @throws IllegalStateException if no FirmwareStaging is set
+     */
+    protected FirmwareUpdateResult downloadAndStagePackage(String packageUri) throws ConnectionLostException {
+        if (firmwareStaging == null) {
+            throw new IllegalStateException("No firmware staging set");
+        }
+        if (packageCache != null) {
+            CachedPackage cached = downloadCachedPackage(packageUri);
+            if (cached.getResult() != FirmwareUpdateResult.SUCCESS) {
+                return cached.getResult();
+            }
+            // the file may be evicted meanwhile, the mapped view stays valid
+            return stage(packageUri, cached, null);
+        }
+        File download = firmwareStaging.getDownloadFile();
+        FirmwareUpdateResult result = downloadPackage(packageUri, download);
+        if (result != FirmwareUpdateResult.SUCCESS) {
+            return result;
+        }
+        return stage(packageUri, null, download);
+    }
+
+    /**
+     * Stages the cached package or the download, unless the download was reset. A reset which finds the
+     * staging busy leaves the discard to this method, which checks the generation again once it is done.
+     */
+    private FirmwareUpdateResult stage(String packageUri, CachedPackage cached, File download) {
+        long generation = Thread.currentThread() instanceof DownloadThread
+                ? ((DownloadThread) Thread.currentThread()).generation : downloadGeneration.get();
+        FirmwareUpdateResult result = FirmwareUpdateResult.FAILED;
+        if (stagingBusy.compareAndSet(false, true)) {
+            try {
+                if (isCurrent(generation)) {
+                    result = cached != null ? firmwareStaging.stage(cached.getBuffer(), packageUri)
+                            : firmwareStaging.stage(download, packageUri, false);
+                }
+            } finally {
+                stagingBusy.set(false);
+            }
+        }
+        if (!isCurrent(generation)) {
+            LOGGER.info("Download of " + packageUri + " ended after a reset, not staged");
+            if (download != null) {
+                download.delete();
+            }
+            discardStaging();
+            return FirmwareUpdateResult.FAILED;
+        }
+        return result;
+    }
+
+    /**
+     * Whether the download of the generation was not reset. A reset moves to Idle before it moves to the next
+     * generation, and the next download only starts once this one ended.
+     */
+    private boolean isCurrent(long generation) {
+        return generation == downloadGeneration.get()
+                && status.get().getState() == FirmwareUpdateState.DOWNLOADING;
+    }
+
+    /**
+     * Discards the staged image, unless a download is staging, which then discards it itself.
+     */
+    private void discardStaging() {
+        if (firmwareStaging != null && stagingBusy.compareAndSet(false, true)) {
+            try {
+                firmwareStaging.discard();
+            } finally {
+                stagingBusy.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the current firmware image, so that delta packages can be applied against it while
+     * downloaded by downloadPackage(String, File). The state only moves to Downloaded once the
+     * reconstructed image is verified.
+     * Override to enable delta packages. Default is the active slot of the FirmwareStaging if there is one,
+     * null otherwise (full packages only).
+     * 
+     * @return File
+     */
+    protected File getCurrentFirmware() {
+        if (firmwareStaging != null && firmwareStaging.getActiveSlot().isFile()) {
+            return firmwareStaging.getActiveSlot();
+        }
+        return null;
+    }
+
+    public PackageDownloader getPackageDownloader() {
+        return packageDownloader;
+    }
+
+    public PackageCache getPackageCache() {
+        return packageCache;
+    }
+
+    /**
+     * Sets the PackageCache used by downloadCachedPackage(String), usually one instance shared by the
+     * FirmwareUpdate objects of every device of the process.
+     */
+    public void setPackageCache(PackageCache packageCache) {
+        this.packageCache = packageCache;
+    }
+
+    public FirmwareStaging getFirmwareStaging() {
+        return firmwareStaging;
+    }
+
+    /**
+     * Sets the FirmwareStaging used by downloadAndStagePackage(String), and resumes the state it recorded
+     * before the last shutdown or power loss: an image staged earlier is Downloaded again without being
+     * downloaded, an update interrupted after the slot swap is reported as successful.
+     * 
+     * While a FirmwareStaging is set, the Update execution marks the staged image as being applied, and swaps
+     * the slots once executeUpdateFirmware() succeeds.
+     */
+    public void setFirmwareStaging(FirmwareStaging firmwareStaging) {
+        this.firmwareStaging = firmwareStaging;
+        if (firmwareStaging != null) {
+            FirmwareStaging.Recovery recovery = firmwareStaging.recover();
+            LOGGER.info("Firmware staging: " + recovery);
+            setStatus(new FirmwareUpdateStatus(recovery.getState(), recovery.getResult()), true);
+        }
+    }
+
+    /**
+     * Replaces the built-in PackageDownloader. Its DownloadListener is set to report the download progress.
+     */
+    public void setPackageDownloader(PackageDownloader packageDownloader) {
+        packageDownloader.setDownloadListener(progressListener);
+        this.packageDownloader = packageDownloader;
+    }
  
+    @Override
+    boolean isComputed(Lwm2mEnum resource) {
+        return resource == STATE || resource == UPDATE_RESULT;
+    }
+
     @Override
     public ReadResponse read(int resourceId) {
         FirmwareUpdateEnum resource = FirmwareUpdateEnum.valueOf(resourceId);
@@ -70,8 +389,15 @@ public abstract class FirmwareUpdate extends Resource {
             LOGGER.info("value: " + value);
             return ReadResponse.success(value);
         } else {
-            LOGGER.info(" default");
-            return super.read(resourceId);
+            switch (resource) {
+            case STATE:
+                return ReadResponse.success(resourceId, getState().getStateAsLong());
+            case UPDATE_RESULT:
+                return ReadResponse.success(resourceId, getUpdateResult().getResultAsLong());
+            default:
+                LOGGER.info(" default");
+                return super.read(resourceId);
+            }
         }
     }
 
@@ -91,41 +417,73 @@ public abstract class FirmwareUpdate extends Resource {
             //}
             
             if (packageUri == null || packageUri.trim().length() == 0) {
-                setState(FirmwareUpdateState.IDLE, true);
-            } else {            
-                new Thread(new Runnable() {
+                // reset, but not in the middle of an update
+                FirmwareUpdateStatus current;
+                do {
+                    current = status.get();
+                    if (current.getState() == FirmwareUpdateState.UPDATING) {
+                        LOGGER.warn("Cannot reset while updating");
+                        return WriteResponse.methodNotAllowed();
+                    }
+                } while (!transition(current,
+                        new FirmwareUpdateStatus(FirmwareUpdateState.IDLE, FirmwareUpdateResult.DEFAULT)));
+                downloadGeneration.incrementAndGet();
+                DownloadThread previous = downloadThread;
+                if (previous != null) {
+                    previous.interrupt();
+                }
+                discardStaging();
+            } else {
+                final FirmwareUpdateStatus downloading = new FirmwareUpdateStatus(FirmwareUpdateState.DOWNLOADING,
+                        FirmwareUpdateResult.DEFAULT);
+                DownloadThread previous = downloadThread;
+                if (firmwareStaging != null && previous != null && previous.isAlive()) {
+                    // a reset download, interrupted, may still be writing the download file
+                    LOGGER.warn("Cannot download a package while the previous download ends");
+                    return WriteResponse.methodNotAllowed();
+                }
+                FirmwareUpdateStatus current;
+                do {
+                    current = status.get();
+                    if (!current.canMoveTo(FirmwareUpdateState.DOWNLOADING)) {
+                        LOGGER.warn("Cannot download a package while " + current.getState());
+                        return WriteResponse.methodNotAllowed();
+                    }
+                } while (!transition(current, downloading));
+
+                DownloadThread thread = new DownloadThread(downloadGeneration.incrementAndGet(), new Runnable() {
                     @Override
                     public void run() {
+                        FirmwareUpdateStatus next;
                         try {
                             // Downloading
-                            setState(FirmwareUpdateState.DOWNLOADING, false);
-                            setUpdateResult(FirmwareUpdateResult.DEFAULT, false);
-                            fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+                            resetDownloadProgress();
+                            fireResourcesChange(BYTES_RECEIVED.getResourceId(), DOWNLOAD_PROGRESS.getResourceId());
 
                             // Download the resource
                             FirmwareUpdateResult result = downloadPackage(packageUri);
-                            
+                        
                             if (result == FirmwareUpdateResult.DEFAULT || result == FirmwareUpdateResult.SUCCESS) {
-                                setState(FirmwareUpdateState.DOWNLOADED, false);
-                                setUpdateResult(FirmwareUpdateResult.DEFAULT, false);
+                                next = new FirmwareUpdateStatus(FirmwareUpdateState.DOWNLOADED,
+                                        FirmwareUpdateResult.DEFAULT);
                             } else {
-                                setState(FirmwareUpdateState.IDLE, false);
-                                setUpdateResult(result, false);
+                                next = new FirmwareUpdateStatus(FirmwareUpdateState.IDLE, result);
                             }
-                            fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
                         } catch (ConnectionLostException cle){
-                            setState(FirmwareUpdateState.IDLE, false);
-                            setUpdateResult(FirmwareUpdateResult.CONNECTION_LOST, false);
-                            fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+                            next = new FirmwareUpdateStatus(FirmwareUpdateState.IDLE,
+                                    FirmwareUpdateResult.CONNECTION_LOST);
                         }
                         catch (Exception e) {
                             LOGGER.error("Error Downloading Package URI " + packageUri, e);
-                            setState(FirmwareUpdateState.IDLE, false);
-                            setUpdateResult(FirmwareUpdateResult.FAILED, false);
-                            fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+                            next = new FirmwareUpdateStatus(FirmwareUpdateState.IDLE, FirmwareUpdateResult.FAILED);
+                        }
+                        if (!transition(downloading, next)) {
+                            LOGGER.info("Download of " + packageUri + " ended after a reset, ignored: " + next);
                         }
                     }
-                }).start();
+                });
+                downloadThread = thread;
+                thread.start();
             }
             
             return WriteResponse.success();
@@ -155,33 +513,43 @@ public abstract class FirmwareUpdate extends Resource {
                 LOGGER.trace("Perform Firmware Update");
             }
             
-            setUpdateResult(FirmwareUpdateResult.DEFAULT, true);
+            FirmwareUpdateStatus current = status.get();
+            final FirmwareUpdateStatus updating = new FirmwareUpdateStatus(FirmwareUpdateState.UPDATING,
+                    FirmwareUpdateResult.DEFAULT);
+            if (current.getState() != FirmwareUpdateState.DOWNLOADED || !transition(current, updating)) {
+                LOGGER.warn("Cannot update while " + current.getState());
+                return ExecuteResponse.methodNotAllowed();
+            }
 
             new Thread(new Runnable() {
                 @Override
                 public void run() {
                     // perform upgrade
+                    boolean staged = firmwareStaging != null && firmwareStaging.getStagedPackageUri() != null;
+                    FirmwareUpdateStatus next;
                     try {
-                        setState(FirmwareUpdateState.UPDATING, false);
-                        setUpdateResult(FirmwareUpdateResult.DEFAULT, false);
-                        fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+                        if (staged) {
+                            firmwareStaging.markUpdating();
+                        }
                         
                         FirmwareUpdateResult result = executeUpdateFirmware();
                             
                         if (result == FirmwareUpdateResult.DEFAULT || result == FirmwareUpdateResult.SUCCESS) {
-                            setState(FirmwareUpdateState.IDLE, false);
-                            setUpdateResult(FirmwareUpdateResult.SUCCESS, false);
+                            if (staged) {
+                                firmwareStaging.commit();
+                            }
+                            next = new FirmwareUpdateStatus(FirmwareUpdateState.IDLE, FirmwareUpdateResult.SUCCESS);
                         } else {
-                            setState(FirmwareUpdateState.DOWNLOADED, false);
-                            setUpdateResult(result, false);
+                            markStagedDownloaded(staged);
+                            next = new FirmwareUpdateStatus(FirmwareUpdateState.DOWNLOADED, result);
                         }
-                        fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
                     } catch (Exception e) {
                         LOGGER.error("Error applying update", e);
-                        setState(FirmwareUpdateState.DOWNLOADED, false);
-                        setUpdateResult(FirmwareUpdateResult.FAILED, false);
-                        fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+                        markStagedDownloaded(staged);
+                        next = new FirmwareUpdateStatus(FirmwareUpdateState.DOWNLOADED, FirmwareUpdateResult.FAILED);
                     }
+                    // only this thread leaves Updating
+                    transition(updating, next);
                 }
             }).start();
 
@@ -192,6 +560,85 @@ public abstract class FirmwareUpdate extends Resource {
         }
     }
     
+    /**
+     * Moves the state machine from the expected status to the next one, if the status did not change
+     * meanwhile and the transition is legal. Observers of the State and Update Result are notified of the
+     * resources which changed.
+     * 
+     * @return true if the transition happened
+     */
+    protected boolean transition(FirmwareUpdateStatus expected, FirmwareUpdateStatus next) {
+        if (!expected.canMoveTo(next.getState())) {
+            return false;
+        }
+        beginWrite();
+        boolean swapped = status.compareAndSet(expected, next);
+        endWrite();
+        if (swapped) {
+            LOGGER.info("Firmware update " + expected + " -> " + next);
+            notifyStatus(expected, next, true);
+        }
+        return swapped;
+    }
+
+    /**
+     * Sets the status regardless of the state machine, e.g. to restore it.
+     */
+    protected void setStatus(FirmwareUpdateStatus next, boolean fireResourceChange) {
+        beginWrite();
+        FirmwareUpdateStatus previous = status.getAndSet(next);
+        endWrite();
+        notifyStatus(previous, next, fireResourceChange);
+    }
+
+    /**
+     * Changes the state or the result, keeping the other one, regardless of the state machine.
+     */
+    private void swapStatus(FirmwareUpdateState state, FirmwareUpdateResult result, boolean fireResourceChange) {
+        FirmwareUpdateStatus previous;
+        FirmwareUpdateStatus next;
+        boolean swapped;
+        do {
+            previous = status.get();
+            next = new FirmwareUpdateStatus(state != null ? state : previous.getState(),
+                    result != null ? result : previous.getResult());
+            beginWrite();
+            swapped = status.compareAndSet(previous, next);
+            endWrite();
+        } while (!swapped);
+        notifyStatus(previous, next, fireResourceChange);
+    }
+
+    private void notifyStatus(FirmwareUpdateStatus previous, FirmwareUpdateStatus next, boolean fireResourceChange) {
+        if (!fireResourceChange) {
+            return;
+        }
+        if (previous.getState() != next.getState() && previous.getResult() != next.getResult()) {
+            fireResourcesChange(STATE.getResourceId(), UPDATE_RESULT.getResourceId());
+        } else if (previous.getState() != next.getState()) {
+            fireResourcesChange(STATE.getResourceId());
+        } else if (previous.getResult() != next.getResult()) {
+            fireResourcesChange(UPDATE_RESULT.getResourceId());
+        }
+    }
+
+    /**
+     * The State and Update Result, read together.
+     */
+    public FirmwareUpdateStatus getStatus() {
+        return status.get();
+    }
+
+    private void markStagedDownloaded(boolean staged) {
+        if (staged) {
+            try {
+                firmwareStaging.markDownloaded();
+            } catch (IOException e) {
+                LOGGER.error("Cannot record staged image state", e);
+            }
+        }
+    }
+
     /*
      * Indicates current state with respect to this firmware update. This value is set by the LWM2M Client.
      * 0: Idle (before downloading or after updating)
@@ -208,7 +655,7 @@ public abstract class FirmwareUpdate extends Resource {
      * If performing the Update Resource was successful, the state changes from Updating to Idle.
      */
     public FirmwareUpdateState getState() {
-        return FirmwareUpdateState.values()[((Long) this.resources.get(STATE).getValue()).intValue()];
+        return status.get().getState();
     }
     
     /*
@@ -225,9 +672,11 @@ public abstract class FirmwareUpdate extends Resource {
      * When in Downloaded state, and the executable Resource Update is triggered, the state changes to Updating.
      * If the Update Resource failed, the state returns at Downloaded.
      * If performing the Update Resource was successful, the state changes from Updating to Idle.
+     * 
+     * The state is changed regardless of the state machine, see transition(FirmwareUpdateStatus, FirmwareUpdateStatus).
      */
     protected void setState(FirmwareUpdateState state, boolean fireResourceChange) {
-        setResourceValue(STATE, state.getStateAsLong(), fireResourceChange);
+        swapStatus(state, null, fireResourceChange);
     }
     
     /**
@@ -297,7 +746,7 @@ public abstract class FirmwareUpdate extends Resource {
      * This Resource MAY be reported by sending Observe operation.
      */
     public FirmwareUpdateResult getUpdateResult() {
-        return FirmwareUpdateResult.values()[((Long) this.resources.get(UPDATE_RESULT).getValue()).intValue()];
+        return status.get().getResult();
     }
     
     /*
@@ -315,7 +764,18 @@ public abstract class FirmwareUpdate extends Resource {
      * This Resource MAY be reported by sending Observe operation.
      */
     public void setUpdateResult(FirmwareUpdateResult updateResult, boolean fireResourceChange) {
-        setResourceValue(UPDATE_RESULT, updateResult.getResultAsLong(), fireResourceChange);
+        swapStatus(null, updateResult, fireResourceChange);
     }
 
-}
\ No newline at end of file
+    /**
+     * The thread of a download, with its generation.
+     */
+    private static class DownloadThread extends Thread {
+        final long generation;
+
+        DownloadThread(long generation, Runnable target) {
+            super(target);
+            this.generation = generation;
+        }
+    }
+}
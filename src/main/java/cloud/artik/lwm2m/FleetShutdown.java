@@ -0,0 +1,192 @@
+package cloud.artik.lwm2m;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+import cloud.artik.lwm2m.enums.ShutdownOutcome;
+
+/**
+ * Closes many clients at once, de-registering them in parallel within an overall deadline.
+ * <p>
+ * Each client is closed as with {@link ArtikCloudClient#close()}, on a pool of a bounded number of threads,
+ * so that a host with thousands of devices does not wait for their de-registrations one after the other.
+ * When the deadline passes, the de-registrations still waiting for their response are interrupted and the
+ * clients not handled yet are closed without de-registration, within a short grace period. The report tells
+ * which clients the server saw leave.
+ */
+public class FleetShutdown {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetShutdown.class);
+
+    public final static long DEFAULT_FORCE_CLOSE_TIMEOUT = 5000;
+
+    private final int parallelism;
+    private long forceCloseTimeout = DEFAULT_FORCE_CLOSE_TIMEOUT;
+
+    /**
+     * @param parallelism the number of clients de-registering at the same time
+     */
+    public FleetShutdown(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Grace period in milliseconds, after the deadline, to force-close the remaining clients. Defaults to 5
+     * seconds.
+     */
+    public void setForceCloseTimeout(long forceCloseTimeout) {
+        this.forceCloseTimeout = forceCloseTimeout;
+    }
+
+    /**
+     * De-registers and closes the clients, returning once they are all closed or the deadline and the grace
+     * period passed.
+     *
+     * @param clients the clients, each one once
+     * @param timeout the deadline for the de-registrations, from now
+     */
+    public FleetShutdownReport shutdown(Collection<? extends ArtikCloudClient> clients, long timeout,
+            TimeUnit unit) {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        ConcurrentMap<ArtikCloudClient, ShutdownOutcome> outcomes =
+                new ConcurrentHashMap<ArtikCloudClient, ShutdownOutcome>();
+
+        ThreadPoolExecutor closing = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Fleet shutdown %d"));
+        for (ArtikCloudClient client : clients) {
+            closing.execute(new Deregistration(client, outcomes));
+        }
+        closing.shutdown();
+
+        boolean interrupted = false;
+        try {
+            if (!closing.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                forceClose(closing, outcomes);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            forceClose(closing, outcomes);
+        }
+
+        Map<ArtikCloudClient, ShutdownOutcome> report = new LinkedHashMap<ArtikCloudClient, ShutdownOutcome>();
+        for (ArtikCloudClient client : clients) {
+            // still closing after the grace period
+            outcomes.putIfAbsent(client, ShutdownOutcome.FORCE_CLOSED);
+            report.put(client, outcomes.get(client));
+        }
+        FleetShutdownReport result = new FleetShutdownReport(report,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOGGER.info(result.toString());
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Interrupts the de-registrations in progress, and closes the clients left without de-registration.
+     */
+    private void forceClose(ThreadPoolExecutor closing,
+            final ConcurrentMap<ArtikCloudClient, ShutdownOutcome> outcomes) {
+        List<Runnable> pending = closing.shutdownNow();
+        LOGGER.warn("Shutdown deadline passed: " + closing.getActiveCount() + " de-registrations interrupted, "
+                + pending.size() + " clients not de-registered");
+        long graceEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(forceCloseTimeout);
+
+        ExecutorService forcing = Executors.newFixedThreadPool(parallelism,
+                new NamedThreadFactory("Fleet force close %d"));
+        for (Runnable task : pending) {
+            final ArtikCloudClient client = ((Deregistration) task).client;
+            forcing.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.close(false);
+                        outcomes.putIfAbsent(client, ShutdownOutcome.FORCE_CLOSED);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Failed to close client " + client.deviceId, e);
+                        outcomes.putIfAbsent(client, ShutdownOutcome.ERROR);
+                    }
+                }
+            });
+        }
+        forcing.shutdown();
+        try {
+            closing.awaitTermination(Math.max(0, graceEnd - System.nanoTime()), TimeUnit.NANOSECONDS);
+            forcing.awaitTermination(Math.max(0, graceEnd - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forcing.shutdownNow();
+    }
+
+    /**
+     * Closes a client, telling from its connection events whether the server confirmed the de-registration.
+     */
+    private static class Deregistration implements Runnable, ConnectionListener {
+        private final ArtikCloudClient client;
+        private final ConcurrentMap<ArtikCloudClient, ShutdownOutcome> outcomes;
+        private volatile ConnectionEventType result = null;
+
+        Deregistration(ArtikCloudClient client, ConcurrentMap<ArtikCloudClient, ShutdownOutcome> outcomes) {
+            this.client = client;
+            this.outcomes = outcomes;
+        }
+
+        @Override
+        public void onConnectionEvent(ConnectionEvent event) {
+            switch (event.getType()) {
+            case DEREGISTRATION_SUCCESS:
+            case DEREGISTRATION_FAILURE:
+            case DEREGISTRATION_TIMEOUT:
+                result = event.getType();
+                break;
+            default:
+                break;
+            }
+        }
+
+        @Override
+        public void run() {
+            ShutdownOutcome outcome;
+            boolean registered = client.getRegistrationId() != null;
+            client.addConnectionListener(this);
+            try {
+                client.close(true);
+                if (result == ConnectionEventType.DEREGISTRATION_SUCCESS) {
+                    outcome = ShutdownOutcome.DEREGISTERED;
+                } else if (result != null) {
+                    outcome = ShutdownOutcome.DEREGISTRATION_FAILED;
+                } else if (registered) {
+                    // the de-registration was interrupted by the deadline
+                    outcome = ShutdownOutcome.FORCE_CLOSED;
+                } else {
+                    outcome = ShutdownOutcome.NOT_REGISTERED;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to close client " + client.deviceId, e);
+                outcome = ShutdownOutcome.ERROR;
+            } finally {
+                client.removeConnectionListener(this);
+            }
+            outcomes.putIfAbsent(client, outcome);
+        }
+    }
+}
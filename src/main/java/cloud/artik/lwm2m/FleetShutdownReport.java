@@ -0,0 +1,85 @@
+package cloud.artik.lwm2m;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import cloud.artik.lwm2m.enums.ShutdownOutcome;
+
+/**
+ * Outcomes of a {@link FleetShutdown}, per client.
+ */
+public class FleetShutdownReport {
+
+    private final Map<ArtikCloudClient, ShutdownOutcome> outcomes;
+    private final Map<ShutdownOutcome, Integer> counts = new EnumMap<ShutdownOutcome, Integer>(ShutdownOutcome.class);
+    private final long duration;
+
+    FleetShutdownReport(Map<ArtikCloudClient, ShutdownOutcome> outcomes, long duration) {
+        this.outcomes = Collections.unmodifiableMap(outcomes);
+        this.duration = duration;
+        for (ShutdownOutcome outcome : ShutdownOutcome.values()) {
+            counts.put(outcome, 0);
+        }
+        for (ShutdownOutcome outcome : outcomes.values()) {
+            counts.put(outcome, counts.get(outcome) + 1);
+        }
+    }
+
+    /**
+     * The outcome of the given client, or null if it was not part of the shutdown.
+     */
+    public ShutdownOutcome getOutcome(ArtikCloudClient client) {
+        return outcomes.get(client);
+    }
+
+    public Map<ArtikCloudClient, ShutdownOutcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * Number of clients with the given outcome.
+     */
+    public int getCount(ShutdownOutcome outcome) {
+        return counts.get(outcome);
+    }
+
+    /**
+     * The clients with the given outcome, e.g. to retry or log the ones force-closed.
+     */
+    public List<ArtikCloudClient> getClients(ShutdownOutcome outcome) {
+        List<ArtikCloudClient> clients = new ArrayList<ArtikCloudClient>();
+        for (Map.Entry<ArtikCloudClient, ShutdownOutcome> entry : outcomes.entrySet()) {
+            if (entry.getValue() == outcome) {
+                clients.add(entry.getKey());
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * True if every client de-registered, or had no registration.
+     */
+    public boolean isConfirmed() {
+        for (ShutdownOutcome outcome : outcomes.values()) {
+            if (!outcome.isConfirmed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Time taken by the shutdown, in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return "FleetShutdownReport [clients=" + outcomes.size() + ", duration=" + duration + "ms, " + counts + "]";
+    }
+}
@@ -1,6 +1,7 @@
 package cloud.artik.lwm2m;
 
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 
 /**
@@ -9,6 +10,10 @@ import java.security.cert.X509Certificate;
  * LwM2M specification only allows a single client and server certificate. Hence, for the
  * server certificate, the root certificate must be used.
  * 
+ * In Raw Public Key mode, the client and the server authenticate with their bare ECC public keys
+ * instead of certificates, which keeps the DTLS handshake small on constrained links. The server
+ * public key is then the key of the server itself, as no chain is validated.
+ * 
  * @author aschen77
  */
 public class KeyConfig {
@@ -19,6 +24,10 @@ public class KeyConfig {
     
     private X509Certificate serverCertificate;
     
+    private PublicKey clientPublicKey;
+    
+    private PublicKey serverPublicKey;
+    
     /**
      * Constructor.
      * 
@@ -33,6 +42,29 @@ public class KeyConfig {
         this.serverCertificate = serverCertificate;
     }
     
+    /**
+     * Constructor for the Raw Public Key mode.
+     * 
+     * @param clientPublicKey The client EC public key registered with ARTIK Cloud for the device.
+     * @param privateKey The client EC private key.
+     * @param serverPublicKey The EC public key of the server.
+     */
+    public KeyConfig(PublicKey clientPublicKey, PrivateKey privateKey, PublicKey serverPublicKey) {
+        if (!"EC".equals(clientPublicKey.getAlgorithm()) || !"EC".equals(serverPublicKey.getAlgorithm())) {
+            throw new IllegalArgumentException("Raw public keys must be EC keys");
+        }
+        this.clientPublicKey = clientPublicKey;
+        this.privateKey = privateKey;
+        this.serverPublicKey = serverPublicKey;
+    }
+    
+    /**
+     * True if the keys are used as raw public keys rather than certificates.
+     */
+    public boolean isRawPublicKey() {
+        return clientCertificate == null;
+    }
+    
     public X509Certificate getClientCertificate() {
         return clientCertificate;
     }
@@ -45,4 +77,18 @@ public class KeyConfig {
         return serverCertificate;
     }
     
-}
\ No newline at end of file
+    /**
+     * The client public key, also in certificate mode.
+     */
+    public PublicKey getClientPublicKey() {
+        return clientCertificate != null ? clientCertificate.getPublicKey() : clientPublicKey;
+    }
+    
+    /**
+     * The server public key in Raw Public Key mode, null in certificate mode.
+     */
+    public PublicKey getServerPublicKey() {
+        return serverPublicKey;
+    }
+    
+}
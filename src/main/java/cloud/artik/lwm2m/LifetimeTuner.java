@@ -0,0 +1,286 @@
+package cloud.artik.lwm2m;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the registration lifetime to the NAT binding timeout of the path to the server.
+ * <p>
+ * The device is reachable from the server as long as the NAT keeps the binding of its last outbound message,
+ * so the Registration Updates, sent at 90% of the lifetime, must come before the binding times out. The tuner
+ * measures the idle time before each message, and learns from:
+ * <ul>
+ * <li>requests of the server, which reached the device after that idle time,</li>
+ * <li>over DTLS, updates and registers answered at the first transmission: the server still knew the
+ * address of the device,</li>
+ * <li>over DTLS, updates and registers answered after a retransmission: the binding had changed, which
+ * DtlsSessionResumer repairs.</li>
+ * </ul>
+ * Starting from the configured lifetime, the update interval doubles while the binding survives, then is
+ * bisected between the longest idle time survived and the shortest one that was not, and settles on the
+ * former. Plain UDP and TCP only learn from the requests of the server.
+ * <p>
+ * Each new lifetime is written in the Server instance, from which Leshan schedules the next update. A shorter
+ * lifetime needs nothing more: the updates come earlier than the server expects. A longer one must be given to
+ * the server with a new Register, which drops the observations of the server until it observes again. The
+ * tuner does so once the search converged or reached the upper bound, and otherwise at most once per minimum
+ * register interval; in between, a longer lifetime waits for the next update.
+ */
+class LifetimeTuner implements MessageInterceptor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LifetimeTuner.class);
+
+    private static final String RD_PATH = "rd";
+
+    // idle times shorter than this tell nothing about the NAT, in milliseconds
+    static final long MIN_IDLE = 15000;
+    // default minimum time between two Registers lengthening the lifetime before the search converged
+    static final long DEFAULT_MIN_REGISTER_INTERVAL = 3600000;
+
+    private final long minLifetime;
+    private final long maxLifetime;
+    private final boolean secure;
+    private final ThreadPoolExecutor executor;
+
+    private LeshanClient client = null;
+
+    private long lifetime;
+    // lifetime last written in the Server instance, and last given to the server with a Register, in seconds
+    private long written;
+    private long registered;
+    private long lastRegister = System.nanoTime();
+    private long minRegisterInterval = DEFAULT_MIN_REGISTER_INTERVAL;
+    private long lastOutbound = System.nanoTime();
+    // longest idle time the binding survived, shortest one it did not, in milliseconds
+    private long survived = 0;
+    private long expired = Long.MAX_VALUE;
+    // the last update or register sent, and the idle time before it
+    private String probeToken = null;
+    private int probeMid = -1;
+    private long probeIdle = 0;
+    private boolean probeRetransmitted = false;
+
+    /**
+     * @param lifetime the initial lifetime in seconds
+     * @param minLifetime the lower bound, in seconds
+     * @param maxLifetime the upper bound, in seconds
+     * @param secure whether the client is on DTLS, where the registrations tell whether the binding survived
+     */
+    LifetimeTuner(long lifetime, long minLifetime, long maxLifetime, boolean secure) {
+        if (minLifetime < 1 || maxLifetime < minLifetime) {
+            throw new IllegalArgumentException("Invalid lifetime bounds " + minLifetime + "-" + maxLifetime);
+        }
+        this.minLifetime = minLifetime;
+        this.maxLifetime = maxLifetime;
+        this.lifetime = Math.max(minLifetime, Math.min(maxLifetime, lifetime));
+        this.written = lifetime;
+        this.registered = lifetime;
+        this.secure = secure;
+        // a single thread, so that changes are serialized; it ends when idle
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Lifetime tuner %d"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    void attach(LeshanClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Minimum time in milliseconds between two Registers lengthening the lifetime before the search converged.
+     */
+    synchronized void setMinRegisterInterval(long millis) {
+        this.minRegisterInterval = millis;
+    }
+
+    /**
+     * The lifetime in seconds, within the bounds.
+     */
+    synchronized long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Estimated NAT binding timeout in milliseconds, at least the longest idle time the binding survived, 0
+     * while unknown.
+     */
+    synchronized long getBindingTimeout() {
+        return survived;
+    }
+
+    // --- MessageInterceptor
+
+    @Override
+    public synchronized void sendRequest(Request request) {
+        long now = System.nanoTime();
+        List<String> path = request.getOptions().getUriPath();
+        if (request.getCode() == Code.POST && !path.isEmpty() && RD_PATH.equals(path.get(0))) {
+            if (request.getMID() == probeMid && request.getTokenString().equals(probeToken)) {
+                probeRetransmitted = true;
+            } else {
+                probeToken = request.getTokenString();
+                probeMid = request.getMID();
+                probeIdle = (now - lastOutbound) / 1000000;
+                probeRetransmitted = false;
+                // a longer lifetime held back by the minimum register interval
+                schedule(now);
+            }
+        }
+        lastOutbound = now;
+    }
+
+    @Override
+    public synchronized void receiveResponse(Response response) {
+        if (probeToken == null || !probeToken.equals(response.getTokenString())) {
+            return;
+        }
+        probeToken = null;
+        if (secure) {
+            if (probeRetransmitted) {
+                expired(probeIdle);
+            } else {
+                survived(probeIdle);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void receiveRequest(Request request) {
+        // the server reached the device through the binding
+        survived((System.nanoTime() - lastOutbound) / 1000000);
+    }
+
+    @Override
+    public synchronized void sendResponse(Response response) {
+        lastOutbound = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void sendEmptyMessage(EmptyMessage message) {
+        lastOutbound = System.nanoTime();
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+    }
+
+    // --- Tuning
+
+    synchronized void survived(long idle) {
+        if (idle < MIN_IDLE || idle <= survived) {
+            return;
+        }
+        survived = idle;
+        if (survived >= expired) {
+            // the NAT is more lenient than it was
+            expired = Long.MAX_VALUE;
+        }
+        retune();
+    }
+
+    synchronized void expired(long idle) {
+        if (idle < MIN_IDLE || idle >= expired) {
+            return;
+        }
+        expired = idle;
+        if (survived >= expired) {
+            // the NAT is stricter than it was, search again from below
+            survived = 0;
+        }
+        retune();
+    }
+
+    private void retune() {
+        long interval;
+        if (expired == Long.MAX_VALUE) {
+            interval = survived * 2;
+        } else if (converged()) {
+            interval = survived;
+        } else {
+            interval = (survived + expired) / 2;
+        }
+        // updates are sent at 90% of the lifetime
+        long tuned = Math.max(minLifetime, Math.min(maxLifetime, (interval + 899) / 900));
+        if (tuned != lifetime) {
+            LOGGER.info("NAT binding survived " + survived / 1000 + "s" + (expired == Long.MAX_VALUE ? ""
+                    : ", expired after " + expired / 1000 + "s") + ": lifetime " + lifetime + "s -> " + tuned + "s");
+            lifetime = tuned;
+        }
+        schedule(System.nanoTime());
+    }
+
+    private boolean converged() {
+        return expired != Long.MAX_VALUE && expired - survived <= Math.max(MIN_IDLE, survived / 10);
+    }
+
+    // applies the lifetime if it changed, with a Register only if the server must know it
+    private void schedule(long now) {
+        if (lifetime == written) {
+            return;
+        }
+        final boolean register = lifetime > registered;
+        if (register && !converged() && lifetime < maxLifetime
+                && (now - lastRegister) / 1000000 < minRegisterInterval) {
+            return;
+        }
+        written = lifetime;
+        if (register) {
+            registered = lifetime;
+            lastRegister = now;
+        }
+        final long applied = lifetime;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(applied, register);
+            }
+        });
+    }
+
+    /**
+     * Writes the lifetime in the Server instance, and registers again if asked to: Leshan sends its updates
+     * without lifetime, and schedules them from the Server instance.
+     */
+    void apply(long lifetime, boolean register) {
+        if (client == null) {
+            return;
+        }
+        for (LwM2mObjectEnabler enabler : client.getObjectEnablers()) {
+            if (enabler.getId() != LwM2mId.SERVER) {
+                continue;
+            }
+            LwM2mObject servers = (LwM2mObject) enabler.read(ServerIdentity.SYSTEM,
+                    new ReadRequest(LwM2mId.SERVER)).getContent();
+            for (LwM2mObjectInstance server : servers.getInstances().values()) {
+                enabler.write(ServerIdentity.SYSTEM,
+                        new WriteRequest(LwM2mId.SERVER, server.getId(), LwM2mId.SRV_LIFETIME, lifetime));
+            }
+        }
+        if (register && client.getRegistrationId() != null) {
+            LOGGER.info("Registering again with lifetime " + lifetime + "s");
+            client.start();
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
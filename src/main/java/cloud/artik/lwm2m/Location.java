@@ -9,13 +9,16 @@ import static cloud.artik.lwm2m.enums.LocationEnum.VELOCITY;
 
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 
 import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
 import org.eclipse.leshan.core.response.ReadResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cloud.artik.lwm2m.enums.LocationEnum;
+import cloud.artik.lwm2m.enums.Lwm2mEnum;
 
 /*
  * This LWM2M Objects provide a range of device related information which can be queried by the LWM2M Server, and a device reboot and factory reset function.
@@ -52,16 +55,18 @@ public abstract class Location extends Resource {
         }
     }
 
+    /*
+     * Sets the position atomically: a concurrent read sees either the previous
+     * or the new position, with its timestamp.
+     */
     public void setLocation(String latitude, String longitude, String altitude,
             String velocity, String uncertainity) {
-        setLatitude(latitude, false);
-        setLongitude(longitude, false);
-        setAltitude(altitude, false);
-        setVelocity(velocity, false);
-        setUncertainity(uncertainity, false);
-        updateResources(LATITUDE.getResourceId(), LONGITUDE.getResourceId(),
-                ALTITUDE.getResourceId(), VELOCITY.getResourceId(),
-                UNCERTAINITY.getResourceId());
+        batch().set(LATITUDE, latitude)
+                .set(LONGITUDE, longitude)
+                .set(ALTITUDE, altitude)
+                .set(VELOCITY, velocity)
+                .set(UNCERTAINITY, uncertainity)
+                .commit();
     }
 
     /*
@@ -149,6 +154,17 @@ public abstract class Location extends Resource {
         return (Date) this.resources.get(TIMESTAMP).getValue();
     }
 
+    /**
+     * The timestamp is published in the same snapshot as the batch.
+     */
+    @Override
+    void commit(Map<Lwm2mEnum, LwM2mResource> staged, boolean fireResourceChange) {
+        if (fireResourceChange) {
+            staged.put(TIMESTAMP, LwM2mSingleResource.newDateResource(TIMESTAMP.getResourceId(), new Date()));
+        }
+        super.commit(staged, fireResourceChange);
+    }
+
     /**
      * Overrides the base class, because the timestamp needs to be shown as an
      * updated resource.
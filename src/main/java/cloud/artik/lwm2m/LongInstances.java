@@ -0,0 +1,128 @@
+package cloud.artik.lwm2m;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mResource;
+
+/**
+ * Instances of a multi-instance integer resource, stored as sorted primitive arrays instead of a boxed
+ * Map&lt;Integer, Long&gt;.
+ * <p>
+ * Setting one instance does not allocate once the instance exists. The LwM2mMultipleResource Leshan needs is
+ * only built on read, and reused until the next change.
+ */
+class LongInstances {
+    private int[] ids = new int[4];
+    private long[] values = new long[4];
+    private int size = 0;
+
+    private LwM2mResource resource = null;
+
+    /**
+     * @return true if the value of the instance changed
+     */
+    synchronized boolean put(int id, long value) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0) {
+            if (values[index] == value) {
+                return false;
+            }
+            values[index] = value;
+        } else {
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            ids[index] = id;
+            values[index] = value;
+            size++;
+        }
+        resource = null;
+        return true;
+    }
+
+    /**
+     * @return true if the instance existed
+     */
+    synchronized boolean remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        resource = null;
+        return true;
+    }
+
+    /**
+     * Replaces all the instances.
+     *
+     * @return true if the instances changed
+     */
+    synchronized boolean setAll(Map<Integer, Long> instances) {
+        if (instances == null) {
+            instances = new TreeMap<Integer, Long>();
+        }
+        Map<Integer, Long> sorted = new TreeMap<Integer, Long>(instances);
+        if (sorted.equals(toMap())) {
+            return false;
+        }
+        size = 0;
+        for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        resource = null;
+        return true;
+    }
+
+    synchronized boolean clear() {
+        if (size == 0) {
+            return false;
+        }
+        size = 0;
+        resource = null;
+        return true;
+    }
+
+    synchronized long get(int id, long defaultValue) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        return index >= 0 ? values[index] : defaultValue;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized Map<Integer, Long> toMap() {
+        Map<Integer, Long> map = new TreeMap<Integer, Long>();
+        for (int i = 0; i < size; i++) {
+            map.put(ids[i], values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * The resource to answer reads with, or null if there is no instance.
+     */
+    synchronized LwM2mResource toResource(int resourceId) {
+        if (size == 0) {
+            return null;
+        }
+        if (resource == null) {
+            resource = LwM2mMultipleResource.newIntegerResource(resourceId, toMap());
+        }
+        return resource;
+    }
+}
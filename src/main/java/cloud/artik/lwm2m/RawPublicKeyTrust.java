@@ -0,0 +1,216 @@
+package cloud.artik.lwm2m;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.auth.RawPublicKeyIdentity;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Raw Public Key mode (RFC 7250) on the DTLS connector Leshan builds.
+ * <p>
+ * Leshan only sets the DTLS identity for the certificate mode, so
+ * {@link #configure(Endpoint, DTLSConnector, KeyConfig)} replaces the configuration of the connector, before
+ * it starts, with one sending the client public key instead of a certificate chain.
+ * <p>
+ * Scandium accepts any raw public key from the server, and sends the request which started a handshake as
+ * soon as it completes. As an interceptor, this class holds back the requests to a server whose session is
+ * not authenticated with the configured key, and opens that session with a GET of /.well-known/core, which
+ * carries nothing of the device: the Register, with the token, only leaves once the key is checked. The
+ * requests held back time out, and Leshan sends them again. Requests and responses from a server which did
+ * not authenticate with the key are dropped, and its connection closed.
+ */
+class RawPublicKeyTrust implements MessageInterceptor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RawPublicKeyTrust.class);
+
+    private static final int DEFAULT_PORT = 5684;
+
+    private final Endpoint endpoint;
+    private final DTLSConnector connector;
+    private final byte[] serverKey;
+
+    // the request opening a session, until it ends
+    private volatile Request opening = null;
+
+    private RawPublicKeyTrust(Endpoint endpoint, DTLSConnector connector, PublicKey serverKey) {
+        this.endpoint = endpoint;
+        this.connector = connector;
+        this.serverKey = serverKey.getEncoded();
+    }
+
+    /**
+     * Switches the connector to the Raw Public Key identity of the given KeyConfig, and adds the interceptor
+     * checking the server key on its endpoint.
+     */
+    static RawPublicKeyTrust configure(Endpoint endpoint, DTLSConnector connector, KeyConfig keyConfig) {
+        if (connector.isRunning()) {
+            throw new IllegalStateException("The DTLS connector is already started");
+        }
+        try {
+            Field field = DTLSConnector.class.getDeclaredField("config");
+            field.setAccessible(true);
+            DtlsConnectorConfig current = (DtlsConnectorConfig) field.get(connector);
+            // the client-only mode of the builder only waives the identity, which is set here
+            DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder(current.getAddress())
+                    .setIdentity(keyConfig.getPrivateKey(), keyConfig.getClientPublicKey())
+                    .setSupportedCipherSuites(withRawPublicKeySuites(current.getSupportedCipherSuites()))
+                    .setClientAuthenticationRequired(current.isClientAuthenticationRequired())
+                    .setRetransmissionTimeout(current.getRetransmissionTimeout())
+                    .setMaxRetransmissions(current.getMaxRetransmissions())
+                    .setOutboundMessageBufferSize(current.getOutboundMessageBufferSize());
+            if (current.getPskStore() != null) {
+                builder.setPskStore(current.getPskStore());
+            }
+            if (current.getTrustStore().length > 0) {
+                builder.setTrustStore(current.getTrustStore());
+            }
+            if (current.getMaxFragmentLengthCode() != null) {
+                builder.setMaxFragmentLengthCode(current.getMaxFragmentLengthCode());
+            }
+            field.set(connector, builder.build());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set the Raw Public Key identity on the DTLS connector", e);
+        }
+        RawPublicKeyTrust trust = new RawPublicKeyTrust(endpoint, connector, keyConfig.getServerPublicKey());
+        endpoint.addInterceptor(trust);
+        return trust;
+    }
+
+    /**
+     * The ECDHE_ECDSA suites of the raw public keys first, then the suites configured.
+     */
+    private static CipherSuite[] withRawPublicKeySuites(CipherSuite[] configured) {
+        List<CipherSuite> suites = new ArrayList<CipherSuite>();
+        suites.add(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CCM_8);
+        suites.add(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256);
+        for (CipherSuite suite : configured) {
+            if (!suites.contains(suite)) {
+                suites.add(suite);
+            }
+        }
+        return suites.toArray(new CipherSuite[suites.size()]);
+    }
+
+    /**
+     * Opens the session with the server of the given URI, waiting up to the timeout for it to authenticate.
+     *
+     * @return true if the server authenticated with the configured key
+     */
+    boolean verify(String serverUri, long timeout) throws InterruptedException {
+        URI uri = URI.create(serverUri);
+        InetSocketAddress peer = new InetSocketAddress(uri.getHost(),
+                uri.getPort() == -1 ? DEFAULT_PORT : uri.getPort());
+        if (peer.isUnresolved()) {
+            return false;
+        }
+        if (isTrusted(peer)) {
+            return true;
+        }
+        Request request = open(peer);
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isTrusted(peer) && connector.getSessionByAddress(peer) == null
+                && System.currentTimeMillis() < deadline) {
+            request.waitForResponse(50);
+        }
+        return isTrusted(peer);
+    }
+
+    /**
+     * Sends the request opening the session with the peer, unless one is already on its way.
+     */
+    private synchronized Request open(InetSocketAddress peer) {
+        Request current = opening;
+        if (current != null && !isDone(current) && peer.getAddress().equals(current.getDestination())
+                && peer.getPort() == current.getDestinationPort()) {
+            return current;
+        }
+        Request request = Request.newGet();
+        request.setDestination(peer.getAddress());
+        request.setDestinationPort(peer.getPort());
+        request.getOptions().setUriPath(ServerFailover.PROBE_PATH);
+        opening = request;
+        endpoint.sendRequest(request);
+        return request;
+    }
+
+    private static boolean isDone(Request request) {
+        return request.getResponse() != null || request.isRejected() || request.isTimedOut()
+                || request.isCanceled();
+    }
+
+    private boolean isTrusted(InetSocketAddress peer) {
+        DTLSSession session = connector.getSessionByAddress(peer);
+        return session != null && session.getPeerIdentity() instanceof RawPublicKeyIdentity
+                && isTrusted(((RawPublicKeyIdentity) session.getPeerIdentity()).getKey());
+    }
+
+    private boolean isTrusted(PublicKey key) {
+        return key != null && Arrays.equals(serverKey, key.getEncoded());
+    }
+
+    private void reject(InetSocketAddress peer, String message) {
+        LOGGER.warn(message + " from " + peer + " not authenticated with the server public key, closing");
+        connector.close(peer);
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        if (ServerFailover.PROBE_PATH.equals(request.getOptions().getUriPathString())) {
+            // opens the session, nothing of the device in it
+            return;
+        }
+        InetAddress address = request.getDestination();
+        InetSocketAddress peer = new InetSocketAddress(address, request.getDestinationPort());
+        if (!isTrusted(peer)) {
+            LOGGER.info("Request to " + peer + " held back until the server authenticates with its key");
+            request.setCanceled(true);
+            open(peer);
+        }
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        if (!(request.getSenderIdentity() instanceof RawPublicKeyIdentity)
+                || !isTrusted(((RawPublicKeyIdentity) request.getSenderIdentity()).getKey())) {
+            request.setCanceled(true);
+            reject(new InetSocketAddress(request.getSource(), request.getSourcePort()), "Request");
+        }
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        InetSocketAddress peer = new InetSocketAddress(response.getSource(), response.getSourcePort());
+        if (!isTrusted(peer)) {
+            response.setCanceled(true);
+            reject(peer, "Response");
+        }
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+    }
+}
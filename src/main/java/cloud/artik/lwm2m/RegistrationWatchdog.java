@@ -0,0 +1,302 @@
+package cloud.artik.lwm2m;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+/**
+ * Keeps the registration alive when the Registration Updates stall.
+ * <p>
+ * Leshan sends the update at 90% of the lifetime, and waits for its response until the CoAP exchange times
+ * out, after the lifetime when the NAT binding of the device expired: the server then drops the device. The
+ * watchdog tracks the last successful register or update, and when the scheduled update did not succeed
+ * within the response timeout, it escalates:
+ * <ol>
+ * <li>a Registration Update of its own,</li>
+ * <li>over DTLS, the same after dropping the session, so that the update starts a new handshake,</li>
+ * <li>a new Register, as Leshan does after an update timeout.</li>
+ * </ol>
+ * Each step gets the response timeout, and fires a WATCHDOG_* event counted by ConnectionMetrics. The
+ * watchdog stops escalating as soon as an update succeeds, its own or the one of Leshan.
+ */
+class RegistrationWatchdog implements ConnectionListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistrationWatchdog.class);
+
+    public final static long DEFAULT_RESPONSE_TIMEOUT = 5000;
+
+    // a single timer for all the clients, the escalations run on the executor of each watchdog
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Registration watchdog timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ConnectionMonitor monitor;
+    private final long defaultLifetime;
+    private final ThreadPoolExecutor executor;
+    private volatile long responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+
+    private LeshanClient client = null;
+    private DTLSConnector connector = null;
+
+    private volatile String serverUri = null;
+    private volatile long lastConfirmed = 0;
+    private ScheduledFuture<?> check = null;
+    private boolean stopped = false;
+
+    /**
+     * @param monitor the monitor of the client, firing the events of the watchdog
+     * @param defaultLifetime the lifetime in seconds, when the Server instance cannot be read
+     */
+    RegistrationWatchdog(ConnectionMonitor monitor, long defaultLifetime) {
+        this.monitor = monitor;
+        this.defaultLifetime = defaultLifetime;
+        // a single thread, so that escalations are serialized; it ends when idle
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Registration watchdog %d"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Attaches the client, and its DTLS connector (null on the TCP bindings).
+     */
+    void attach(LeshanClient client, DTLSConnector connector) {
+        this.client = client;
+        this.connector = connector;
+    }
+
+    void setResponseTimeout(long responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    @Override
+    public void onConnectionEvent(ConnectionEvent event) {
+        switch (event.getType()) {
+        case REGISTRATION_SUCCESS:
+        case UPDATE_SUCCESS:
+            serverUri = event.getServerUri();
+            lastConfirmed = event.getTimestamp();
+            schedule(lifetime() * 900 + responseTimeout);
+            break;
+        case DEREGISTRATION_SUCCESS:
+        case DEREGISTRATION_FAILURE:
+        case DEREGISTRATION_TIMEOUT:
+            cancel();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (stopped) {
+            return;
+        }
+        if (check != null) {
+            check.cancel(false);
+        }
+        check = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        escalate();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching until the next successful registration.
+     */
+    synchronized void cancel() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    void escalate() {
+        long confirmed = lastConfirmed;
+        String registrationId = registrationId();
+        if (registrationId == null) {
+            // Leshan is registering again, its events reschedule the check
+            return;
+        }
+        LOGGER.warn("No successful update for " + (System.currentTimeMillis() - confirmed) / 1000
+                + "s, updating the registration " + registrationId);
+        fire(ConnectionEventType.WATCHDOG_UPDATE, confirmed);
+        if (updated(registrationId, confirmed)) {
+            return;
+        }
+
+        if (rehandshake()) {
+            LOGGER.warn("Update of " + registrationId + " unanswered, updating after a new DTLS handshake");
+            fire(ConnectionEventType.WATCHDOG_REHANDSHAKE, confirmed);
+            if (updated(registrationId, confirmed)) {
+                return;
+            }
+        }
+
+        LOGGER.warn("Update of " + registrationId + " unanswered, registering again");
+        fire(ConnectionEventType.WATCHDOG_REREGISTRATION, confirmed);
+        reregister();
+    }
+
+    /**
+     * True if the registration was confirmed, by this update or meanwhile by Leshan.
+     */
+    private boolean updated(String registrationId, long confirmed) {
+        long start = System.nanoTime();
+        if (update(registrationId)) {
+            // reschedules the check
+            monitor.fire(ConnectionEventType.UPDATE_SUCCESS, (System.nanoTime() - start) / 1000000, serverUri,
+                    registrationId, null, null);
+            return true;
+        }
+        return lastConfirmed != confirmed;
+    }
+
+    private void fire(ConnectionEventType type, long confirmed) {
+        monitor.fire(type, System.currentTimeMillis() - confirmed, serverUri, registrationId(), null, null);
+    }
+
+    String registrationId() {
+        return client == null ? null : client.getRegistrationId();
+    }
+
+    /**
+     * The lifetime of the registration in seconds, from the Server instance which the bootstrap server may
+     * have written.
+     */
+    long lifetime() {
+        if (client != null) {
+            for (LwM2mObjectEnabler enabler : client.getObjectEnablers()) {
+                if (enabler.getId() != LwM2mId.SERVER) {
+                    continue;
+                }
+                LwM2mObject servers = (LwM2mObject) enabler.read(ServerIdentity.SYSTEM,
+                        new ReadRequest(LwM2mId.SERVER)).getContent();
+                for (LwM2mObjectInstance server : servers.getInstances().values()) {
+                    LwM2mResource lifetime = server.getResource(LwM2mId.SRV_LIFETIME);
+                    if (lifetime != null && lifetime.getValue() instanceof Long) {
+                        return (Long) lifetime.getValue();
+                    }
+                }
+            }
+        }
+        return defaultLifetime;
+    }
+
+    /**
+     * Sends a Registration Update without parameters, as Leshan does, and waits for its response.
+     */
+    boolean update(String registrationId) {
+        Endpoint endpoint = endpoint();
+        if (endpoint == null || serverUri == null) {
+            return false;
+        }
+        Request update = new Request(Code.POST, Type.CON);
+        update.setURI(serverUri);
+        // the registration ID is the location path given by the server, e.g. rd/5a3f
+        update.getOptions().setUriPath(registrationId);
+        endpoint.sendRequest(update);
+        try {
+            Response response = update.waitForResponse(responseTimeout);
+            if (response == null) {
+                update.cancel();
+                return false;
+            }
+            if (response.getCode() != ResponseCode.CHANGED) {
+                LOGGER.warn("Registration update rejected: " + response.getCode());
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            update.cancel();
+            return false;
+        }
+    }
+
+    Endpoint endpoint() {
+        return client == null ? null : endpointFor(client, serverUri);
+    }
+
+    /**
+     * The endpoint of the client which talks to the given server.
+     */
+    static Endpoint endpointFor(LeshanClient client, String serverUri) {
+        Collection<Endpoint> endpoints = client.getCoapServer().getEndpoints();
+        if (endpoints.size() == 1) {
+            // TCP bindings
+            return endpoints.iterator().next();
+        }
+        return client.getCoapServer().getEndpoint(serverUri.startsWith("coaps:") ? client.getSecureAddress()
+                : client.getNonSecureAddress());
+    }
+
+    /**
+     * Drops the DTLS session with the server, false if there is none.
+     */
+    boolean rehandshake() {
+        if (connector == null || serverUri == null || !serverUri.startsWith("coaps:")) {
+            return false;
+        }
+        URI uri = URI.create(serverUri);
+        connector.close(new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? 5684 : uri.getPort()));
+        return true;
+    }
+
+    /**
+     * Stops the registration task, without de-registering, and registers again.
+     */
+    void reregister() {
+        if (client != null) {
+            client.start();
+        }
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        cancel();
+        executor.shutdownNow();
+    }
+}
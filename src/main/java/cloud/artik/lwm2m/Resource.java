@@ -1,8 +1,14 @@
 package cloud.artik.lwm2m;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.leshan.client.resource.BaseInstanceEnabler;
 import org.eclipse.leshan.core.node.LwM2mMultipleResource;
@@ -14,16 +20,157 @@ import cloud.artik.lwm2m.enums.Lwm2mEnum;
 /**
  * Base class for Artik Cloud LWM2M Resources
  * 
+ * The resource values are kept in a copy-on-write map: every change publishes a new immutable snapshot,
+ * so reads never lock and never block writers. Use batch() to change several resources atomically.
+ * 
+ * Every write is also counted before and after it happens, so a reader spanning several objects (see
+ * CompositeResource) can tell whether it raced a writer and read again.
+ * 
+ * Frequent samples are better recorded with record(): they are sent in batches through the TelemetryBuffer
+ * of the client rather than one notification each.
+ * 
  * @author Maneesh Sahu
  * 
  */
 abstract class Resource extends BaseInstanceEnabler {
-    protected final Map<Lwm2mEnum, LwM2mResource> resources = new ConcurrentHashMap<Lwm2mEnum, LwM2mResource>();
+    protected final Map<Lwm2mEnum, LwM2mResource> resources = new SnapshotMap();
+
+    private final AtomicLong writesStarted = new AtomicLong();
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    private volatile TelemetryBuffer telemetry = null;
+    private volatile String telemetryBaseName = null;
 
     protected void updateResources(int... resourceIds) {
         fireResourcesChange(resourceIds);
     }
-    
+
+    /**
+     * Starts a batch of changes, published atomically with a single notification on commit.
+     * 
+     * @return ResourceBatch
+     */
+    public ResourceBatch batch() {
+        return new ResourceBatch(this);
+    }
+
+    /**
+     * True for the resources whose value is not kept in the resources map but computed on read, e.g. from
+     * a clock or the instances of a multi-instance resource: they change through their typed setters only,
+     * a value in the map would hide the live one.
+     */
+    boolean isComputed(Lwm2mEnum resource) {
+        return false;
+    }
+
+    /**
+     * The current values, as an immutable snapshot consistent across resources.
+     */
+    protected Map<Lwm2mEnum, LwM2mResource> snapshot() {
+        return ((SnapshotMap) resources).snapshot;
+    }
+
+    /**
+     * Publishes the staged values as one snapshot and notifies, at once, the resources which actually changed.
+     */
+    void commit(Map<Lwm2mEnum, LwM2mResource> staged, boolean fireResourceChange) {
+        int[] changed = publish(staged);
+        if (fireResourceChange && changed.length > 0) {
+            fireResourcesChange(changed);
+        }
+    }
+
+    /**
+     * Publishes the values as one snapshot.
+     * 
+     * @return the ids of the resources whose value changed
+     */
+    int[] publish(Map<Lwm2mEnum, LwM2mResource> values) {
+        List<Lwm2mEnum> changed = ((SnapshotMap) resources).publish(values);
+        int[] resourceIds = new int[changed.size()];
+        for (int i = 0; i < resourceIds.length; i++) {
+            resourceIds[i] = changed.get(i).getResourceId();
+        }
+        return resourceIds;
+    }
+
+    /**
+     * Marks the start of a write not going through the resources map. Must be paired with endWrite().
+     */
+    void beginWrite() {
+        writesStarted.incrementAndGet();
+    }
+
+    void endWrite() {
+        writesFinished.incrementAndGet();
+    }
+
+    /**
+     * The number of writes so far, or -1 while a write is in progress. Values read after this call are
+     * consistent if the version is still the same (see isVersion) once they are all read.
+     */
+    long stableVersion() {
+        long finished = writesFinished.get();
+        long started = writesStarted.get();
+        return started == finished ? started : -1;
+    }
+
+    boolean isVersion(long version) {
+        return writesStarted.get() == version;
+    }
+
+    /**
+     * Sends the recorded values through the given buffer, as resources of the object instance at baseName,
+     * e.g. "/3/0/".
+     */
+    void setTelemetry(TelemetryBuffer telemetry, String baseName) {
+        this.telemetryBaseName = baseName;
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Records a value measured at the given time, in milliseconds since the epoch. The value becomes the
+     * current one without observe notification, and is sent with the other samples in a batch by the
+     * TelemetryBuffer of the client. Without buffer, the observers are notified as by a setter.
+     * 
+     * @throws IllegalArgumentException if the resource is computed on read, e.g. the Current Time or the
+     *         firmware State, and can only change through its setter
+     */
+    public void record(Lwm2mEnum resource, LwM2mResource value, long time) {
+        if (isComputed(resource)) {
+            throw new IllegalArgumentException(resource + " is computed on read, use its setter");
+        }
+        TelemetryBuffer buffer = telemetry;
+        setResourceValue(resource, value, buffer == null);
+        if (buffer != null) {
+            buffer.record(telemetryBaseName, value, time);
+        }
+    }
+
+    public void record(Lwm2mEnum resource, long value) {
+        record(resource, value, System.currentTimeMillis());
+    }
+
+    public void record(Lwm2mEnum resource, long value, long time) {
+        record(resource, LwM2mSingleResource.newIntegerResource(resource.getResourceId(), value), time);
+    }
+
+    public void record(Lwm2mEnum resource, double value) {
+        record(resource, value, System.currentTimeMillis());
+    }
+
+    public void record(Lwm2mEnum resource, double value, long time) {
+        record(resource, LwM2mSingleResource.newFloatResource(resource.getResourceId(), value), time);
+    }
+
+    public void record(Lwm2mEnum resource, String value, long time) {
+        record(resource, LwM2mSingleResource.newStringResource(resource.getResourceId(), value), time);
+    }
+
+    public void record(Lwm2mEnum resource, boolean value, long time) {
+        record(resource, LwM2mSingleResource.newBooleanResource(resource.getResourceId(), value), time);
+    }
+
     protected void setResourceValue(Lwm2mEnum resource, LwM2mResource value, boolean fireResourceChange) {
         this.resources.put(resource, value);
         if (fireResourceChange) {
@@ -72,4 +219,84 @@ abstract class Resource extends BaseInstanceEnabler {
                 resource.getResourceId(), value);
         setResourceValue(resource, rValue, fireResourceChange);
     }
+
+    /**
+     * Copy-on-write map. Reads use the current immutable snapshot without locking, writers are serialized
+     * and each publishes a new snapshot.
+     */
+    private class SnapshotMap extends AbstractMap<Lwm2mEnum, LwM2mResource> {
+        private volatile Map<Lwm2mEnum, LwM2mResource> snapshot = Collections.emptyMap();
+
+        @Override
+        public LwM2mResource get(Object key) {
+            return snapshot.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return snapshot.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return snapshot.size();
+        }
+
+        @Override
+        public Set<Map.Entry<Lwm2mEnum, LwM2mResource>> entrySet() {
+            return snapshot.entrySet();
+        }
+
+        @Override
+        public synchronized LwM2mResource put(Lwm2mEnum key, LwM2mResource value) {
+            Map<Lwm2mEnum, LwM2mResource> copy = new HashMap<Lwm2mEnum, LwM2mResource>(snapshot);
+            LwM2mResource previous = copy.put(key, value);
+            beginWrite();
+            snapshot = Collections.unmodifiableMap(copy);
+            endWrite();
+            return previous;
+        }
+
+        @Override
+        public synchronized LwM2mResource remove(Object key) {
+            if (!snapshot.containsKey(key)) {
+                return null;
+            }
+            Map<Lwm2mEnum, LwM2mResource> copy = new HashMap<Lwm2mEnum, LwM2mResource>(snapshot);
+            LwM2mResource previous = copy.remove(key);
+            beginWrite();
+            snapshot = Collections.unmodifiableMap(copy);
+            endWrite();
+            return previous;
+        }
+
+        @Override
+        public synchronized void clear() {
+            beginWrite();
+            snapshot = Collections.emptyMap();
+            endWrite();
+        }
+
+        /**
+         * Publishes all the values in one snapshot.
+         * 
+         * @return the keys whose value changed
+         */
+        synchronized List<Lwm2mEnum> publish(Map<Lwm2mEnum, LwM2mResource> values) {
+            List<Lwm2mEnum> changed = new ArrayList<Lwm2mEnum>(values.size());
+            Map<Lwm2mEnum, LwM2mResource> copy = new HashMap<Lwm2mEnum, LwM2mResource>(snapshot);
+            for (Map.Entry<Lwm2mEnum, LwM2mResource> entry : values.entrySet()) {
+                LwM2mResource previous = copy.put(entry.getKey(), entry.getValue());
+                if (previous == null || !previous.equals(entry.getValue())) {
+                    changed.add(entry.getKey());
+                }
+            }
+            if (!changed.isEmpty()) {
+                beginWrite();
+                snapshot = Collections.unmodifiableMap(copy);
+                endWrite();
+            }
+            return changed;
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package cloud.artik.lwm2m;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+
+import cloud.artik.lwm2m.enums.Lwm2mEnum;
+
+/**
+ * Stages changes to several resources of an object instance, and publishes them as one atomic snapshot:
+ * a concurrent read sees either none or all of them, and observers get a single notification.
+ * 
+ * <pre>
+ * device.batch()
+ *         .set(DeviceEnum.BATTERY_LEVEL, 80)
+ *         .set(DeviceEnum.MEMORY_FREE, 1024)
+ *         .commit();
+ * </pre>
+ * 
+ * A batch is not thread safe, and is meant to be committed once.
+ */
+public class ResourceBatch {
+    private final Resource owner;
+    private final Map<Lwm2mEnum, LwM2mResource> staged = new LinkedHashMap<Lwm2mEnum, LwM2mResource>();
+
+    ResourceBatch(Resource owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Stages a value.
+     * 
+     * @throws IllegalArgumentException if the resource is computed on read, e.g. the Current Time or the
+     *         Error Code of the Device, and can only change through its setter
+     */
+    public ResourceBatch set(Lwm2mEnum resource, LwM2mResource value) {
+        if (owner.isComputed(resource)) {
+            throw new IllegalArgumentException(resource + " is computed on read, use its setter");
+        }
+        staged.put(resource, value);
+        return this;
+    }
+
+    public ResourceBatch set(Lwm2mEnum resource, String value) {
+        return set(resource, LwM2mSingleResource.newStringResource(resource.getResourceId(), value));
+    }
+
+    public ResourceBatch set(Lwm2mEnum resource, long value) {
+        return set(resource, LwM2mSingleResource.newIntegerResource(resource.getResourceId(), value));
+    }
+
+    public ResourceBatch set(Lwm2mEnum resource, boolean value) {
+        return set(resource, LwM2mSingleResource.newBooleanResource(resource.getResourceId(), value));
+    }
+
+    public ResourceBatch set(Lwm2mEnum resource, Date value) {
+        return set(resource, LwM2mSingleResource.newDateResource(resource.getResourceId(), value));
+    }
+
+    public ResourceBatch set(Lwm2mEnum resource, Map<Integer, Long> value) {
+        return set(resource, LwM2mMultipleResource.newIntegerResource(resource.getResourceId(), value));
+    }
+
+    /**
+     * Number of staged changes.
+     */
+    public int size() {
+        return staged.size();
+    }
+
+    /**
+     * Publishes the staged changes and notifies the resources whose value changed, in a single notification.
+     */
+    public void commit() {
+        commit(true);
+    }
+
+    public void commit(boolean fireResourceChange) {
+        owner.commit(staged, fireResourceChange);
+        staged.clear();
+    }
+}
@@ -0,0 +1,387 @@
+package cloud.artik.lwm2m;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.object.Security;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+/**
+ * Keeps the client registered with the preferred of several LWM2M Servers.
+ * <p>
+ * Leshan registers with a single Device Management server, so the servers share one Security and one Server
+ * instance: failing over rewrites the Server URI of the Security instance and restarts the registration
+ * engine, keeping the LeshanClient, its endpoints and its objects.
+ * <p>
+ * The active server is measured from its registration events. The others are probed with a confirmable GET
+ * of /.well-known/core over the client endpoint (a TCP connect for the TCP bindings): the first probe includes
+ * the handshake, the second one is a plain round trip. Any answer shows the server up, an error or a reset
+ * included. In PSK mode the coaps servers are probed over an endpoint of the probes, with
+ * the identity and key of the device: the PSK store of the client only gives an identity for the address
+ * in the Security instance, so a handshake with any other server would fail.
+ * <p>
+ * The client fails over to the fastest reachable server on a registration or update timeout, on a rejected
+ * registration, and when an exchange is slower than the slow threshold while another server answers at
+ * least twice as fast.
+ */
+class ServerFailover implements ConnectionListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerFailover.class);
+
+    public final static long DEFAULT_SLOW_THRESHOLD = 5000;
+    public final static long DEFAULT_PROBE_TIMEOUT = 2000;
+
+    // path of the probes, which any CoAP server answers (RFC 6690)
+    final static String PROBE_PATH = ".well-known/core";
+
+    // Security Mode of the pre-shared keys
+    private final static long PSK_MODE = 0;
+
+    private final List<ServerStatus> servers;
+    private final ThreadPoolExecutor executor;
+
+    private volatile ServerStatus active;
+    private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+    private volatile long probeTimeout = DEFAULT_PROBE_TIMEOUT;
+
+    private LeshanClient client = null;
+    private Security security = null;
+    // open while the servers are probed in PSK mode
+    private volatile Endpoint pskEndpoint = null;
+
+    ServerFailover(List<String> uris) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("No server configured");
+        }
+        List<ServerStatus> servers = new ArrayList<ServerStatus>(uris.size());
+        for (String uri : uris) {
+            servers.add(new ServerStatus(uri, servers.size()));
+        }
+        this.servers = Collections.unmodifiableList(servers);
+        this.active = servers.get(0);
+        // a single thread, so that failovers are serialized; it ends when idle
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Server failover %d"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Attaches the client and the Security instance the failover rewrites.
+     */
+    void attach(LeshanClient client, Security security) {
+        this.client = client;
+        this.security = security;
+    }
+
+    List<ServerStatus> getServers() {
+        return servers;
+    }
+
+    ServerStatus getActive() {
+        return active;
+    }
+
+    void setSlowThreshold(long slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+    void setProbeTimeout(long probeTimeout) {
+        this.probeTimeout = probeTimeout;
+    }
+
+    /**
+     * Probes all the servers in parallel, and makes the preferred one active. Called before the first
+     * registration, when there is more than one server.
+     */
+    ServerStatus probeAll() {
+        if (servers.size() > 1) {
+            probe(servers);
+            ServerStatus preferred = preferred(null);
+            if (preferred != null) {
+                active = preferred;
+            }
+        }
+        return active;
+    }
+
+    @Override
+    public void onConnectionEvent(ConnectionEvent event) {
+        final ServerStatus server = active;
+        ConnectionEventType type = event.getType();
+        if (type != ConnectionEventType.HANDSHAKE_STARTED && type != ConnectionEventType.HANDSHAKE_COMPLETED
+                && event.getServerUri() != null && !event.getServerUri().equals(server.getFullUri())) {
+            // late event of a server we already left
+            return;
+        }
+        switch (type) {
+        case HANDSHAKE_COMPLETED:
+            server.recordHandshake(event.getDuration());
+            break;
+        case REGISTRATION_SUCCESS:
+        case UPDATE_SUCCESS:
+            server.recordRoundTrip(event.getDuration());
+            if (event.getDuration() > slowThreshold && servers.size() > 1) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        leaveSlow(server);
+                    }
+                });
+            }
+            break;
+        case REGISTRATION_TIMEOUT:
+        case REGISTRATION_FAILURE:
+        case UPDATE_TIMEOUT:
+            server.recordFailure(event.getTimestamp());
+            if (servers.size() > 1) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        failover(server);
+                    }
+                });
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void failover(ServerStatus failed) {
+        if (active != failed) {
+            return;
+        }
+        List<ServerStatus> others = new ArrayList<ServerStatus>(servers);
+        others.remove(failed);
+        probe(others);
+        ServerStatus next = preferred(failed);
+        if (next != null) {
+            LOGGER.warn("Server " + failed.getUri() + " failed, failing over to " + next.getUri());
+            switchTo(next);
+        }
+    }
+
+    private void leaveSlow(ServerStatus slow) {
+        if (active != slow) {
+            return;
+        }
+        List<ServerStatus> others = new ArrayList<ServerStatus>(servers);
+        others.remove(slow);
+        probe(others);
+        ServerStatus next = preferred(slow);
+        if (next != null && next.isReachable() && next.getRoundTripLatency() >= 0
+                && next.getRoundTripLatency() * 2 < slow.getRoundTripLatency()) {
+            LOGGER.info("Server " + slow.getUri() + " is slow (" + slow.getRoundTripLatency() + "ms), moving to "
+                    + next.getUri() + " (" + next.getRoundTripLatency() + "ms)");
+            switchTo(next);
+        }
+    }
+
+    /**
+     * The preferred server other than the excluded one: the reachable server with the lowest round-trip
+     * latency, servers not measured yet coming next in the configured order. When none is reachable, the one
+     * that failed first, so that the client keeps cycling through the servers.
+     */
+    ServerStatus preferred(ServerStatus excluded) {
+        ServerStatus best = null;
+        for (ServerStatus server : servers) {
+            if (server != excluded && server.isReachable() && (best == null || faster(server, best))) {
+                best = server;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        for (ServerStatus server : servers) {
+            if (server != excluded && (best == null || server.getLastFailure() < best.getLastFailure())) {
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    private static boolean faster(ServerStatus server, ServerStatus than) {
+        long latency = server.getRoundTripLatency();
+        long other = than.getRoundTripLatency();
+        if (latency < 0 || other < 0) {
+            return latency >= 0 && other < 0;
+        }
+        return latency < other;
+    }
+
+    private void switchTo(ServerStatus next) {
+        active = next;
+        activate(next);
+    }
+
+    /**
+     * Registers with the given server, without rebuilding the client.
+     */
+    void activate(ServerStatus server) {
+        if (client == null || security == null) {
+            return;
+        }
+        security.write(LwM2mId.SEC_SERVER_URI, LwM2mSingleResource.newStringResource(LwM2mId.SEC_SERVER_URI,
+                server.getUri()));
+        // stops the current registration task, without de-registering, and registers with the new URI
+        client.start();
+    }
+
+    private void probe(List<ServerStatus> targets) {
+        pskEndpoint = openPskEndpoint(targets);
+        if (targets.size() == 1) {
+            try {
+                probe(targets.get(0));
+            } finally {
+                closePskEndpoint();
+            }
+            return;
+        }
+        ExecutorService probes = Executors.newFixedThreadPool(targets.size(),
+                new NamedThreadFactory("Server probe %d"));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final ServerStatus target : targets) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        probe(target);
+                        return null;
+                    }
+                });
+            }
+            probes.invokeAll(tasks, probeTimeout * 3, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            probes.shutdownNow();
+            closePskEndpoint();
+        }
+    }
+
+    /**
+     * An endpoint with the PSK identity and key of the device, if the Security instance is in PSK mode and a
+     * target is a coaps server.
+     */
+    private Endpoint openPskEndpoint(List<ServerStatus> targets) {
+        if (security == null || !Long.valueOf(PSK_MODE).equals(value(LwM2mId.SEC_SECURITY_MODE))) {
+            return null;
+        }
+        boolean secure = false;
+        for (ServerStatus target : targets) {
+            secure |= target.getUri().startsWith("coaps://");
+        }
+        if (!secure) {
+            return null;
+        }
+        String identity = new String((byte[]) value(LwM2mId.SEC_PUBKEY_IDENTITY));
+        DtlsConnectorConfig config = new DtlsConnectorConfig.Builder(new InetSocketAddress(0))
+                .setClientOnly()
+                .setPskStore(new StaticPskStore(identity, (byte[]) value(LwM2mId.SEC_SECRET_KEY)))
+                .build();
+        Endpoint endpoint = new CoapEndpoint(new DTLSConnector(config), NetworkConfig.getStandard());
+        try {
+            endpoint.start();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open the endpoint of the server probes", e);
+            endpoint.destroy();
+            return null;
+        }
+        return endpoint;
+    }
+
+    private void closePskEndpoint() {
+        Endpoint endpoint = pskEndpoint;
+        pskEndpoint = null;
+        if (endpoint != null) {
+            endpoint.destroy();
+        }
+    }
+
+    private Object value(int resourceId) {
+        return ((LwM2mResource) security.read(resourceId).getContent()).getValue();
+    }
+
+    /**
+     * Measures the handshake and round-trip latencies of a server.
+     */
+    void probe(ServerStatus server) {
+        try {
+            URI uri = new URI(server.getUri());
+            long start = System.nanoTime();
+            if (!connect(uri)) {
+                server.recordFailure(System.currentTimeMillis());
+                return;
+            }
+            server.recordHandshake((System.nanoTime() - start) / 1000000);
+            start = System.nanoTime();
+            if (!connect(uri)) {
+                server.recordFailure(System.currentTimeMillis());
+                return;
+            }
+            server.recordRoundTrip((System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            LOGGER.debug("Probe of " + server.getUri() + " failed", e);
+            server.recordFailure(System.currentTimeMillis());
+        }
+    }
+
+    private boolean connect(URI uri) throws IOException, InterruptedException {
+        if (uri.getScheme().endsWith("+tcp")) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), (int) probeTimeout);
+                return true;
+            } finally {
+                socket.close();
+            }
+        }
+        Endpoint endpoint = "coaps".equals(uri.getScheme()) ? pskEndpoint : null;
+        if (endpoint == null && client != null) {
+            endpoint = client.getCoapServer().getEndpoint(
+                    "coaps".equals(uri.getScheme()) ? client.getSecureAddress() : client.getNonSecureAddress());
+        }
+        if (endpoint == null) {
+            return false;
+        }
+        // not a CoAP ping: Californium cannot serialize its empty message
+        Request probe = Request.newGet();
+        probe.setURI(uri);
+        probe.getOptions().setUriPath(PROBE_PATH);
+        endpoint.sendRequest(probe);
+        if (probe.waitForResponse(probeTimeout) == null && !probe.isRejected()) {
+            probe.cancel();
+            return false;
+        }
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+package cloud.artik.lwm2m;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.client.servers.ServerInfo;
+
+/**
+ * Latency and health of one of the LWM2M Servers configured on an ArtikCloudClient.
+ * <p>
+ * Latencies are in milliseconds, -1 until measured. The round-trip latency is smoothed over the last
+ * measurements, so that a single slow exchange does not move the client to another server.
+ */
+public class ServerStatus {
+
+    private final String uri;
+    private final String fullUri;
+    private final int order;
+
+    private volatile long handshakeLatency = -1;
+    private volatile long roundTripLatency = -1;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastFailure = 0;
+
+    ServerStatus(String uri, int order) {
+        this.uri = uri;
+        this.order = order;
+        String fullUri;
+        try {
+            fullUri = ServerInfo.getFullUri(new URI(uri)).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid server URI " + uri, e);
+        }
+        this.fullUri = fullUri;
+    }
+
+    /**
+     * The server URI, e.g. coaps://coaps-api.artik.cloud:5686
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * The server URI with its default port, as reported in the ConnectionEvents.
+     */
+    String getFullUri() {
+        return fullUri;
+    }
+
+    /**
+     * Position of the server in the configured order, 0 for the first one.
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Time of the last first exchange with the server, including the (D)TLS handshake or TCP connection.
+     */
+    public long getHandshakeLatency() {
+        return handshakeLatency;
+    }
+
+    /**
+     * Smoothed round-trip time of the exchanges with the server over an established session.
+     */
+    public long getRoundTripLatency() {
+        return roundTripLatency;
+    }
+
+    /**
+     * Number of timeouts and failures since the last successful exchange.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Time of the last timeout or failure, in milliseconds since the epoch, 0 if none happened.
+     */
+    public long getLastFailure() {
+        return lastFailure;
+    }
+
+    public boolean isReachable() {
+        return consecutiveFailures.get() == 0;
+    }
+
+    void recordHandshake(long latency) {
+        if (latency >= 0) {
+            handshakeLatency = latency;
+        }
+    }
+
+    void recordRoundTrip(long latency) {
+        if (latency >= 0) {
+            long previous = roundTripLatency;
+            roundTripLatency = previous < 0 ? latency : (previous * 3 + latency) / 4;
+        }
+        consecutiveFailures.set(0);
+    }
+
+    void recordFailure(long timestamp) {
+        consecutiveFailures.incrementAndGet();
+        lastFailure = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerStatus [uri=" + uri + ", handshake=" + handshakeLatency + "ms, roundTrip=" + roundTripLatency
+                + "ms, consecutiveFailures=" + consecutiveFailures + "]";
+    }
+}
@@ -0,0 +1,217 @@
+package cloud.artik.lwm2m;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.californium.core.network.Endpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Event loop shared by the coap+tcp and coaps+tcp connections of many ArtikCloudClients.
+ * <p>
+ * Californium gives each TCP endpoint its own event loop, hence a thread per client. Clients configured with
+ * the same TcpTransport instead multiplex their connections on its few I/O threads, with epoll on Linux
+ * (NIO elsewhere). The transport also sets the socket options, and coalesces the writes of a connection
+ * queued during the same pass of its event loop into a single flush.
+ * <p>
+ * The options apply to the connections opened after they are set. The transport is shared, so closing a
+ * client does not shut it down: call {@link #shutdown()} once all its clients are closed.
+ */
+public class TcpTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpTransport.class);
+
+    private static final AttributeKey<AtomicBoolean> FLUSH_PENDING = AttributeKey.valueOf("artikFlushPending");
+
+    private final int ioThreads;
+    private volatile boolean nativeTransport = true;
+    private volatile boolean tcpNoDelay = true;
+    private volatile boolean keepAlive = true;
+    private volatile int connectTimeout = 10000;
+    private volatile int idleTimeout = 0;
+    private volatile int sendBufferSize = 0;
+    private volatile int receiveBufferSize = 0;
+    private volatile boolean flushBatching = true;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private EventLoopGroup group = null;
+    private boolean epoll = false;
+
+    /**
+     * @param ioThreads the number of I/O threads, e.g. the number of cores
+     */
+    public TcpTransport(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Whether to use epoll when available, true by default. Must be called before the first connection.
+     */
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    /**
+     * Disables Nagle's algorithm, true by default: the writes are already coalesced by the transport.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Enables TCP keepalive probes on idle connections, true by default.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Connection timeout in milliseconds, 10 seconds by default.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Time in seconds after which a connection without traffic is closed, 0 (the default) to keep it open.
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Socket send buffer in bytes, 0 (the default) for the default of the system.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Socket receive buffer in bytes, 0 (the default) for the default of the system.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Whether the writes of a connection are flushed together once per pass of the event loop, true by
+     * default. Otherwise each message is flushed on its own.
+     */
+    public void setFlushBatching(boolean flushBatching) {
+        this.flushBatching = flushBatching;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Number of connections currently open.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * True if the I/O threads use epoll.
+     */
+    public synchronized boolean isNative() {
+        return epoll;
+    }
+
+    /**
+     * Replaces the TCP connector Leshan built for the endpoint with one using this transport. The endpoint
+     * must not be started.
+     *
+     * @param sslContext the SSL context for coaps+tcp, null for coap+tcp
+     * @return false if the endpoint is not a TCP endpoint
+     */
+    boolean install(Endpoint endpoint, SSLContext sslContext) {
+        return TcpTransportConnector.install(endpoint, new TcpTransportConnector(this, sslContext));
+    }
+
+    synchronized Bootstrap bootstrap() {
+        if (group == null) {
+            DefaultThreadFactory threads = new DefaultThreadFactory("tcp-transport", true);
+            epoll = nativeTransport && Epoll.isAvailable();
+            group = epoll ? new EpollEventLoopGroup(ioThreads, threads) : new NioEventLoopGroup(ioThreads, threads);
+            LOGGER.info("TCP transport started with " + ioThreads + (epoll ? " epoll" : " NIO") + " threads");
+        }
+        Bootstrap bootstrap = new Bootstrap().group(group)
+                .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                .option(ChannelOption.SO_KEEPALIVE, keepAlive)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+        if (sendBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        return bootstrap;
+    }
+
+    void opened() {
+        connections.incrementAndGet();
+    }
+
+    void closed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Writes a message. With flush batching, the flush runs on the event loop after the writes already
+     * queued, so that they reach the socket together.
+     */
+    void write(final Channel channel, byte[] bytes) {
+        if (!flushBatching) {
+            channel.writeAndFlush(Unpooled.wrappedBuffer(bytes));
+            return;
+        }
+        channel.attr(FLUSH_PENDING).setIfAbsent(new AtomicBoolean());
+        final AtomicBoolean pending = channel.attr(FLUSH_PENDING).get();
+        channel.write(Unpooled.wrappedBuffer(bytes));
+        if (pending.compareAndSet(false, true)) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.set(false);
+                    channel.flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the connections of all the clients and stops the I/O threads.
+     */
+    public synchronized void shutdown() {
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            group = null;
+        }
+    }
+}
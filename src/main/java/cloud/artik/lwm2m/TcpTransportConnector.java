@@ -0,0 +1,202 @@
+package cloud.artik.lwm2m;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.elements.tcp.DatagramFramer;
+import org.eclipse.californium.elements.tcp.DispatchHandler;
+import org.eclipse.californium.elements.tcp.TcpClientConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * Client connector of one endpoint over a shared {@link TcpTransport}: a connection per peer, opened on the
+ * first message, framed and dispatched by the Californium TCP handlers.
+ */
+class TcpTransportConnector implements Connector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpTransportConnector.class);
+
+    private final TcpTransport transport;
+    private final SSLContext sslContext;
+    private final ConcurrentMap<InetSocketAddress, ChannelFuture> connections = new ConcurrentHashMap<InetSocketAddress, ChannelFuture>();
+
+    private volatile RawDataChannel rawDataChannel = null;
+    private volatile boolean running = false;
+
+    TcpTransportConnector(TcpTransport transport, SSLContext sslContext) {
+        this.transport = transport;
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Replaces the TCP connector of an endpoint which is not started. Leshan builds its endpoints itself, and
+     * CoapEndpoint has no setter: the connector and the receiver of its data are moved by reflection.
+     */
+    static boolean install(Endpoint endpoint, TcpTransportConnector connector) {
+        if (!(endpoint instanceof CoapEndpoint)) {
+            return false;
+        }
+        try {
+            Field connectorField = CoapEndpoint.class.getDeclaredField("connector");
+            connectorField.setAccessible(true);
+            Object current = connectorField.get(endpoint);
+            if (!(current instanceof TcpClientConnector)) {
+                return false;
+            }
+            Field receiverField = TcpClientConnector.class.getDeclaredField("rawDataChannel");
+            receiverField.setAccessible(true);
+            connector.setRawDataReceiver((RawDataChannel) receiverField.get(current));
+            connectorField.set(endpoint, connector);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warn("Cannot install the shared TCP transport, the client uses its own: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (rawDataChannel == null) {
+            throw new IllegalStateException("Cannot start without message handler");
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        for (ChannelFuture connection : connections.values()) {
+            connection.channel().close();
+        }
+        connections.clear();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+
+    @Override
+    public void send(final RawData msg) {
+        if (!running) {
+            LOGGER.debug("Connector stopped, dropping message to " + msg.getAddress());
+            return;
+        }
+        connect(new InetSocketAddress(msg.getAddress(), msg.getPort())).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    transport.write(future.channel(), msg.getBytes());
+                } else {
+                    LOGGER.warn("Unable to open connection to " + msg.getAddress() + ":" + msg.getPort(),
+                            future.cause());
+                }
+            }
+        });
+    }
+
+    private synchronized ChannelFuture connect(final InetSocketAddress peer) {
+        ChannelFuture connection = connections.get(peer);
+        if (connection != null && (!connection.isDone() || connection.channel().isActive())) {
+            return connection;
+        }
+        final ChannelFuture created = transport.bootstrap().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) {
+                if (sslContext != null) {
+                    SSLEngine engine = sslContext.createSSLEngine(peer.getHostString(), peer.getPort());
+                    engine.setUseClientMode(true);
+                    // the framer looks the handler up by this name for the peer certificates
+                    channel.pipeline().addFirst("ssl", new SslHandler(engine));
+                }
+                if (transport.getIdleTimeout() > 0) {
+                    channel.pipeline().addLast(new IdleStateHandler(0, 0, transport.getIdleTimeout()));
+                }
+                channel.pipeline().addLast(new DatagramFramer(), new DispatchHandler(rawDataChannel),
+                        new ConnectionHandler());
+            }
+        }).connect(peer);
+        connections.put(peer, created);
+        created.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                connections.remove(peer, created);
+            }
+        });
+        return created;
+    }
+
+    @Override
+    public void setRawDataReceiver(RawDataChannel messageHandler) {
+        if (rawDataChannel != null) {
+            throw new IllegalStateException("Raw data channel already set");
+        }
+        this.rawDataChannel = messageHandler;
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        // connections use ephemeral ports
+        return new InetSocketAddress(0);
+    }
+
+    @Override
+    public boolean isSchemeSupported(String scheme) {
+        return (sslContext == null ? "coap+tcp" : "coaps+tcp").equals(scheme);
+    }
+
+    /**
+     * Counts the connections, and closes them when idle or failing.
+     */
+    private class ConnectionHandler extends ChannelDuplexHandler {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            transport.opened();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            transport.closed();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+            if (event instanceof IdleStateEvent) {
+                LOGGER.debug("Closing idle connection with " + ctx.channel().remoteAddress());
+                ctx.close();
+            } else {
+                super.userEventTriggered(ctx, event);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.warn("Closing connection with " + ctx.channel().remoteAddress() + ": " + cause.getMessage());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package cloud.artik.lwm2m;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.senml.SenMLCbor;
+import cloud.artik.lwm2m.senml.SenMLJson;
+import cloud.artik.lwm2m.senml.SenMLPack;
+
+/**
+ * Buffers timestamped resource values, and sends them to the server in batches with the LwM2M Send
+ * operation: a confirmable POST to /dp carrying a SenML pack.
+ * <p>
+ * Values are recorded with Resource.record(), without observe notification. A batch is sent as soon as it
+ * holds the maximum number of records, or its estimated encoded size reaches the maximum number of bytes, or
+ * its first record is older than the maximum age. The records of a batch share the base name and base time
+ * of SenML, so thousands of samples travel in a few packets.
+ * <p>
+ * Batches are only sent while the client is registered, one at a time. A batch which is not acknowledged is
+ * kept and sent again before the next one; beyond the maximum number of buffered records, the oldest batches
+ * are dropped.
+ */
+public class TelemetryBuffer implements ConnectionListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TelemetryBuffer.class);
+
+    public final static int DEFAULT_MAX_RECORDS = 500;
+    public final static int DEFAULT_MAX_BYTES = 1024;
+    public final static long DEFAULT_MAX_AGE = 60000;
+    public final static int DEFAULT_MAX_BUFFERED = 10000;
+    public final static long DEFAULT_SEND_TIMEOUT = 10000;
+
+    private static final String SEND_PATH = "/dp";
+
+    private volatile int maxRecords = DEFAULT_MAX_RECORDS;
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private volatile int maxBuffered = DEFAULT_MAX_BUFFERED;
+    private volatile long sendTimeout = DEFAULT_SEND_TIMEOUT;
+    private volatile boolean cbor = true;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong sentRecords = new AtomicLong();
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private LeshanClient client = null;
+    private volatile String serverUri = null;
+
+    // the batch being filled, and the ones waiting to be sent
+    private SenMLPack current = new SenMLPack();
+    private int currentBytes = 0;
+    private String lastBaseName = null;
+    private final LinkedList<SenMLPack> ready = new LinkedList<SenMLPack>();
+    private int buffered = 0;
+    private ScheduledFuture<?> ageFlush = null;
+
+    public TelemetryBuffer() {
+        // a single thread sending the batches in order, and timing their age; it ends when idle
+        executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Telemetry %d"));
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Number of records sending a batch. Defaults to 500.
+     */
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Estimated encoded size in bytes sending a batch. Defaults to 1024, a single CoAP block.
+     */
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Time in milliseconds after its first record at which a batch is sent. Defaults to 1 minute.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Number of records kept while they cannot be sent, beyond which the oldest batches are dropped. Defaults
+     * to 10000.
+     */
+    public void setMaxBuffered(int maxBuffered) {
+        this.maxBuffered = maxBuffered;
+    }
+
+    /**
+     * Time in milliseconds to wait for the acknowledgement of a batch. Defaults to 10 seconds.
+     */
+    public void setSendTimeout(long sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    /**
+     * Whether batches are encoded in SenML CBOR (the default), or SenML JSON.
+     */
+    public void setCbor(boolean cbor) {
+        this.cbor = cbor;
+    }
+
+    /**
+     * Number of records acknowledged by the server.
+     */
+    public long getSentRecords() {
+        return sentRecords.get();
+    }
+
+    /**
+     * Number of batches acknowledged by the server.
+     */
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    /**
+     * Number of records dropped, because the buffer was full or the server rejected them.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Number of records waiting to be sent.
+     */
+    public synchronized int getBuffered() {
+        return buffered;
+    }
+
+    void attach(LeshanClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Records the value of a resource of the given object instance, e.g. "/3/0/".
+     */
+    void record(String baseName, LwM2mResource value, long time) {
+        boolean full;
+        synchronized (this) {
+            int records = current.size();
+            current.add(baseName, value, time);
+            currentBytes += estimate(baseName, value);
+            buffered += current.size() - records;
+            lastBaseName = baseName;
+            full = current.size() >= maxRecords || currentBytes >= maxBytes;
+            if (full) {
+                seal();
+            } else if (ageFlush == null && !executor.isShutdown()) {
+                ageFlush = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxAge, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            send();
+        }
+    }
+
+    /**
+     * Rough size of the SenML CBOR records of a value: map and labels, base name when it changes, name,
+     * value and relative time.
+     */
+    private int estimate(String baseName, LwM2mResource value) {
+        int size = 0;
+        if (baseName != null && !baseName.equals(lastBaseName)) {
+            size += baseName.length() + 2;
+        }
+        for (Object item : value.isMultiInstances() ? value.getValues().values()
+                : Collections.singleton(value.getValue())) {
+            size += 14;
+            if (item instanceof String) {
+                size += ((String) item).length();
+            } else if (item instanceof byte[]) {
+                size += ((byte[]) item).length;
+            } else {
+                size += 8;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Closes the batch being filled, which is sent next.
+     */
+    private void seal() {
+        if (ageFlush != null) {
+            ageFlush.cancel(false);
+            ageFlush = null;
+        }
+        if (current.isEmpty()) {
+            return;
+        }
+        ready.add(current);
+        current = new SenMLPack();
+        currentBytes = 0;
+        lastBaseName = null;
+        while (buffered > maxBuffered && ready.size() > 1) {
+            SenMLPack dropped = ready.removeFirst();
+            buffered -= dropped.size();
+            droppedRecords.addAndGet(dropped.size());
+            LOGGER.warn("Telemetry buffer full, dropped " + dropped.size() + " records");
+        }
+    }
+
+    /**
+     * Sends the records buffered so far, without waiting for the thresholds.
+     */
+    public void flush() {
+        synchronized (this) {
+            seal();
+        }
+        send();
+    }
+
+    private void send() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendReady();
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.debug("Telemetry buffer shut down, batch not sent");
+        }
+    }
+
+    /**
+     * Sends the batches ready, in order, until one fails.
+     */
+    private void sendReady() {
+        while (true) {
+            SenMLPack pack;
+            synchronized (this) {
+                pack = ready.peekFirst();
+            }
+            if (pack == null || !send(pack)) {
+                return;
+            }
+            synchronized (this) {
+                if (ready.peekFirst() == pack) {
+                    ready.removeFirst();
+                    buffered -= pack.size();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a batch with a LwM2M Send operation, true once the server acknowledged or rejected it, false to
+     * keep it.
+     */
+    boolean send(SenMLPack pack) {
+        String uri = serverUri;
+        if (client == null || uri == null || client.getRegistrationId() == null) {
+            // sent after the next registration
+            return false;
+        }
+        Endpoint endpoint = RegistrationWatchdog.endpointFor(client, uri);
+        if (endpoint == null) {
+            return false;
+        }
+        Request request = new Request(Code.POST, Type.CON);
+        request.setURI(uri + SEND_PATH);
+        if (cbor) {
+            request.getOptions().setContentFormat(SenMLCbor.CONTENT_FORMAT);
+            request.setPayload(SenMLCbor.encode(pack));
+        } else {
+            request.getOptions().setContentFormat(SenMLJson.CONTENT_FORMAT);
+            request.setPayload(SenMLJson.encode(pack));
+        }
+        endpoint.sendRequest(request);
+        try {
+            Response response = request.waitForResponse(sendTimeout);
+            if (response == null) {
+                request.cancel();
+                LOGGER.warn("Telemetry batch of " + pack.size() + " records not acknowledged, kept");
+                return false;
+            }
+            if (ResponseCode.isServerError(response.getCode())) {
+                LOGGER.warn("Telemetry batch of " + pack.size() + " records failed: " + response.getCode());
+                return false;
+            }
+            if (!ResponseCode.isSuccess(response.getCode())) {
+                // the server will not take it later either
+                LOGGER.warn("Telemetry batch of " + pack.size() + " records rejected: " + response.getCode());
+                droppedRecords.addAndGet(pack.size());
+                return true;
+            }
+            sentRecords.addAndGet(pack.size());
+            sentBatches.incrementAndGet();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.cancel();
+            return false;
+        }
+    }
+
+    @Override
+    public void onConnectionEvent(ConnectionEvent event) {
+        switch (event.getType()) {
+        case REGISTRATION_SUCCESS:
+        case UPDATE_SUCCESS:
+            serverUri = event.getServerUri();
+            boolean waiting;
+            synchronized (this) {
+                waiting = !ready.isEmpty();
+            }
+            if (waiting) {
+                send();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Sends the batches buffered, waiting for them up to the send timeout each, then stops.
+     */
+    void close(boolean flush) {
+        if (flush) {
+            flush();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(flush ? sendTimeout * 2 : 0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+    }
+}
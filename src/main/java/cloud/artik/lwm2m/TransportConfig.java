@@ -0,0 +1,294 @@
+package cloud.artik.lwm2m;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.config.NetworkConfig.Keys;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.californium.LeshanClientBuilder;
+
+/**
+ * CoAP transport settings of an ArtikCloudClient: threads, socket buffers, reliability timers, exchange and
+ * deduplication lifetimes, and message sizes.
+ * <p>
+ * The defaults are the ones of Californium. The presets are starting points for the usual deployments:
+ * <ul>
+ * <li>{@link #embeddedDevice()}: a single client on a constrained device behind a slow or lossy link (e.g.
+ * cellular): one thread per stage, longer ACK timeout, small blocks, and a lazy deduplicator sweep.</li>
+ * <li>{@link #gateway()}: a client on a host with cores and memory to spare, on a fast link: one protocol
+ * thread per core, two network threads each way, large socket buffers, and larger messages.</li>
+ * <li>{@link #fleetSimulator()}: many clients in the same JVM, next to their server: one thread per stage
+ * for each of the clients, and short exchange lifetimes so that the memory of the deduplicators stays low.
+ * </li>
+ * </ul>
+ * The settings apply to the endpoints of the UDP binding (CoAP and CoAP over DTLS), except for the network
+ * threads and the socket buffers, which only apply to plain CoAP: the DTLS connector of Scandium reads its
+ * socket with one thread, writes it with another, and leaves the buffers to the system. Leshan configures the
+ * endpoints of the TCP bindings itself.
+ */
+public class TransportConfig {
+
+    private int protocolThreads;
+    private int receiverThreads;
+    private int senderThreads;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private int ackTimeout;
+    private float ackRandomFactor;
+    private int maxRetransmit;
+    private long exchangeLifetime;
+    private long sweepInterval;
+    private int maxMessageSize;
+    private int preferredBlockSize;
+
+    // NetworkConfig.getStandard() is global: every client is built under this lock, with or without a config
+    static final Object STANDARD_LOCK = new Object();
+
+    /**
+     * A configuration with the defaults of Californium.
+     */
+    public TransportConfig() {
+        NetworkConfig defaults = NetworkConfig.createStandardWithoutFile();
+        this.protocolThreads = defaults.getInt(Keys.PROTOCOL_STAGE_THREAD_COUNT);
+        this.receiverThreads = defaults.getInt(Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT);
+        this.senderThreads = defaults.getInt(Keys.NETWORK_STAGE_SENDER_THREAD_COUNT);
+        this.receiveBufferSize = defaults.getInt(Keys.UDP_CONNECTOR_RECEIVE_BUFFER);
+        this.sendBufferSize = defaults.getInt(Keys.UDP_CONNECTOR_SEND_BUFFER);
+        this.ackTimeout = defaults.getInt(Keys.ACK_TIMEOUT);
+        this.ackRandomFactor = defaults.getFloat(Keys.ACK_RANDOM_FACTOR);
+        this.maxRetransmit = defaults.getInt(Keys.MAX_RETRANSMIT);
+        this.exchangeLifetime = defaults.getLong(Keys.EXCHANGE_LIFETIME);
+        this.sweepInterval = defaults.getLong(Keys.MARK_AND_SWEEP_INTERVAL);
+        this.maxMessageSize = defaults.getInt(Keys.MAX_MESSAGE_SIZE);
+        this.preferredBlockSize = defaults.getInt(Keys.PREFERRED_BLOCK_SIZE);
+    }
+
+    /**
+     * A single client on a constrained device with a slow or lossy uplink.
+     */
+    public static TransportConfig embeddedDevice() {
+        TransportConfig config = new TransportConfig();
+        config.setProtocolThreads(1);
+        config.setReceiverThreads(1);
+        config.setSenderThreads(1);
+        // round trips of seconds: retransmit less eagerly, and keep exchanges as long as RFC 7252 requires
+        config.setAckTimeout(4000);
+        config.setExchangeLifetime(300000);
+        config.setSweepInterval(30000);
+        config.setMaxMessageSize(512);
+        config.setPreferredBlockSize(256);
+        return config;
+    }
+
+    /**
+     * A client on a host with several cores, on a fast link. The network threads and socket buffers only apply
+     * to plain CoAP.
+     */
+    public static TransportConfig gateway() {
+        TransportConfig config = new TransportConfig();
+        config.setProtocolThreads(Runtime.getRuntime().availableProcessors());
+        config.setReceiverThreads(2);
+        config.setSenderThreads(2);
+        config.setReceiveBufferSize(1024 * 1024);
+        config.setSendBufferSize(1024 * 1024);
+        config.setMaxMessageSize(4096);
+        config.setPreferredBlockSize(1024);
+        return config;
+    }
+
+    /**
+     * One of many clients simulated in the same JVM, close to their server.
+     */
+    public static TransportConfig fleetSimulator() {
+        TransportConfig config = new TransportConfig();
+        config.setProtocolThreads(1);
+        config.setReceiverThreads(1);
+        config.setSenderThreads(1);
+        config.setAckTimeout(1000);
+        config.setMaxRetransmit(3);
+        config.setExchangeLifetime(60000);
+        config.setSweepInterval(30000);
+        return config;
+    }
+
+    public int getProtocolThreads() {
+        return protocolThreads;
+    }
+
+    /**
+     * Threads processing the messages of an endpoint through the CoAP stack.
+     */
+    public void setProtocolThreads(int protocolThreads) {
+        this.protocolThreads = protocolThreads;
+    }
+
+    public int getReceiverThreads() {
+        return receiverThreads;
+    }
+
+    /**
+     * Threads reading the socket of the CoAP endpoint. Plain CoAP only, the DTLS connector has one.
+     */
+    public void setReceiverThreads(int receiverThreads) {
+        this.receiverThreads = receiverThreads;
+    }
+
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    /**
+     * Threads writing to the socket of the CoAP endpoint. Plain CoAP only, the DTLS connector has one.
+     */
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Receive buffer of the CoAP socket in bytes, 0 for the default of the system. Plain CoAP only, the DTLS
+     * socket keeps the default of the system.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Send buffer of the CoAP socket in bytes, 0 for the default of the system. Plain CoAP only, the DTLS
+     * socket keeps the default of the system.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getAckTimeout() {
+        return ackTimeout;
+    }
+
+    /**
+     * Initial timeout of a confirmable message in milliseconds, doubled on each retransmission.
+     */
+    public void setAckTimeout(int ackTimeout) {
+        this.ackTimeout = ackTimeout;
+    }
+
+    public float getAckRandomFactor() {
+        return ackRandomFactor;
+    }
+
+    /**
+     * Factor (at least 1) by which the initial timeout is randomly extended, so that clients do not
+     * retransmit in sync.
+     */
+    public void setAckRandomFactor(float ackRandomFactor) {
+        if (ackRandomFactor < 1) {
+            throw new IllegalArgumentException("The ACK random factor must be at least 1");
+        }
+        this.ackRandomFactor = ackRandomFactor;
+    }
+
+    public int getMaxRetransmit() {
+        return maxRetransmit;
+    }
+
+    /**
+     * Retransmissions of a confirmable message before it times out.
+     */
+    public void setMaxRetransmit(int maxRetransmit) {
+        this.maxRetransmit = maxRetransmit;
+    }
+
+    public long getExchangeLifetime() {
+        return exchangeLifetime;
+    }
+
+    /**
+     * Time in milliseconds an exchange is kept to recognize duplicates.
+     */
+    public void setExchangeLifetime(long exchangeLifetime) {
+        this.exchangeLifetime = exchangeLifetime;
+    }
+
+    public long getSweepInterval() {
+        return sweepInterval;
+    }
+
+    /**
+     * Interval in milliseconds between two removals of the expired exchanges by the deduplicator.
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Largest payload in bytes sent or accepted without a block-wise transfer.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getPreferredBlockSize() {
+        return preferredBlockSize;
+    }
+
+    /**
+     * Block size in bytes of the block-wise transfers, a power of two from 16 to 1024.
+     */
+    public void setPreferredBlockSize(int preferredBlockSize) {
+        if (preferredBlockSize < 16 || preferredBlockSize > 1024 || Integer.bitCount(preferredBlockSize) != 1) {
+            throw new IllegalArgumentException("Invalid block size " + preferredBlockSize);
+        }
+        this.preferredBlockSize = preferredBlockSize;
+    }
+
+    NetworkConfig toNetworkConfig() {
+        return NetworkConfig.createStandardWithoutFile()
+                .setInt(Keys.PROTOCOL_STAGE_THREAD_COUNT, protocolThreads)
+                .setInt(Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, receiverThreads)
+                .setInt(Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, senderThreads)
+                .setInt(Keys.UDP_CONNECTOR_RECEIVE_BUFFER, receiveBufferSize)
+                .setInt(Keys.UDP_CONNECTOR_SEND_BUFFER, sendBufferSize)
+                .setInt(Keys.ACK_TIMEOUT, ackTimeout)
+                .setFloat(Keys.ACK_RANDOM_FACTOR, ackRandomFactor)
+                .setInt(Keys.MAX_RETRANSMIT, maxRetransmit)
+                .setLong(Keys.EXCHANGE_LIFETIME, exchangeLifetime)
+                .setLong(Keys.MARK_AND_SWEEP_INTERVAL, sweepInterval)
+                .setInt(Keys.MAX_MESSAGE_SIZE, maxMessageSize)
+                .setInt(Keys.PREFERRED_BLOCK_SIZE, preferredBlockSize);
+    }
+
+    /**
+     * Builds the client with this configuration. The UDP endpoints of Leshan take the standard NetworkConfig,
+     * which is replaced for the time of the build only.
+     */
+    LeshanClient build(LeshanClientBuilder builder) {
+        synchronized (STANDARD_LOCK) {
+            NetworkConfig standard = NetworkConfig.getStandard();
+            NetworkConfig.setStandard(toNetworkConfig());
+            try {
+                return builder.build();
+            } finally {
+                NetworkConfig.setStandard(standard);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransportConfig [protocolThreads=" + protocolThreads + ", receiverThreads=" + receiverThreads
+                + ", senderThreads=" + senderThreads + ", receiveBufferSize=" + receiveBufferSize
+                + ", sendBufferSize=" + sendBufferSize + ", ackTimeout=" + ackTimeout + ", ackRandomFactor="
+                + ackRandomFactor + ", maxRetransmit=" + maxRetransmit + ", exchangeLifetime=" + exchangeLifetime
+                + ", sweepInterval=" + sweepInterval + ", maxMessageSize=" + maxMessageSize
+                + ", preferredBlockSize=" + preferredBlockSize + "]";
+    }
+}
@@ -0,0 +1,45 @@
+package cloud.artik.lwm2m.enums;
+
+/**
+ * Registration life-cycle events reported to a ConnectionListener.
+ * <p>
+ * A DTLS handshake spans up to the establishment of the session. The TCP and TLS connections, and the plain
+ * CoAP endpoint, do not expose their sessions: their handshake is approximated up to the first response, so
+ * it includes the round trip of the first request.
+ * <p>
+ * The provisioning events span from start() to the first successful registration: cold when the client had
+ * to bootstrap, warm otherwise. The watchdog events are the escalation steps of the RegistrationWatchdog,
+ * their duration is the time elapsed since the last successful registration or update.
+ */
+public enum ConnectionEventType {
+    HANDSHAKE_STARTED,          // First request sent to a server without an established (D)TLS session / TCP connection
+    HANDSHAKE_COMPLETED,        // DTLS session established; without DTLS, first response received (round trip included)
+    REGISTRATION_SUCCESS,       // Register request accepted by the server
+    REGISTRATION_FAILURE,       // Register request rejected by the server
+    REGISTRATION_TIMEOUT,       // No response to the Register request
+    UPDATE_SUCCESS,             // Registration Update accepted by the server
+    UPDATE_FAILURE,             // Registration Update rejected by the server
+    UPDATE_TIMEOUT,             // No response to the Registration Update
+    DEREGISTRATION_SUCCESS,     // De-register request accepted by the server
+    DEREGISTRATION_FAILURE,     // De-register request rejected by the server
+    DEREGISTRATION_TIMEOUT,     // No response to the De-register request
+    BOOTSTRAP_SUCCESS,          // Bootstrap Finish received from the bootstrap server
+    BOOTSTRAP_FAILURE,          // Bootstrap request rejected by the bootstrap server
+    BOOTSTRAP_TIMEOUT,          // No response to the Bootstrap request, or no Bootstrap Finish
+    PROVISIONING_COLD,          // First registration after start, through the bootstrap server
+    PROVISIONING_WARM,          // First registration after start, with the configured or cached servers
+    WATCHDOG_UPDATE,            // Registration Update sent by the watchdog, the scheduled one being overdue
+    WATCHDOG_REHANDSHAKE,       // DTLS session dropped by the watchdog, the next update starting a new handshake
+    WATCHDOG_REREGISTRATION     // Register restarted by the watchdog, the updates having failed
+    ;
+
+    public boolean isFailure() {
+        return this == REGISTRATION_FAILURE || this == UPDATE_FAILURE || this == DEREGISTRATION_FAILURE
+                || this == BOOTSTRAP_FAILURE;
+    }
+
+    public boolean isTimeout() {
+        return this == REGISTRATION_TIMEOUT || this == UPDATE_TIMEOUT || this == DEREGISTRATION_TIMEOUT
+                || this == BOOTSTRAP_TIMEOUT;
+    }
+}
@@ -0,0 +1,40 @@
+package cloud.artik.lwm2m.enums;
+
+/**
+ * Algorithms supported to verify a downloaded firmware package.
+ * <p>
+ * The name is the key used in a package URI fragment, e.g. "http://host/fw.bin#sha256=9f86...".
+ */
+public enum DigestAlgorithm {
+    SHA256("sha256", "SHA-256"),    // SHA-256, 32 bytes
+    CRC32("crc32", null)            // CRC-32 (IEEE 802.3), 4 bytes big-endian
+    ;
+
+    private final String name;
+    private final String jcaName;
+
+    private DigestAlgorithm(String name, String jcaName) {
+        this.name = name;
+        this.jcaName = jcaName;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * The MessageDigest algorithm name, or null if the algorithm is a checksum.
+     */
+    public String getJcaName() {
+        return this.jcaName;
+    }
+
+    public static DigestAlgorithm fromName(String name) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+}
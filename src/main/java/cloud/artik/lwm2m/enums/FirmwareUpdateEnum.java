@@ -19,7 +19,9 @@ public enum FirmwareUpdateEnum implements Lwm2mEnum {
                                 // if supported Objects in the LWM2M Client have changed
     UPDATE_RESULT(5),           // Contains the result of downloading or updating the firmware.
     PKG_NAME(6),                // Package Name
-    PKG_VERSION(7)              // Package Version
+    PKG_VERSION(7),             // Package Version
+    BYTES_RECEIVED(100),        // Vendor extension: number of bytes of the package received so far
+    DOWNLOAD_PROGRESS(101)      // Vendor extension: download progress in percent, 0 when the package size is unknown
     ;
 
     private final int resourceId;
@@ -43,6 +45,8 @@ public enum FirmwareUpdateEnum implements Lwm2mEnum {
             case 5: return UPDATE_RESULT;
             case 6: return PKG_NAME;
             case 7: return PKG_VERSION;
+            case 100: return BYTES_RECEIVED;
+            case 101: return DOWNLOAD_PROGRESS;
             default: return null;
         }
     }
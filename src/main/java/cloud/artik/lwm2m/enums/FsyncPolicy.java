@@ -0,0 +1,19 @@
+package cloud.artik.lwm2m.enums;
+
+/**
+ * When firmware staging forces its writes to the storage device.
+ */
+public enum FsyncPolicy {
+    NONE,       // rely on the operating system, a power loss may lose or corrupt the last staged image
+    DATA,       // force the staged image content and the state markers before they are renamed into place
+    ALL         // also force file metadata and the directory entries after each rename
+    ;
+
+    public boolean syncData() {
+        return this != NONE;
+    }
+
+    public boolean syncMetadata() {
+        return this == ALL;
+    }
+}
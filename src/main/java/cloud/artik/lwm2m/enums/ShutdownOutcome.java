@@ -0,0 +1,20 @@
+package cloud.artik.lwm2m.enums;
+
+/**
+ * Outcome of the shutdown of a client by a FleetShutdown.
+ */
+public enum ShutdownOutcome {
+    DEREGISTERED,               // De-register request accepted by the server, then closed
+    NOT_REGISTERED,             // Closed, the client had no registration
+    DEREGISTRATION_FAILED,      // De-register request rejected or unanswered, then closed
+    FORCE_CLOSED,               // Closed without de-registration when the deadline passed
+    ERROR                       // The close failed
+    ;
+
+    /**
+     * True if the server knows the client is gone.
+     */
+    public boolean isConfirmed() {
+        return this == DEREGISTERED || this == NOT_REGISTERED;
+    }
+}
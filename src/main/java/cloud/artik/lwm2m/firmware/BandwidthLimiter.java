@@ -0,0 +1,62 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket capping the rate at which firmware bytes are received.
+ * <p>
+ * One limiter caps the aggregate rate of every download sharing it: the segments of a segmented download,
+ * or several PackageDownloaders of the same process when the same instance is set on each of them.
+ * Up to one second worth of bytes may be received in a burst after an idle period.
+ */
+public class BandwidthLimiter {
+    private final long bytesPerSecond;
+
+    // guarded by this
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond - maximum average rate, must be positive
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Accounts for bytes just received, blocking the calling thread as long as needed to stay under the rate.
+     * The bytes are reserved before waiting, so concurrent segments queue up behind each other's reservations
+     * and share the bandwidth, without waiting on each other's sleep.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            // the debt is paid by the refill while this thread sleeps
+            waitNanos = (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling download");
+        }
+    }
+}
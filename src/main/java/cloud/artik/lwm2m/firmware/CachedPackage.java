@@ -0,0 +1,54 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+
+/**
+ * Outcome of a PackageCache fetch: the download result and, on success, a read-only view of the package.
+ */
+public class CachedPackage {
+    private final FirmwareUpdateResult result;
+    private final File file;
+    private final ByteBuffer buffer;
+
+    CachedPackage(FirmwareUpdateResult result, File file, ByteBuffer buffer) {
+        this.result = result;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * SUCCESS, or the FirmwareUpdateResult describing the download failure.
+     */
+    public FirmwareUpdateResult getResult() {
+        return result;
+    }
+
+    /**
+     * The cached package file, or null if the download failed. The file may be evicted from the cache
+     * once the view is obtained, and a package without digest is not kept at all: use getBuffer() to read
+     * the package.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read-only view of the memory mapped package, with its own position and limit, or null if the download
+     * failed. The mapping stays valid after the package is evicted from the cache.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    public long getSize() {
+        return buffer == null ? -1 : buffer.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return "CachedPackage [result=" + result + ", file=" + file + ", size=" + getSize() + "]";
+    }
+}
@@ -0,0 +1,203 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.exception.ConnectionLostException;
+
+/**
+ * Applies a binary delta package against the current firmware image while the delta is received.
+ * <p>
+ * The delta format is a VCDIFF-like instruction stream, all integers big-endian:
+ * <pre>
+ *   header:  "ADLT" | version (1 byte, 1) | source length (8 bytes) | target length (8 bytes)
+ *   COPY:    0x01 | source offset (8 bytes) | length (4 bytes)   - copy a range of the current firmware
+ *   ADD:     0x02 | length (4 bytes) | length bytes               - append literal bytes
+ *   END:     0x00
+ * </pre>
+ * Memory use is bounded by the buffer size whatever the image size: the current firmware is read with
+ * positional FileChannel reads and the reconstructed image is written sequentially, feeding the
+ * PackageVerifier so that it is checked without a second pass.
+ */
+public class DeltaPatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaPatcher.class);
+
+    public final static byte[] MAGIC = { 'A', 'D', 'L', 'T' };
+    public final static int VERSION = 1;
+
+    public final static int END = 0x00;
+    public final static int COPY = 0x01;
+    public final static int ADD = 0x02;
+
+    private final PackageDownloader downloader;
+    private final File source;
+    private final byte[] buffer;
+
+    DeltaPatcher(PackageDownloader downloader, File source) {
+        this.downloader = downloader;
+        this.source = source;
+        this.buffer = new byte[downloader.bufferSize];
+    }
+
+    /**
+     * Returns true if the stream starts with a delta header. The stream must support mark/reset and is left
+     * at its initial position.
+     */
+    public static boolean isDelta(InputStream in) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        in.mark(MAGIC.length);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+            return Arrays.equals(MAGIC, header);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Reconstructs the image from the delta stream.
+     *
+     * @param delta      - delta stream, positioned at the header
+     * @param out        - receives the reconstructed image
+     * @param verifier   - verifier of the reconstructed image, or null
+     * @param packageUri - for logging
+     * @param deltaLength - size of the delta package for progress reporting, or -1
+     * @return SUCCESS, or the FirmwareUpdateResult describing the failure
+     * @throws ConnectionLostException if the delta stream fails
+     */
+    FirmwareUpdateResult apply(InputStream delta, OutputStream out, PackageVerifier verifier, String packageUri,
+            long deltaLength) throws ConnectionLostException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(source, "r");
+            FileChannel channel = file.getChannel();
+            DataInputStream in = new DataInputStream(delta);
+
+            long sourceLength;
+            long targetLength;
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                int version = in.readUnsignedByte();
+                sourceLength = in.readLong();
+                targetLength = in.readLong();
+                if (!Arrays.equals(MAGIC, magic) || version != VERSION) {
+                    LOGGER.error("Unsupported delta package version " + version);
+                    return FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+                }
+            } catch (IOException e) {
+                throw PackageDownloader.connectionLost(packageUri, e);
+            }
+            if (sourceLength != channel.size()) {
+                LOGGER.error("Delta package expects a " + sourceLength + " bytes firmware, current is "
+                        + channel.size());
+                return FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+            }
+
+            long received = MAGIC.length + 1 + 8 + 8;
+            long written = 0;
+            while (true) {
+                int opcode;
+                long offset = 0;
+                int length;
+                try {
+                    opcode = in.readUnsignedByte();
+                    if (opcode == END) {
+                        break;
+                    } else if (opcode == COPY) {
+                        offset = in.readLong();
+                        length = in.readInt();
+                        received += 13;
+                    } else if (opcode == ADD) {
+                        length = in.readInt();
+                        received += 5;
+                    } else {
+                        LOGGER.error("Invalid delta instruction " + opcode);
+                        return FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+                    }
+                } catch (IOException e) {
+                    throw PackageDownloader.connectionLost(packageUri, e);
+                }
+
+                if (length < 0 || written + length > targetLength
+                        || (opcode == COPY && (offset < 0 || offset + length > sourceLength))) {
+                    LOGGER.error("Delta instruction out of bounds");
+                    return FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+                }
+
+                while (length > 0) {
+                    int chunk = Math.min(length, buffer.length);
+                    if (opcode == COPY) {
+                        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, chunk);
+                        while (bb.hasRemaining()) {
+                            if (channel.read(bb, offset + bb.position()) < 0) {
+                                throw new IOException("Unexpected end of " + source);
+                            }
+                        }
+                        offset += chunk;
+                    } else {
+                        try {
+                            in.readFully(buffer, 0, chunk);
+                            downloader.throttle(chunk);
+                        } catch (IOException e) {
+                            throw PackageDownloader.connectionLost(packageUri, e);
+                        }
+                        received += chunk;
+                    }
+                    try {
+                        out.write(buffer, 0, chunk);
+                    } catch (IOException e) {
+                        LOGGER.error("Cannot write package " + packageUri, e);
+                        return FirmwareUpdateResult.NO_STORAGE;
+                    }
+                    if (verifier != null) {
+                        verifier.update(buffer, 0, chunk);
+                    }
+                    written += chunk;
+                    length -= chunk;
+                    downloader.fireProgress(received, deltaLength);
+                }
+            }
+
+            if (written != targetLength) {
+                LOGGER.error("Delta produced " + written + " bytes, expected " + targetLength);
+                return FirmwareUpdateResult.CRC_CHECK_FAILURE;
+            }
+            if (verifier != null && !verifier.verify()) {
+                LOGGER.error("Patched package " + packageUri + " failed " + verifier.getAlgorithm() + " verification");
+                return FirmwareUpdateResult.CRC_CHECK_FAILURE;
+            }
+            LOGGER.info("Patched " + written + " bytes from a " + received + " bytes delta " + packageUri);
+            return FirmwareUpdateResult.SUCCESS;
+        } catch (IOException e) {
+            LOGGER.error("Cannot read current firmware " + source, e);
+            return FirmwareUpdateResult.FAILED;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to close " + source, e);
+                }
+            }
+        }
+    }
+}
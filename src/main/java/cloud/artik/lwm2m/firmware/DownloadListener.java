@@ -0,0 +1,17 @@
+package cloud.artik.lwm2m.firmware;
+
+/**
+ * Listener notified of the progress of a firmware package download.
+ * <p>
+ * With segmented downloads, it is called concurrently from several download threads.
+ */
+public interface DownloadListener {
+
+    /**
+     * Called after each received chunk.
+     * 
+     * @param bytesReceived total number of bytes received so far
+     * @param totalBytes    size of the package, or -1 if unknown
+     */
+    void onProgress(long bytesReceived, long totalBytes);
+}
@@ -0,0 +1,481 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+import cloud.artik.lwm2m.enums.FsyncPolicy;
+
+/**
+ * Stages downloaded firmware images into A/B update slots, with crash-consistent state markers.
+ * <p>
+ * The directory holds two slots, "slot-a.bin" and "slot-b.bin", an "active" marker naming the slot of the
+ * running firmware (slot a if missing), and a "staging.properties" marker describing the image staged in the
+ * inactive slot. Images are moved into the inactive slot with a rename when the download is on the same file
+ * system, otherwise copied with FileChannel.transferTo. Every marker is written to a temporary file, forced
+ * according to the FsyncPolicy, and atomically renamed, so that after a power loss the markers describe
+ * either the previous or the next state, never a partial one.
+ * <p>
+ * recover() turns the markers back into the FirmwareUpdate state: a staged image is Downloaded again without
+ * being downloaded, and an update interrupted after the slot swap is reported as successful.
+ */
+public class FirmwareStaging {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FirmwareStaging.class);
+
+    public final static String SLOT_A = "a";
+    public final static String SLOT_B = "b";
+
+    private static final String ACTIVE_MARKER = "active";
+    private static final String STATE_MARKER = "staging.properties";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_SLOT = "slot";
+    private static final String KEY_PACKAGE_URI = "packageUri";
+    private static final String KEY_SIZE = "size";
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+
+    /**
+     * @param directory   - holds the slots and the markers, created if needed
+     * @param fsyncPolicy - how writes are forced to the storage device
+     */
+    public FirmwareStaging(File directory, FsyncPolicy fsyncPolicy) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create staging directory " + directory);
+        }
+    }
+
+    public FirmwareStaging(File directory) {
+        this(directory, FsyncPolicy.ALL);
+    }
+
+    /**
+     * A file of the staging directory to download a package into, so that stage(File, String, false) can
+     * rename it into the slot without copying.
+     */
+    public File getDownloadFile() {
+        return new File(directory, "download" + TMP_SUFFIX);
+    }
+
+    public synchronized String getActiveSlotName() {
+        try {
+            String active = readMarker(new File(directory, ACTIVE_MARKER));
+            return SLOT_B.equals(active) ? SLOT_B : SLOT_A;
+        } catch (IOException e) {
+            return SLOT_A;
+        }
+    }
+
+    /**
+     * The slot of the running firmware.
+     */
+    public File getActiveSlot() {
+        return slot(getActiveSlotName());
+    }
+
+    /**
+     * The slot the next image is staged into.
+     */
+    public File getStagedSlot() {
+        return slot(SLOT_A.equals(getActiveSlotName()) ? SLOT_B : SLOT_A);
+    }
+
+    /**
+     * Moves, or copies if keepSource is true, a verified package into the inactive slot and records it as
+     * Downloaded.
+     *
+     * @param source      - the downloaded image
+     * @param packageUri  - recorded in the marker
+     * @param keepSource  - true to copy the source, e.g. when it belongs to another owner
+     * @return SUCCESS, or NO_STORAGE if the image cannot be staged
+     */
+    public synchronized FirmwareUpdateResult stage(File source, String packageUri, boolean keepSource) {
+        File slot = getStagedSlot();
+        File tmp = new File(slot.getPath() + TMP_SUFFIX);
+        try {
+            // the previous staged image is no longer valid once its slot is overwritten
+            deleteMarker();
+            if (keepSource || !rename(source, tmp)) {
+                copy(source, tmp);
+            } else if (fsyncPolicy.syncData()) {
+                force(tmp);
+            }
+            move(tmp, slot);
+            markStaged(slot, packageUri);
+            return FirmwareUpdateResult.SUCCESS;
+        } catch (IOException e) {
+            LOGGER.error("Cannot stage " + source + " into " + slot, e);
+            tmp.delete();
+            return FirmwareUpdateResult.NO_STORAGE;
+        }
+    }
+
+    /**
+     * Writes a verified package held in memory, e.g. the mapped view of a CachedPackage, into the inactive
+     * slot and records it as Downloaded. Unlike its file, the view stays valid if the package is evicted
+     * meanwhile.
+     *
+     * @param image       - the downloaded image, from its position to its limit, left unchanged
+     * @param packageUri  - recorded in the marker
+     * @return SUCCESS, or NO_STORAGE if the image cannot be staged
+     */
+    public synchronized FirmwareUpdateResult stage(ByteBuffer image, String packageUri) {
+        File slot = getStagedSlot();
+        File tmp = new File(slot.getPath() + TMP_SUFFIX);
+        try {
+            deleteMarker();
+            write(tmp, image.duplicate());
+            move(tmp, slot);
+            markStaged(slot, packageUri);
+            return FirmwareUpdateResult.SUCCESS;
+        } catch (IOException e) {
+            LOGGER.error("Cannot stage " + image.remaining() + " bytes into " + slot, e);
+            tmp.delete();
+            return FirmwareUpdateResult.NO_STORAGE;
+        }
+    }
+
+    private void markStaged(File slot, String packageUri) throws IOException {
+        Properties marker = new Properties();
+        marker.setProperty(KEY_STATE, FirmwareUpdateState.DOWNLOADED.name());
+        marker.setProperty(KEY_SLOT, slotName(slot));
+        marker.setProperty(KEY_PACKAGE_URI, packageUri == null ? "" : packageUri);
+        marker.setProperty(KEY_SIZE, String.valueOf(slot.length()));
+        writeStateMarker(marker);
+        LOGGER.info("Staged " + slot.length() + " bytes into " + slot);
+    }
+
+    /**
+     * Records that the staged image is being applied, before executeUpdateFirmware() is called.
+     */
+    public synchronized void markUpdating() throws IOException {
+        Properties marker = readStateMarker();
+        if (marker == null) {
+            throw new IOException("No staged image");
+        }
+        marker.setProperty(KEY_STATE, FirmwareUpdateState.UPDATING.name());
+        writeStateMarker(marker);
+    }
+
+    /**
+     * Records that applying the staged image failed, it stays Downloaded.
+     */
+    public synchronized void markDownloaded() throws IOException {
+        Properties marker = readStateMarker();
+        if (marker != null) {
+            marker.setProperty(KEY_STATE, FirmwareUpdateState.DOWNLOADED.name());
+            writeStateMarker(marker);
+        }
+    }
+
+    /**
+     * Swaps the slots after a successful update: the staged slot becomes the active one, then the staging
+     * marker is removed. A power loss between both steps is recovered as a successful update.
+     */
+    public synchronized void commit() throws IOException {
+        Properties marker = readStateMarker();
+        if (marker == null) {
+            throw new IOException("No staged image");
+        }
+        writeMarker(new File(directory, ACTIVE_MARKER), marker.getProperty(KEY_SLOT));
+        deleteMarker();
+        LOGGER.info("Slot " + marker.getProperty(KEY_SLOT) + " is now active");
+    }
+
+    /**
+     * Drops the staged image, e.g. when the server resets the state machine.
+     */
+    public synchronized void discard() {
+        try {
+            deleteMarker();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot remove staging marker", e);
+        }
+        getStagedSlot().delete();
+    }
+
+    /**
+     * The Package URI of the staged image, or null if none is staged.
+     */
+    public synchronized String getStagedPackageUri() {
+        Properties marker = readStateMarkerQuietly();
+        return marker == null ? null : marker.getProperty(KEY_PACKAGE_URI);
+    }
+
+    /**
+     * Restores the state after a restart from the markers, cleaning up what a power loss left behind.
+     *
+     * @return the state and result the FirmwareUpdate object resumes with
+     */
+    public synchronized Recovery recover() {
+        new File(directory, ACTIVE_MARKER + TMP_SUFFIX).delete();
+        new File(directory, STATE_MARKER + TMP_SUFFIX).delete();
+        new File(directory, "slot-" + SLOT_A + ".bin" + TMP_SUFFIX).delete();
+        new File(directory, "slot-" + SLOT_B + ".bin" + TMP_SUFFIX).delete();
+        getDownloadFile().delete();
+
+        Properties marker = readStateMarkerQuietly();
+        if (marker == null) {
+            return new Recovery(FirmwareUpdateState.IDLE, FirmwareUpdateResult.DEFAULT, null);
+        }
+        String slotName = marker.getProperty(KEY_SLOT);
+        String packageUri = marker.getProperty(KEY_PACKAGE_URI);
+        File slot = slot(slotName);
+
+        if (slotName.equals(getActiveSlotName())) {
+            // the slots were swapped before the power loss, only the marker removal is missing
+            LOGGER.info("Update to slot " + slotName + " completed before restart");
+            discardMarker();
+            return new Recovery(FirmwareUpdateState.IDLE, FirmwareUpdateResult.SUCCESS, packageUri);
+        }
+        if (!slot.isFile() || slot.length() != Long.parseLong(marker.getProperty(KEY_SIZE, "-1"))) {
+            LOGGER.warn("Staged image " + slot + " is missing or incomplete");
+            discardMarker();
+            return new Recovery(FirmwareUpdateState.IDLE, FirmwareUpdateResult.DEFAULT, null);
+        }
+        if (FirmwareUpdateState.UPDATING.name().equals(marker.getProperty(KEY_STATE))) {
+            LOGGER.warn("Update from slot " + slotName + " interrupted before completion");
+            try {
+                markDownloaded();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot update staging marker", e);
+            }
+            return new Recovery(FirmwareUpdateState.DOWNLOADED, FirmwareUpdateResult.FAILED, packageUri);
+        }
+        LOGGER.info("Resuming with staged image " + slot);
+        return new Recovery(FirmwareUpdateState.DOWNLOADED, FirmwareUpdateResult.DEFAULT, packageUri);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    private File slot(String name) {
+        return new File(directory, "slot-" + name + ".bin");
+    }
+
+    private String slotName(File slot) {
+        return slot.equals(slot(SLOT_A)) ? SLOT_A : SLOT_B;
+    }
+
+    private boolean rename(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            // different file systems
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void copy(File source, File target) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                outChannel.truncate(0);
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+                if (fsyncPolicy.syncData()) {
+                    outChannel.force(fsyncPolicy.syncMetadata());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Renames into place, then makes the rename durable.
+     */
+    private void move(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if (fsyncPolicy.syncMetadata()) {
+            forceDirectory();
+        }
+    }
+
+    private void force(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(fsyncPolicy.syncMetadata());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void forceDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // not supported on every platform, e.g. Windows
+            LOGGER.debug("Cannot force directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void writeMarker(File marker, String content) throws IOException {
+        writeMarker(marker, content.getBytes("UTF-8"));
+    }
+
+    private void writeMarker(File marker, byte[] content) throws IOException {
+        File tmp = new File(marker.getPath() + TMP_SUFFIX);
+        write(tmp, ByteBuffer.wrap(content));
+        move(tmp, marker);
+    }
+
+    private void write(File file, ByteBuffer buffer) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsyncPolicy.syncData()) {
+                channel.force(fsyncPolicy.syncMetadata());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private String readMarker(File marker) throws IOException {
+        InputStream in = new FileInputStream(marker);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), "UTF-8").trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeStateMarker(Properties marker) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marker.store(out, "Firmware staging state");
+        writeMarker(new File(directory, STATE_MARKER), out.toByteArray());
+    }
+
+    private Properties readStateMarker() throws IOException {
+        File file = new File(directory, STATE_MARKER);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties marker = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            marker.load(in);
+        } finally {
+            in.close();
+        }
+        if (marker.getProperty(KEY_SLOT) == null || marker.getProperty(KEY_STATE) == null) {
+            throw new IOException("Invalid staging marker " + file);
+        }
+        return marker;
+    }
+
+    private Properties readStateMarkerQuietly() {
+        try {
+            return readStateMarker();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read staging marker: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void deleteMarker() throws IOException {
+        File marker = new File(directory, STATE_MARKER);
+        if (marker.exists()) {
+            Files.delete(marker.toPath());
+            if (fsyncPolicy.syncMetadata()) {
+                forceDirectory();
+            }
+        }
+    }
+
+    private void discardMarker() {
+        try {
+            deleteMarker();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot remove staging marker", e);
+        }
+    }
+
+    /**
+     * State and result the FirmwareUpdate object resumes with after a restart.
+     */
+    public static class Recovery {
+        private final FirmwareUpdateState state;
+        private final FirmwareUpdateResult result;
+        private final String packageUri;
+
+        Recovery(FirmwareUpdateState state, FirmwareUpdateResult result, String packageUri) {
+            this.state = state;
+            this.result = result;
+            this.packageUri = packageUri;
+        }
+
+        public FirmwareUpdateState getState() {
+            return state;
+        }
+
+        public FirmwareUpdateResult getResult() {
+            return result;
+        }
+
+        /**
+         * Package URI of the staged or just installed image, or null.
+         */
+        public String getPackageUri() {
+            return packageUri;
+        }
+
+        @Override
+        public String toString() {
+            return "Recovery [state=" + state + ", result=" + result + ", packageUri=" + packageUri + "]";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cloud.artik.lwm2m.firmware;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+
+/**
+ * The State and Update Result of the Firmware Update object, as one immutable value swapped atomically.
+ * <p>
+ * Each transition creates a new instance, so a download or update thread can compare-and-set against the
+ * exact status it installed: once the state machine was reset or moved on, its late result is rejected.
+ */
+public final class FirmwareUpdateStatus {
+    public final static FirmwareUpdateStatus INITIAL = new FirmwareUpdateStatus(FirmwareUpdateState.IDLE,
+            FirmwareUpdateResult.DEFAULT);
+
+    private final FirmwareUpdateState state;
+    private final FirmwareUpdateResult result;
+
+    public FirmwareUpdateStatus(FirmwareUpdateState state, FirmwareUpdateResult result) {
+        if (state == null || result == null) {
+            throw new NullPointerException("State and result are mandatory");
+        }
+        this.state = state;
+        this.result = result;
+    }
+
+    public FirmwareUpdateState getState() {
+        return state;
+    }
+
+    public FirmwareUpdateResult getResult() {
+        return result;
+    }
+
+    /**
+     * Whether the state machine allows moving from this status to the given state:
+     * <ul>
+     * <li>Idle to Downloading, or Idle again on reset</li>
+     * <li>Downloading to Downloaded, or to Idle on failure or reset</li>
+     * <li>Downloaded to Updating, to Downloading for a new package, or to Idle on reset</li>
+     * <li>Updating to Idle on success, or back to Downloaded on failure</li>
+     * </ul>
+     */
+    public boolean canMoveTo(FirmwareUpdateState next) {
+        switch (state) {
+        case IDLE:
+            return next == FirmwareUpdateState.IDLE || next == FirmwareUpdateState.DOWNLOADING;
+        case DOWNLOADING:
+            return next == FirmwareUpdateState.DOWNLOADED || next == FirmwareUpdateState.IDLE;
+        case DOWNLOADED:
+            return next != FirmwareUpdateState.DOWNLOADED;
+        case UPDATING:
+            return next == FirmwareUpdateState.IDLE || next == FirmwareUpdateState.DOWNLOADED;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Whether the result is possible in this state: Downloading and Updating always report the default
+     * result, and a successful update only ends in Idle.
+     */
+    public boolean isConsistent() {
+        switch (state) {
+        case DOWNLOADING:
+        case UPDATING:
+            return result == FirmwareUpdateResult.DEFAULT;
+        case DOWNLOADED:
+            return result != FirmwareUpdateResult.SUCCESS;
+        default:
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return state + "/" + result;
+    }
+}
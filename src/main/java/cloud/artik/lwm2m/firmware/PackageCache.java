@@ -0,0 +1,297 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.leshan.util.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.exception.ConnectionLostException;
+
+/**
+ * Process-wide cache of firmware packages, shared by the FirmwareUpdate objects of every device of a
+ * fleet host or gateway, so that a campaign downloads each package once.
+ * <p>
+ * Packages are keyed by their location and expected digest (and by the current firmware delta packages are
+ * applied to), and stored under the SHA-256 of that key. Concurrent fetches of the same key share a single
+ * download. Packages are evicted in least recently used order once the cache exceeds its disk budget; a
+ * package larger than the budget is still kept until the next package is cached.
+ * <p>
+ * Packages are only renamed into the cache once completely downloaded and verified, so the packages found in
+ * the directory are reused after a restart.
+ * <p>
+ * Only packages with an expected digest, from the Package URI fragment or set on the PackageDownloader, are
+ * kept: a new image published at the same location (e.g. /latest.bin) would otherwise be served stale. The
+ * concurrent fetches of a package without digest still share its download, but the next fetch downloads it
+ * again.
+ */
+public class PackageCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackageCache.class);
+
+    private static final String SUFFIX = ".bin";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final File directory;
+    private final long maxBytes;
+
+    private final ConcurrentHashMap<String, FutureTask<CachedPackage>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<CachedPackage>>();
+
+    // guarded by this, file name to package size in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Constructor. Packages already in the directory are added to the cache, oldest first.
+     *
+     * @param directory - where packages are stored, created if needed
+     * @param maxBytes  - disk budget in bytes
+     */
+    public PackageCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+                file.delete();
+            } else if (file.getName().endsWith(SUFFIX)) {
+                entries.put(file.getName(), file.length());
+                size += file.length();
+            }
+        }
+        evict(null);
+    }
+
+    /**
+     * Returns the package, downloading it with the given downloader unless it is cached or being downloaded
+     * for another device. A package without expected digest is never served from the disk.
+     *
+     * @param packageUri      - URI of the package, optionally with a digest fragment (see PackageVerifier)
+     * @param downloader      - used if the package must be downloaded
+     * @param currentFirmware - current firmware image delta packages apply to, or null
+     * @return the CachedPackage, holding the FirmwareUpdateResult of the download
+     * @throws ConnectionLostException if the connection is lost while downloading
+     */
+    public CachedPackage fetch(final String packageUri, final PackageDownloader downloader,
+            final File currentFirmware) throws ConnectionLostException {
+        final String name;
+        try {
+            name = fileName(packageUri, downloader, currentFirmware);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid package URI " + packageUri, e);
+            return new CachedPackage(FirmwareUpdateResult.INVALID_URI, null, null);
+        }
+
+        final boolean kept = downloader.getVerifier(packageUri) != null;
+        CachedPackage cached = kept ? lookup(name) : null;
+        if (cached != null) {
+            LOGGER.info("Package " + packageUri + " served from cache");
+            downloader.fireProgress(cached.getSize(), cached.getSize());
+            return cached;
+        }
+
+        FutureTask<CachedPackage> task = new FutureTask<CachedPackage>(new Callable<CachedPackage>() {
+            @Override
+            public CachedPackage call() throws Exception {
+                return download(name, packageUri, downloader, currentFirmware, kept);
+            }
+        });
+        FutureTask<CachedPackage> existing = inFlight.putIfAbsent(name, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(name);
+            }
+        } else {
+            LOGGER.info("Waiting for the download of " + packageUri + " in progress for another device");
+            task = existing;
+        }
+
+        try {
+            CachedPackage result = task.get();
+            if (existing != null && result.getResult() == FirmwareUpdateResult.SUCCESS) {
+                downloader.fireProgress(result.getSize(), result.getSize());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionLostException("Interrupted waiting for " + packageUri);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectionLostException) {
+                throw (ConnectionLostException) e.getCause();
+            }
+            LOGGER.error("Error downloading package " + packageUri, e.getCause());
+            return new CachedPackage(FirmwareUpdateResult.FAILED, null, null);
+        }
+    }
+
+    private CachedPackage download(String name, String packageUri, PackageDownloader downloader,
+            File currentFirmware, boolean kept) throws ConnectionLostException, IOException {
+        // another device may have completed it between the lookup and the registration of the download
+        CachedPackage cached = kept ? lookup(name) : null;
+        if (cached != null) {
+            return cached;
+        }
+
+        File partial = new File(directory, name + PARTIAL_SUFFIX);
+        FirmwareUpdateResult result = downloader.download(packageUri, partial, currentFirmware);
+        if (result != FirmwareUpdateResult.SUCCESS) {
+            partial.delete();
+            return new CachedPackage(result, null, null);
+        }
+        if (!kept) {
+            LOGGER.info("Package " + packageUri + " has no digest, not kept in the cache");
+            try {
+                // the mapping stays valid once the file is deleted
+                return map(partial, FirmwareUpdateResult.SUCCESS);
+            } finally {
+                partial.delete();
+            }
+        }
+
+        File file = new File(directory, name);
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            Long previous = entries.put(name, file.length());
+            size += file.length() - (previous == null ? 0 : previous);
+            evict(name);
+        }
+        return map(file, FirmwareUpdateResult.SUCCESS);
+    }
+
+    private CachedPackage lookup(String name) {
+        File file = new File(directory, name);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+        }
+        try {
+            return map(file, FirmwareUpdateResult.SUCCESS);
+        } catch (IOException e) {
+            // evicted meanwhile, or removed from the disk
+            LOGGER.warn("Cannot map cached package " + file + ": " + e.getMessage());
+            remove(name);
+            return null;
+        }
+    }
+
+    private static CachedPackage map(File file, FirmwareUpdateResult result) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CachedPackage(result, file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Evicts least recently used packages until the cache fits its budget, never evicting the given one.
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            size -= entry.getValue();
+            File file = new File(directory, entry.getKey());
+            if (!file.delete()) {
+                LOGGER.warn("Cannot delete evicted package " + file);
+            }
+            LOGGER.info("Evicted package " + file + " (" + entry.getValue() + " bytes)");
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long removed = entries.remove(name);
+        if (removed != null) {
+            size -= removed;
+        }
+    }
+
+    /**
+     * Removes every package from the cache.
+     */
+    public synchronized void clear() {
+        for (String name : entries.keySet()) {
+            new File(directory, name).delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Name of the cached file: hash of the location, expected digest and current firmware for deltas.
+     */
+    private static String fileName(String packageUri, PackageDownloader downloader, File currentFirmware) {
+        StringBuilder key = new StringBuilder(PackageVerifier.stripFragment(packageUri));
+        PackageVerifier verifier = downloader.getVerifier(packageUri);
+        if (verifier != null) {
+            key.append('#').append(verifier);
+        }
+        if (currentFirmware != null) {
+            key.append('|').append(currentFirmware.getAbsolutePath()).append('|')
+                    .append(currentFirmware.lastModified());
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(digest.digest(key.toString().getBytes("UTF-8"))) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.DigestAlgorithm;
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.exception.ConnectionLostException;
+
+/**
+ * Downloads a firmware package from its Package URI into a file.
+ * <p>
+ * When an expected digest is known, either from the URI fragment (see PackageVerifier) or set explicitly
+ * from a manifest, the digest is computed over each chunk as it is received and a mismatch is reported
+ * as CRC_CHECK_FAILURE, without a second pass over the file.
+ * <p>
+ * With more than one connection configured, and when the HTTP server honours byte ranges, the package
+ * is split into segments downloaded concurrently (see SegmentedDownload). Otherwise a single stream is used.
+ * <p>
+ * A BandwidthLimiter caps the download rate, so that firmware traffic does not starve telemetry on a
+ * shared uplink.
+ */
+public class PackageDownloader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackageDownloader.class);
+
+    public final static int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    public final static int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public final static int DEFAULT_READ_TIMEOUT = 60000;
+    public final static long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    public final static int DEFAULT_MAX_RETRIES = 3;
+
+    protected int bufferSize = DEFAULT_BUFFER_SIZE;
+    protected int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    protected int readTimeout = DEFAULT_READ_TIMEOUT;
+    protected int connections = 1;
+    protected long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    protected int maxRetries = DEFAULT_MAX_RETRIES;
+    protected PackageVerifier expectedDigest = null;
+    protected DownloadListener downloadListener = null;
+    protected BandwidthLimiter bandwidthLimiter = null;
+
+    /**
+     * Downloads the package into the target file.
+     *
+     * @param packageUri - URI of the package, optionally with a "#sha256=" or "#crc32=" digest fragment.
+     * @param target     - File receiving the package. It is deleted unless the download succeeds.
+     * @return SUCCESS, or the FirmwareUpdateResult describing the failure
+     * @throws ConnectionLostException if the connection is lost while downloading
+     */
+    public FirmwareUpdateResult download(String packageUri, File target) throws ConnectionLostException {
+        return download(packageUri, target, null);
+    }
+
+    /**
+     * Downloads the package into the target file. If the package is a delta (see DeltaPatcher), it is
+     * applied while received against the current firmware image, and the digest is verified over the
+     * reconstructed image.
+     *
+     * @param packageUri      - URI of the package, optionally with a "#sha256=" or "#crc32=" digest fragment.
+     * @param target          - File receiving the package. It is deleted unless the download succeeds.
+     * @param currentFirmware - Current firmware image delta packages apply to, or null if deltas are not supported.
+     * @return SUCCESS, or the FirmwareUpdateResult describing the failure
+     * @throws ConnectionLostException if the connection is lost while downloading
+     */
+    public FirmwareUpdateResult download(String packageUri, File target, File currentFirmware)
+            throws ConnectionLostException {
+        PackageVerifier verifier;
+        URLConnection connection;
+        try {
+            verifier = getVerifier(packageUri);
+            String location = PackageVerifier.stripFragment(packageUri);
+            if (connections > 1) {
+                long length = getRangeLength(location);
+                if (length >= 2 * minSegmentSize) {
+                    if (!isDelta(location)) {
+                        return new SegmentedDownload(this, location, length, target, verifier).run();
+                    }
+                    if (currentFirmware == null) {
+                        LOGGER.error("Delta package " + packageUri
+                                + " received but no current firmware is available");
+                        return FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+                    }
+                    // deltas are applied as a single stream
+                }
+            }
+            connection = openConnection(location);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid package URI " + packageUri, e);
+            return FirmwareUpdateResult.INVALID_URI;
+        } catch (MalformedURLException e) {
+            LOGGER.error("Invalid package URI " + packageUri, e);
+            return FirmwareUpdateResult.INVALID_URI;
+        } catch (IOException e) {
+            throw connectionLost(packageUri, e);
+        }
+
+        InputStream in = null;
+        try {
+            try {
+                in = new BufferedInputStream(connection.getInputStream(), bufferSize);
+            } catch (FileNotFoundException e) {
+                LOGGER.error("Package not found " + packageUri, e);
+                return FirmwareUpdateResult.INVALID_URI;
+            } catch (IOException e) {
+                throw connectionLost(packageUri, e);
+            }
+
+            OutputStream out;
+            try {
+                out = new FileOutputStream(target);
+            } catch (IOException e) {
+                LOGGER.error("Cannot create " + target, e);
+                return FirmwareUpdateResult.NO_STORAGE;
+            }
+            FirmwareUpdateResult result = null;
+            try {
+                boolean delta;
+                try {
+                    delta = DeltaPatcher.isDelta(in);
+                } catch (IOException e) {
+                    throw connectionLost(packageUri, e);
+                }
+                if (!delta) {
+                    result = transfer(in, out, verifier, packageUri, connection.getContentLengthLong());
+                } else if (currentFirmware == null) {
+                    LOGGER.error("Delta package " + packageUri + " received but no current firmware is available");
+                    result = FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE;
+                } else {
+                    result = new DeltaPatcher(this, currentFirmware).apply(in, out, verifier, packageUri,
+                            connection.getContentLengthLong());
+                }
+                return result;
+            } finally {
+                closeQuietly(out);
+                // a partial image is never left behind, whether the download failed or threw
+                if (result != FirmwareUpdateResult.SUCCESS) {
+                    target.delete();
+                }
+            }
+        } finally {
+            closeQuietly(in);
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    private FirmwareUpdateResult transfer(InputStream in, OutputStream out, PackageVerifier verifier,
+            String packageUri, long length) throws ConnectionLostException {
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        while (true) {
+            int read;
+            try {
+                read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                throttle(read);
+            } catch (IOException e) {
+                throw connectionLost(packageUri, e);
+            }
+            try {
+                out.write(buffer, 0, read);
+            } catch (IOException e) {
+                LOGGER.error("Cannot write package " + packageUri, e);
+                return FirmwareUpdateResult.NO_STORAGE;
+            }
+            if (verifier != null) {
+                verifier.update(buffer, 0, read);
+            }
+            total += read;
+            fireProgress(total, length);
+        }
+        if (length >= 0 && total != length) {
+            // the connection closed before the end of the package
+            throw connectionLost(packageUri, new EOFException("Received " + total + " of " + length + " bytes"));
+        }
+
+        if (verifier != null && !verifier.verify()) {
+            LOGGER.error("Package " + packageUri + " failed " + verifier.getAlgorithm() + " verification");
+            return FirmwareUpdateResult.CRC_CHECK_FAILURE;
+        }
+        LOGGER.info("Downloaded " + total + " bytes from " + packageUri);
+        return FirmwareUpdateResult.SUCCESS;
+    }
+
+    protected URLConnection openConnection(String packageUri) throws IOException {
+        URLConnection connection = new URL(packageUri).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        return connection;
+    }
+
+    /**
+     * Returns the package size if the server accepts byte range requests for it, -1 otherwise.
+     */
+    protected long getRangeLength(String location) {
+        HttpURLConnection connection = null;
+        try {
+            URLConnection urlConnection = openConnection(location);
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                return -1;
+            }
+            connection = (HttpURLConnection) urlConnection;
+            connection.setRequestMethod("HEAD");
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+                    || !"bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) {
+                return -1;
+            }
+            return connection.getContentLengthLong();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot probe range support of " + location + ": " + e.getMessage());
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the package at this location starts with a delta header.
+     */
+    protected boolean isDelta(String location) {
+        URLConnection connection = null;
+        try {
+            connection = openConnection(location);
+            connection.setRequestProperty("Range", "bytes=0-" + (DeltaPatcher.MAGIC.length - 1));
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            try {
+                return DeltaPatcher.isDelta(in);
+            } finally {
+                closeQuietly(in);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot probe package type of " + location + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    void throttle(int bytes) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            // e.g. the download was reset by the server
+            throw new InterruptedIOException("Download interrupted");
+        }
+        BandwidthLimiter limiter = bandwidthLimiter;
+        if (limiter != null) {
+            limiter.acquire(bytes);
+        }
+    }
+
+    void fireProgress(long bytesReceived, long totalBytes) {
+        DownloadListener listener = downloadListener;
+        if (listener != null) {
+            listener.onProgress(bytesReceived, totalBytes);
+        }
+    }
+
+    /**
+     * The explicitly expected digest takes precedence over the one of the URI fragment.
+     */
+    protected PackageVerifier getVerifier(String packageUri) {
+        if (expectedDigest != null) {
+            return new PackageVerifier(expectedDigest.getAlgorithm(), expectedDigest.getExpected());
+        }
+        return PackageVerifier.fromUri(packageUri);
+    }
+
+    /**
+     * Sets the digest the next packages must match, e.g. from a manifest. Pass null to rely on the
+     * Package URI fragment only.
+     */
+    public void setExpectedDigest(DigestAlgorithm algorithm, byte[] digest) {
+        this.expectedDigest = (algorithm == null || digest == null) ? null : new PackageVerifier(algorithm, digest);
+    }
+
+    /**
+     * Number of concurrent connections used to download a package in byte ranges. Default is 1 (single stream).
+     */
+    public void setConnections(int connections) {
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Size of the segments a package is split in, in bytes. When the package has a digest, up to twice the
+     * number of connections segments may be held in memory until the ones before them are hashed.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    /**
+     * Number of times a failed segment is retried, resuming from its last received byte.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Caps the download rate in bytes per second, 0 for no cap.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.bandwidthLimiter = maxBytesPerSecond > 0 ? new BandwidthLimiter(maxBytesPerSecond) : null;
+    }
+
+    /**
+     * Sets the limiter capping the download rate, or null for no cap. The same limiter can be shared by
+     * several PackageDownloaders to cap their aggregate rate.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public void setDownloadListener(DownloadListener downloadListener) {
+        this.downloadListener = downloadListener;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    static ConnectionLostException connectionLost(String packageUri, IOException cause) {
+        LOGGER.error("Connection lost downloading " + packageUri, cause);
+        return new ConnectionLostException("Connection lost downloading " + packageUri + ": " + cause.getMessage());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close stream", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.util.Hex;
+
+import cloud.artik.lwm2m.enums.DigestAlgorithm;
+
+/**
+ * Incrementally computes the digest of a firmware package while it is received, so that the package
+ * can be verified without reading it back from disk.
+ * <p>
+ * The expected digest is either given explicitly (e.g. from a manifest) or carried in the fragment of
+ * the package URI: "http://host/fw.bin#sha256=&lt;hex&gt;" or "http://host/fw.bin#crc32=&lt;hex&gt;".
+ */
+public class PackageVerifier {
+
+    private final DigestAlgorithm algorithm;
+    private final byte[] expected;
+    private final MessageDigest messageDigest;
+    private final CRC32 crc;
+
+    /**
+     * Constructor.
+     * 
+     * @param algorithm The digest algorithm.
+     * @param expected  The expected digest.
+     */
+    public PackageVerifier(DigestAlgorithm algorithm, byte[] expected) {
+        if (algorithm == null || expected == null) {
+            throw new NullPointerException("Digest algorithm and expected digest are mandatory");
+        }
+        this.algorithm = algorithm;
+        this.expected = expected.clone();
+        if (algorithm.getJcaName() != null) {
+            try {
+                this.messageDigest = MessageDigest.getInstance(algorithm.getJcaName());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported digest " + algorithm, e);
+            }
+            this.crc = null;
+        } else {
+            this.messageDigest = null;
+            this.crc = new CRC32();
+        }
+    }
+
+    /**
+     * Returns a verifier for the digest carried in the package URI fragment, or null if there is none.
+     * 
+     * @param packageUri
+     * @throws IllegalArgumentException if the fragment names an unknown algorithm or is not hexadecimal
+     */
+    public static PackageVerifier fromUri(String packageUri) {
+        int hash = packageUri.indexOf('#');
+        if (hash < 0) {
+            return null;
+        }
+        for (String param : packageUri.substring(hash + 1).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                DigestAlgorithm algorithm = DigestAlgorithm.fromName(param.substring(0, eq));
+                if (algorithm != null) {
+                    return new PackageVerifier(algorithm, Hex.decodeHex(param.substring(eq + 1).toCharArray()));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Strips the digest fragment from a package URI.
+     */
+    public static String stripFragment(String packageUri) {
+        int hash = packageUri.indexOf('#');
+        return hash < 0 ? packageUri : packageUri.substring(0, hash);
+    }
+
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public byte[] getExpected() {
+        return expected.clone();
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        if (messageDigest != null) {
+            messageDigest.update(buffer, offset, length);
+        } else {
+            crc.update(buffer, offset, length);
+        }
+    }
+
+    public void update(ByteBuffer buffer) {
+        if (messageDigest != null) {
+            messageDigest.update(buffer);
+        } else if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            crc.update(chunk, 0, chunk.length);
+        }
+    }
+
+    /**
+     * Completes the computation and compares the result with the expected digest.
+     * The verifier is reset afterwards.
+     */
+    public boolean verify() {
+        return Arrays.equals(expected, digest());
+    }
+
+    /**
+     * Completes the computation and returns the digest. The verifier is reset afterwards.
+     */
+    public byte[] digest() {
+        if (messageDigest != null) {
+            return messageDigest.digest();
+        }
+        long value = crc.getValue();
+        crc.reset();
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    public void reset() {
+        if (messageDigest != null) {
+            messageDigest.reset();
+        } else {
+            crc.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.getName() + "=" + Hex.encodeHexString(expected);
+    }
+}
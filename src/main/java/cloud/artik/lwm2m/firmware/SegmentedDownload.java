@@ -0,0 +1,299 @@
+package cloud.artik.lwm2m.firmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.exception.ConnectionLostException;
+
+/**
+ * Downloads a package as byte ranges fetched concurrently, each written at its offset with positional
+ * FileChannel writes.
+ * <p>
+ * The package is split in segments of the minimum segment size, which the connections take in order. A
+ * failed segment is retried on its own, resuming from the last byte written.
+ * <p>
+ * The digest is computed in a single pass while the segments are received: the first segment not yet
+ * hashed feeds the verifier as it streams, and the chunks of the segments after it are kept in memory until
+ * their turn. Connections do not start a segment more than twice their number ahead of the one hashed,
+ * which bounds that memory.
+ */
+class SegmentedDownload {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedDownload.class);
+
+    private final PackageDownloader downloader;
+    private final String location;
+    private final long length;
+    private final File target;
+    private final PackageVerifier verifier;
+    private final int connections;
+
+    private final Segment[] segments;
+    // reported under the lock, so that the progress never goes backwards
+    private final Object progressLock = new Object();
+    private long received = 0;
+    private volatile boolean storageFailure = false;
+    private FileChannel channel = null;
+
+    // guarded by this
+    private int nextSegment = 0;
+    private int hashedSegments = 0;
+    private boolean failed = false;
+
+    SegmentedDownload(PackageDownloader downloader, String location, long length, File target,
+            PackageVerifier verifier) {
+        this.downloader = downloader;
+        this.location = location;
+        this.length = length;
+        this.target = target;
+        this.verifier = verifier;
+
+        long size = Math.max(downloader.minSegmentSize, downloader.bufferSize);
+        int count = (int) ((length + size - 1) / size);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            segments[i] = new Segment(i, start, Math.min(length, start + size) - 1);
+        }
+        this.connections = Math.min(downloader.connections, count);
+    }
+
+    FirmwareUpdateResult run() throws ConnectionLostException {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(target, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            LOGGER.error("Cannot allocate " + length + " bytes for " + target, e);
+            target.delete();
+            return FirmwareUpdateResult.NO_STORAGE;
+        }
+
+        LOGGER.info("Downloading " + length + " bytes from " + location + " in " + segments.length
+                + " segments over " + connections + " connections");
+        ExecutorService executor = Executors.newFixedThreadPool(connections,
+                new NamedThreadFactory("Firmware segment %d"));
+        boolean complete = true;
+        try {
+            channel = file.getChannel();
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return fetchAll();
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                try {
+                    complete &= future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Segment download failed", e.getCause());
+                    fail();
+                    complete = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete = false;
+        } finally {
+            executor.shutdownNow();
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close " + target, e);
+            }
+        }
+
+        if (storageFailure) {
+            target.delete();
+            return FirmwareUpdateResult.NO_STORAGE;
+        }
+        if (!complete) {
+            target.delete();
+            throw new ConnectionLostException("Connection lost downloading " + location);
+        }
+        if (verifier != null && !verifier.verify()) {
+            LOGGER.error("Package " + location + " failed " + verifier.getAlgorithm() + " verification");
+            target.delete();
+            return FirmwareUpdateResult.CRC_CHECK_FAILURE;
+        }
+        LOGGER.info("Downloaded " + length + " bytes from " + location);
+        return FirmwareUpdateResult.SUCCESS;
+    }
+
+    /**
+     * Fetches segments in order until none is left, false if one of them failed.
+     */
+    private boolean fetchAll() throws IOException, InterruptedException {
+        Segment segment;
+        while ((segment = nextSegment()) != null) {
+            if (!fetch(segment)) {
+                fail();
+                return false;
+            }
+            completed(segment);
+        }
+        return !isFailed();
+    }
+
+    /**
+     * The next segment to fetch, waiting while it is too far ahead of the one hashed, null once there is
+     * none left or the download failed.
+     */
+    private synchronized Segment nextSegment() throws InterruptedException {
+        while (!failed && nextSegment < segments.length && verifier != null
+                && nextSegment >= hashedSegments + 2 * connections) {
+            wait();
+        }
+        if (failed || nextSegment == segments.length) {
+            return null;
+        }
+        return segments[nextSegment++];
+    }
+
+    private synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    private synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Fetches one segment, retrying from the last written byte up to maxRetries times.
+     */
+    private boolean fetch(Segment segment) throws IOException {
+        byte[] buffer = new byte[downloader.bufferSize];
+        for (int attempt = 0; attempt <= downloader.maxRetries && !storageFailure && !isFailed(); attempt++) {
+            HttpURLConnection connection = null;
+            InputStream in = null;
+            try {
+                connection = (HttpURLConnection) downloader.openConnection(location);
+                connection.setRequestProperty("Range", "bytes=" + segment.position + "-" + segment.end);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Range request answered with " + connection.getResponseCode());
+                }
+                in = connection.getInputStream();
+                int read;
+                while (segment.position <= segment.end && (read = in.read(buffer)) >= 0) {
+                    read = (int) Math.min(read, segment.end - segment.position + 1);
+                    downloader.throttle(read);
+                    if (!write(ByteBuffer.wrap(buffer, 0, read), segment.position)) {
+                        return false;
+                    }
+                    hash(segment, buffer, read);
+                    segment.position += read;
+                    progress(read);
+                }
+                if (segment.position > segment.end) {
+                    return true;
+                }
+                LOGGER.warn("Segment " + segment.index + " ended early at " + segment.position);
+            } catch (IOException e) {
+                LOGGER.warn("Segment " + segment.index + " failed at " + segment.position + " (attempt "
+                        + (attempt + 1) + "): " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+        return false;
+    }
+
+    private void progress(int read) {
+        synchronized (progressLock) {
+            received += read;
+            downloader.fireProgress(received, length);
+        }
+    }
+
+    private boolean write(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Cannot write package " + target, e);
+            storageFailure = true;
+            return false;
+        }
+    }
+
+    /**
+     * Feeds the verifier with a chunk of the first segment not yet hashed, or keeps the chunk until the
+     * segments before it are complete.
+     */
+    private synchronized void hash(Segment segment, byte[] buffer, int length) {
+        if (verifier == null) {
+            return;
+        }
+        if (segment.index == hashedSegments) {
+            verifier.update(buffer, 0, length);
+        } else {
+            segment.pending.add(Arrays.copyOf(buffer, length));
+        }
+    }
+
+    /**
+     * Hands over the verifier to the segments following the complete ones, with the chunks they kept.
+     */
+    private synchronized void completed(Segment segment) {
+        segment.complete = true;
+        while (hashedSegments < segments.length && segments[hashedSegments].complete) {
+            hashedSegments++;
+            if (hashedSegments < segments.length && verifier != null) {
+                LinkedList<byte[]> pending = segments[hashedSegments].pending;
+                while (!pending.isEmpty()) {
+                    byte[] chunk = pending.removeFirst();
+                    verifier.update(chunk, 0, chunk.length);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private static class Segment {
+        final int index;
+        final long end;
+        volatile long position;
+        // guarded by the download
+        boolean complete = false;
+        final LinkedList<byte[]> pending = new LinkedList<byte[]>();
+
+        Segment(int index, long start, long end) {
+            this.index = index;
+            this.end = end;
+            this.position = start;
+        }
+    }
+}
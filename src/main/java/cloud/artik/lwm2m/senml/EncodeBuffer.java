@@ -0,0 +1,209 @@
+package cloud.artik.lwm2m.senml;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer the SenML encoders write into, reused by each thread across encodings.
+ * <p>
+ * Strings and integers are written directly as bytes, so an encoding only allocates the payload it returns.
+ * The buffer starts at the size of the payloads seen so far by the thread: it grows to fit larger ones, and
+ * once a rare large payload is encoded, it is dropped rather than kept for the following small ones.
+ */
+class EncodeBuffer {
+    final static int MIN_CAPACITY = 64;
+
+    /**
+     * Buffers larger than this are not kept between encodings, unless most payloads need them.
+     */
+    final static int MAX_RETAINED = 16 * 1024;
+
+    private static final ThreadLocal<EncodeBuffer> BUFFERS = new ThreadLocal<EncodeBuffer>() {
+        @Override
+        protected EncodeBuffer initialValue() {
+            return new EncodeBuffer(MIN_CAPACITY);
+        }
+    };
+
+    private byte[] bytes;
+    private int size = 0;
+    private boolean inUse = false;
+
+    // moving average of the payload sizes, in bytes
+    private int averageSize = 0;
+
+    EncodeBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * The empty buffer of the current thread. A nested acquire, e.g. from a listener encoding while the
+     * thread already encodes, gets a new buffer.
+     */
+    static EncodeBuffer acquire() {
+        EncodeBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            return new EncodeBuffer(MIN_CAPACITY);
+        }
+        buffer.inUse = true;
+        buffer.size = 0;
+        return buffer;
+    }
+
+    /**
+     * Returns the content, and the buffer to the pool.
+     */
+    byte[] release() {
+        byte[] content = Arrays.copyOf(bytes, size);
+        averageSize = averageSize == 0 ? size : (averageSize * 7 + size) / 8;
+        if (bytes.length > MAX_RETAINED && bytes.length > averageSize * 4) {
+            bytes = new byte[Math.max(MIN_CAPACITY, Integer.highestOneBit(averageSize) * 2)];
+        }
+        size = 0;
+        inUse = false;
+        return content;
+    }
+
+    /**
+     * Returns the buffer to the pool without its content, when the encoding failed.
+     */
+    void discard() {
+        size = 0;
+        inUse = false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    private void ensure(int length) {
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+    }
+
+    EncodeBuffer write(int b) {
+        ensure(1);
+        bytes[size++] = (byte) b;
+        return this;
+    }
+
+    EncodeBuffer write(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, bytes, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Writes ASCII characters, e.g. JSON syntax.
+     */
+    EncodeBuffer writeAscii(String value) {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the decimal representation of the value.
+     */
+    EncodeBuffer writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeAscii(Long.toString(value));
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * The number of bytes of the UTF-8 encoding of the value.
+     */
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of a character, or of a surrogate pair starting at index.
+     *
+     * @return the number of characters written, 1 or 2
+     */
+    int writeUtf8(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            write(c);
+            return 1;
+        }
+        if (c < 0x800) {
+            ensure(2);
+            bytes[size++] = (byte) (0xc0 | (c >> 6));
+            bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            return 1;
+        }
+        if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            ensure(4);
+            bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            return 2;
+        }
+        if (Character.isSurrogate(c)) {
+            // unpaired, as String.getBytes
+            write('?');
+            return 1;
+        }
+        ensure(3);
+        bytes[size++] = (byte) (0xe0 | (c >> 12));
+        bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[size++] = (byte) (0x80 | (c & 0x3f));
+        return 1;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of the value.
+     */
+    EncodeBuffer writeUtf8(String value) {
+        for (int i = 0; i < value.length();) {
+            i += writeUtf8(value, i);
+        }
+        return this;
+    }
+}
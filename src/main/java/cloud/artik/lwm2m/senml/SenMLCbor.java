@@ -0,0 +1,414 @@
+package cloud.artik.lwm2m.senml;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.eclipse.leshan.core.model.ResourceModel.Type;
+
+/**
+ * Encodes and decodes SenML CBOR (RFC 8428, section 6), the compact binary form of SenML.
+ * <p>
+ * Labels are the CBOR integers of the RFC, integers use the shortest CBOR head, and floating point values
+ * the smallest of half, single or double precision holding them without loss. Base names and times are
+ * factored as in SenMLJson. Opaque values are CBOR byte strings.
+ * <p>
+ * Only definite lengths are decoded, which is what the encoders of LwM2M servers produce. Packs are encoded
+ * into the EncodeBuffer of the calling thread, which is reused across encodings.
+ */
+public class SenMLCbor {
+    /**
+     * CoAP content format of application/senml+cbor.
+     */
+    public final static int CONTENT_FORMAT = 112;
+
+    // labels
+    private final static int BASE_NAME = -2;
+    private final static int BASE_TIME = -3;
+    private final static int NAME = 0;
+    private final static int VALUE = 2;
+    private final static int STRING_VALUE = 3;
+    private final static int BOOLEAN_VALUE = 4;
+    private final static int TIME = 6;
+    private final static int DATA_VALUE = 8;
+
+    // major types
+    private final static int UNSIGNED = 0;
+    private final static int NEGATIVE = 1;
+    private final static int BYTES = 2;
+    private final static int TEXT = 3;
+    private final static int ARRAY = 4;
+    private final static int MAP = 5;
+    private final static int TAG = 6;
+    private final static int SIMPLE = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SenMLCbor() {
+    }
+
+    public static byte[] encode(SenMLPack pack) {
+        return encode(pack, EncodeBuffer.acquire());
+    }
+
+    /**
+     * Encodes into the given buffer, which is released.
+     */
+    static byte[] encode(SenMLPack pack, EncodeBuffer out) {
+        try {
+            writePack(out, pack);
+        } catch (RuntimeException e) {
+            out.discard();
+            throw e;
+        }
+        return out.release();
+    }
+
+    private static void writePack(EncodeBuffer out, SenMLPack pack) {
+        writeHead(out, ARRAY, pack.size());
+        Long baseTime = null;
+        for (SenMLRecord record : pack.getRecords()) {
+            boolean timed = false;
+            if (record.getTime() != null) {
+                timed = baseTime == null || record.getTime().longValue() != baseTime.longValue();
+            }
+            writeHead(out, MAP, 2 + (record.getBaseName() != null ? 1 : 0) + (timed ? 1 : 0));
+            if (record.getBaseName() != null) {
+                writeInt(out, BASE_NAME);
+                writeText(out, record.getBaseName());
+            }
+            if (timed) {
+                if (baseTime == null) {
+                    baseTime = record.getTime();
+                    writeInt(out, BASE_TIME);
+                    writeSeconds(out, baseTime);
+                } else {
+                    writeInt(out, TIME);
+                    writeSeconds(out, record.getTime() - baseTime);
+                }
+            }
+            writeInt(out, NAME);
+            writeText(out, record.getName());
+            writeValue(out, record);
+        }
+    }
+
+    private static void writeValue(EncodeBuffer out, SenMLRecord record) {
+        Object value = record.getValue();
+        switch (record.getType()) {
+        case STRING:
+            writeInt(out, STRING_VALUE);
+            writeText(out, String.valueOf(value));
+            break;
+        case BOOLEAN:
+            writeInt(out, BOOLEAN_VALUE);
+            out.write(((Boolean) value) ? 0xf5 : 0xf4);
+            break;
+        case OPAQUE:
+            byte[] data = (byte[]) value;
+            writeInt(out, DATA_VALUE);
+            writeHead(out, BYTES, data.length);
+            out.write(data, 0, data.length);
+            break;
+        case TIME:
+            writeInt(out, VALUE);
+            writeInt(out, ((Date) value).getTime() / 1000);
+            break;
+        case FLOAT:
+            writeInt(out, VALUE);
+            writeFloat(out, ((Number) value).doubleValue());
+            break;
+        case INTEGER:
+        default:
+            writeInt(out, VALUE);
+            writeInt(out, ((Number) value).longValue());
+            break;
+        }
+    }
+
+    private static void writeSeconds(EncodeBuffer out, long millis) {
+        if (millis % 1000 == 0) {
+            writeInt(out, millis / 1000);
+        } else {
+            writeFloat(out, millis / 1000.0);
+        }
+    }
+
+    private static void writeText(EncodeBuffer out, String value) {
+        writeHead(out, TEXT, EncodeBuffer.utf8Length(value));
+        out.writeUtf8(value);
+    }
+
+    private static void writeInt(EncodeBuffer out, long value) {
+        if (value < 0) {
+            writeHead(out, NEGATIVE, -1 - value);
+        } else {
+            writeHead(out, UNSIGNED, value);
+        }
+    }
+
+    private static void writeHead(EncodeBuffer out, int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument < 0x10000) {
+            out.write(type | 25);
+            writeBytes(out, argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            writeBytes(out, argument, 4);
+        } else {
+            out.write(type | 27);
+            writeBytes(out, argument, 8);
+        }
+    }
+
+    private static void writeBytes(EncodeBuffer out, long value, int length) {
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeFloat(EncodeBuffer out, double value) {
+        float single = (float) value;
+        if (single == value || Double.isNaN(value)) {
+            int half = toHalf(single);
+            if (half >= 0) {
+                out.write(0xf9);
+                writeBytes(out, half, 2);
+            } else {
+                out.write(0xfa);
+                writeBytes(out, Float.floatToIntBits(single), 4);
+            }
+        } else {
+            out.write(0xfb);
+            writeBytes(out, Double.doubleToLongBits(value), 8);
+        }
+    }
+
+    /**
+     * The half precision bits of the value, or -1 if it cannot be represented exactly.
+     */
+    static int toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            // infinity or NaN
+            return sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0);
+        }
+        if (exponent == 0 && mantissa == 0) {
+            return sign;
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 31) {
+            return -1;
+        }
+        if (halfExponent <= 0) {
+            // subnormal
+            int shift = 14 - halfExponent;
+            int significand = mantissa | 0x800000;
+            if (exponent == 0 || shift > 24 || (significand & ((1 << shift) - 1)) != 0) {
+                return -1;
+            }
+            return sign | (significand >> shift);
+        }
+        if ((mantissa & 0x1fff) != 0) {
+            return -1;
+        }
+        return sign | (halfExponent << 10) | (mantissa >>> 13);
+    }
+
+    static double fromHalf(int half) {
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+     * Decodes a SenML CBOR pack. Base names and times are resolved: every record has its full base name, and
+     * its absolute time in milliseconds if the pack has times.
+     *
+     * @throws IllegalArgumentException if the content is not a valid SenML CBOR pack
+     */
+    public static List<SenMLRecord> decode(byte[] content) {
+        Reader reader = new Reader(content);
+        int count = reader.readLength(ARRAY);
+        List<SenMLRecord> records = new ArrayList<SenMLRecord>(count);
+        String baseName = "";
+        Double baseTime = null;
+        for (int i = 0; i < count; i++) {
+            int labels = reader.readLength(MAP);
+            String name = "";
+            Double time = null;
+            Type type = null;
+            Object value = null;
+            for (int j = 0; j < labels; j++) {
+                Object label = reader.readItem();
+                if (!(label instanceof Long)) {
+                    throw new IllegalArgumentException("Invalid label: " + label);
+                }
+                Object item = reader.readItem();
+                switch (((Long) label).intValue()) {
+                case BASE_NAME:
+                    baseName = (String) cast(item, String.class);
+                    break;
+                case BASE_TIME:
+                    baseTime = ((Number) cast(item, Number.class)).doubleValue();
+                    break;
+                case NAME:
+                    name = (String) cast(item, String.class);
+                    break;
+                case TIME:
+                    time = ((Number) cast(item, Number.class)).doubleValue();
+                    break;
+                case VALUE:
+                    value = cast(item, Number.class);
+                    type = value instanceof Long ? Type.INTEGER : Type.FLOAT;
+                    break;
+                case STRING_VALUE:
+                    value = cast(item, String.class);
+                    type = Type.STRING;
+                    break;
+                case BOOLEAN_VALUE:
+                    value = cast(item, Boolean.class);
+                    type = Type.BOOLEAN;
+                    break;
+                case DATA_VALUE:
+                    value = cast(item, byte[].class);
+                    type = Type.OPAQUE;
+                    break;
+                default:
+                    // version, units, sums and base values are not used by LwM2M
+                    break;
+                }
+            }
+            if (type == null) {
+                throw new IllegalArgumentException("No value for " + baseName + name);
+            }
+            Long millis = null;
+            if (baseTime != null || time != null) {
+                double seconds = (baseTime != null ? baseTime : 0) + (time != null ? time : 0);
+                millis = Math.round(seconds * 1000);
+            }
+            records.add(new SenMLRecord(baseName, name, type, value, millis));
+        }
+        return records;
+    }
+
+    private static Object cast(Object item, Class<?> type) {
+        if (!type.isInstance(item)) {
+            throw new IllegalArgumentException("Expected " + type.getSimpleName() + ": " + item);
+        }
+        return item;
+    }
+
+    private static class Reader {
+        private final byte[] content;
+        private int position = 0;
+
+        Reader(byte[] content) {
+            this.content = content;
+        }
+
+        private int readByte() {
+            if (position >= content.length) {
+                throw new IllegalArgumentException("Truncated content");
+            }
+            return content[position++] & 0xff;
+        }
+
+        private long readBytes(int length) {
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        private long readArgument(int info) {
+            if (info < 24) {
+                return info;
+            }
+            switch (info) {
+            case 24:
+                return readBytes(1);
+            case 25:
+                return readBytes(2);
+            case 26:
+                return readBytes(4);
+            case 27:
+                return readBytes(8);
+            default:
+                throw new IllegalArgumentException("Unsupported length: " + info);
+            }
+        }
+
+        int readLength(int major) {
+            int head = readByte();
+            if (head >>> 5 != major) {
+                throw new IllegalArgumentException("Expected major type " + major + ": " + (head >>> 5));
+            }
+            long length = readArgument(head & 0x1f);
+            if (length > content.length - position) {
+                throw new IllegalArgumentException("Invalid length: " + length);
+            }
+            return (int) length;
+        }
+
+        /**
+         * Reads an integer, float, string, byte string or boolean. Tags are skipped.
+         */
+        Object readItem() {
+            int head = readByte();
+            int info = head & 0x1f;
+            switch (head >>> 5) {
+            case UNSIGNED:
+                return readArgument(info);
+            case NEGATIVE:
+                return -1 - readArgument(info);
+            case BYTES:
+            case TEXT:
+                position--;
+                int length = readLength(head >>> 5);
+                byte[] bytes = new byte[length];
+                System.arraycopy(content, position, bytes, 0, length);
+                position += length;
+                return head >>> 5 == TEXT ? new String(bytes, UTF_8) : bytes;
+            case TAG:
+                readArgument(info);
+                return readItem();
+            case SIMPLE:
+                switch (info) {
+                case 20:
+                    return Boolean.FALSE;
+                case 21:
+                    return Boolean.TRUE;
+                case 25:
+                    return fromHalf((int) readBytes(2));
+                case 26:
+                    return (double) Float.intBitsToFloat((int) readBytes(4));
+                case 27:
+                    return Double.longBitsToDouble(readBytes(8));
+                default:
+                    throw new IllegalArgumentException("Unsupported simple value: " + info);
+                }
+            default:
+                throw new IllegalArgumentException("Unsupported major type: " + (head >>> 5));
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package cloud.artik.lwm2m.senml;
+
+import java.util.Date;
+
+import org.eclipse.leshan.util.Base64;
+
+/**
+ * Encodes a SenMLPack as SenML JSON (RFC 8428), the content format of LwM2M 1.1 composite operations.
+ * <p>
+ * Numbers and times use "v" (times in seconds since the epoch), strings "vs", booleans "vb" and opaque
+ * values "vd" in base64url. Times are in seconds, the first one as base time "bt".
+ * <p>
+ * The payload is written into the EncodeBuffer of the calling thread, which is reused across encodings.
+ */
+public class SenMLJson {
+    /**
+     * CoAP content format of application/senml+json.
+     */
+    public final static int CONTENT_FORMAT = 110;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private SenMLJson() {
+    }
+
+    public static byte[] encode(SenMLPack pack) {
+        return encode(pack, EncodeBuffer.acquire());
+    }
+
+    /**
+     * Encodes into the given buffer, which is released.
+     */
+    static byte[] encode(SenMLPack pack, EncodeBuffer json) {
+        try {
+            json.write('[');
+            boolean first = true;
+            Long baseTime = null;
+            for (SenMLRecord record : pack.getRecords()) {
+                if (!first) {
+                    json.write(',');
+                }
+                first = false;
+                json.write('{');
+                if (record.getBaseName() != null) {
+                    json.writeAscii("\"bn\":");
+                    writeString(json, record.getBaseName());
+                    json.write(',');
+                }
+                if (record.getTime() != null) {
+                    if (baseTime == null) {
+                        baseTime = record.getTime();
+                        json.writeAscii("\"bt\":");
+                        writeSeconds(json, baseTime);
+                        json.write(',');
+                    } else if (record.getTime().longValue() != baseTime.longValue()) {
+                        json.writeAscii("\"t\":");
+                        writeSeconds(json, record.getTime() - baseTime);
+                        json.write(',');
+                    }
+                }
+                json.writeAscii("\"n\":");
+                writeString(json, record.getName());
+                writeValue(json, record);
+                json.write('}');
+            }
+            json.write(']');
+        } catch (RuntimeException e) {
+            json.discard();
+            throw e;
+        }
+        return json.release();
+    }
+
+    private static void writeValue(EncodeBuffer json, SenMLRecord record) {
+        Object value = record.getValue();
+        switch (record.getType()) {
+        case STRING:
+            json.writeAscii(",\"vs\":");
+            writeString(json, String.valueOf(value));
+            break;
+        case BOOLEAN:
+            json.writeAscii(((Boolean) value) ? ",\"vb\":true" : ",\"vb\":false");
+            break;
+        case OPAQUE:
+            json.writeAscii(",\"vd\":");
+            writeString(json, Base64.encodeBase64URLSafeString((byte[]) value));
+            break;
+        case TIME:
+            json.writeAscii(",\"v\":").writeDecimal(((Date) value).getTime() / 1000);
+            break;
+        case FLOAT:
+            double number = ((Number) value).doubleValue();
+            // JSON has no representation for them
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                json.writeAscii(",\"v\":null");
+            } else {
+                json.writeAscii(",\"v\":");
+                writeDouble(json, number);
+            }
+            break;
+        case INTEGER:
+        default:
+            json.writeAscii(",\"v\":").writeDecimal(((Number) value).longValue());
+            break;
+        }
+    }
+
+    /**
+     * Writes the value as Double.toString, without allocating for whole numbers.
+     */
+    private static void writeDouble(EncodeBuffer json, double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e7 && !(number == 0 && 1 / number < 0)) {
+            json.writeDecimal((long) number).writeAscii(".0");
+        } else {
+            json.writeAscii(Double.toString(number));
+        }
+    }
+
+    private static void writeSeconds(EncodeBuffer json, long millis) {
+        if (millis % 1000 == 0) {
+            json.writeDecimal(millis / 1000);
+        } else {
+            writeDouble(json, millis / 1000.0);
+        }
+    }
+
+    private static void writeString(EncodeBuffer json, String value) {
+        json.write('"');
+        for (int i = 0; i < value.length();) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                json.writeAscii("\\\"");
+                break;
+            case '\\':
+                json.writeAscii("\\\\");
+                break;
+            case '\n':
+                json.writeAscii("\\n");
+                break;
+            case '\r':
+                json.writeAscii("\\r");
+                break;
+            case '\t':
+                json.writeAscii("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.writeAscii("\\u00").write(HEX[c >> 4]).write(HEX[c & 0xf]);
+                } else {
+                    i += json.writeUtf8(value, i);
+                    continue;
+                }
+            }
+            i++;
+        }
+        json.write('"');
+    }
+}
@@ -0,0 +1,70 @@
+package cloud.artik.lwm2m.senml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mResource;
+
+/**
+ * The records of a SenML pack, in the order they are added.
+ */
+public class SenMLPack {
+    private final List<SenMLRecord> records = new ArrayList<SenMLRecord>();
+    private String lastBaseName = null;
+
+    /**
+     * Adds the value of a resource, or one record per instance of a multi-instance resource.
+     * 
+     * @param baseName - path of the object instance, e.g. "/3/0/"
+     * @param resource
+     */
+    public void add(String baseName, LwM2mResource resource) {
+        add(baseName, resource, null);
+    }
+
+    /**
+     * Adds the value of a resource measured at the given time, in milliseconds since the epoch.
+     */
+    public void add(String baseName, LwM2mResource resource, Long time) {
+        if (resource.isMultiInstances()) {
+            for (Map.Entry<Integer, ?> instance : resource.getValues().entrySet()) {
+                add(baseName, resource.getId() + "/" + instance.getKey(), resource.getType(), instance.getValue(),
+                        time);
+            }
+        } else {
+            add(baseName, String.valueOf(resource.getId()), resource.getType(), resource.getValue(), time);
+        }
+    }
+
+    /**
+     * Adds a single value.
+     */
+    public void add(String baseName, String name, ResourceModel.Type type, Object value) {
+        add(baseName, name, type, value, null);
+    }
+
+    /**
+     * Adds a single value measured at the given time, in milliseconds since the epoch. Either all the values
+     * of a pack have a time, or none: a value without time following a timed one is read as the base time.
+     */
+    public void add(String baseName, String name, ResourceModel.Type type, Object value, Long time) {
+        boolean sameBase = baseName == null ? lastBaseName == null : baseName.equals(lastBaseName);
+        records.add(new SenMLRecord(sameBase ? null : baseName, name, type, value, time));
+        lastBaseName = baseName;
+    }
+
+    public List<SenMLRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+}
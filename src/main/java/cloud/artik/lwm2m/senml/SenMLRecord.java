@@ -0,0 +1,62 @@
+package cloud.artik.lwm2m.senml;
+
+import org.eclipse.leshan.core.model.ResourceModel.Type;
+
+/**
+ * One SenML record: the value of a single resource or resource instance.
+ * <p>
+ * The base name is only set when it differs from the one of the previous record in the pack, as SenML
+ * carries it over to the following records. The time, when there is one, is factored the same way by the
+ * encoders: the first timed record carries it as base time, the following ones relative to it.
+ */
+public class SenMLRecord {
+    private final String baseName;
+    private final String name;
+    private final Type type;
+    private final Object value;
+    private final Long time;
+
+    public SenMLRecord(String baseName, String name, Type type, Object value) {
+        this(baseName, name, type, value, null);
+    }
+
+    public SenMLRecord(String baseName, String name, Type type, Object value, Long time) {
+        this.baseName = baseName;
+        this.name = name;
+        this.type = type;
+        this.value = value;
+        this.time = time;
+    }
+
+    /**
+     * The base name, e.g. "/3/0/", or null to keep the previous one.
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * The name relative to the base name, e.g. "9", or "7/0" for a resource instance.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Long, Double, String, Boolean, Date or byte[], depending on the type.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * The time of the value in milliseconds since the epoch, or null for "now".
+     */
+    public Long getTime() {
+        return time;
+    }
+}
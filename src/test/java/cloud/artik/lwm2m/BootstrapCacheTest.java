@@ -0,0 +1,130 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.util.List;
+
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.client.servers.DmServerInfo;
+import org.eclipse.leshan.client.servers.ServerInfo;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.BootstrapCache.CachedServer;
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+public class BootstrapCacheTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("bootstrap", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        BootstrapCache cache = new BootstrapCache(file);
+        assertTrue(cache.load().isEmpty());
+
+        byte[] identity = "device".getBytes();
+        byte[] key = new byte[] { 0x01, 0x23, (byte) 0xfe };
+        LwM2mObject securities = new LwM2mObject(LwM2mId.SECURITY,
+                security(0, "coaps://bootstrap:5684", true, identity, key, 0),
+                security(1, "coaps://dm:5686", false, identity, key, 123));
+        LwM2mObject servers = new LwM2mObject(LwM2mId.SERVER, new LwM2mObjectInstance(0,
+                LwM2mSingleResource.newIntegerResource(LwM2mId.SRV_SERVER_ID, 123),
+                LwM2mSingleResource.newIntegerResource(LwM2mId.SRV_LIFETIME, 600),
+                LwM2mSingleResource.newBooleanResource(6, false),
+                LwM2mSingleResource.newStringResource(LwM2mId.SRV_BINDING, "T")));
+        assertEquals(1, cache.store(securities, servers));
+
+        List<CachedServer> cached = new BootstrapCache(file).load();
+        assertEquals(1, cached.size());
+        CachedServer server = cached.get(0);
+        assertEquals("coaps://dm:5686", value(server.getSecurity().read(LwM2mId.SEC_SERVER_URI)));
+        assertEquals(false, value(server.getSecurity().read(LwM2mId.SEC_BOOTSTRAP)));
+        assertArrayEquals(identity,
+                (byte[]) value(server.getSecurity().read(LwM2mId.SEC_PUBKEY_IDENTITY)));
+        assertArrayEquals(key, (byte[]) value(server.getSecurity().read(LwM2mId.SEC_SECRET_KEY)));
+        assertEquals(123L, value(server.getSecurity().read(LwM2mId.SEC_SERVER_ID)));
+        assertEquals(600L, value(server.getServer().read(LwM2mId.SRV_LIFETIME)));
+        assertEquals(BindingMode.T.toString(), value(server.getServer().read(LwM2mId.SRV_BINDING)));
+        assertEquals(false, value(server.getServer().read(6)));
+
+        cache.clear();
+        assertTrue(cache.load().isEmpty());
+    }
+
+    @Test
+    public void testInvalidCacheIsIgnored() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("servers=1\nserver.0.uri=coaps://dm:5686\n".getBytes("ISO-8859-1"));
+        out.close();
+        assertTrue(new BootstrapCache(file).load().isEmpty());
+    }
+
+    @Test
+    public void testColdAndWarmProvisioning() throws Exception {
+        ConnectionMonitor monitor = new ConnectionMonitor();
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        monitor.addListener(metrics);
+        ServerInfo bootstrapServer = new ServerInfo();
+        bootstrapServer.serverUri = new URI("coaps://bootstrap:5684");
+        DmServerInfo server = new DmServerInfo();
+        server.serverUri = new URI("coaps://dm:5686");
+
+        monitor.startProvisioning();
+        monitor.onBootstrapFailure(bootstrapServer, ResponseCode.BAD_REQUEST, "unknown endpoint");
+        monitor.onBootstrapSuccess(bootstrapServer);
+        Thread.sleep(20);
+        monitor.onRegistrationSuccess(server, "reg1");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_COLD));
+        assertTrue(metrics.getColdProvisioningTime() >= 20);
+        assertEquals(ConnectionEventType.BOOTSTRAP_FAILURE, metrics.getLastFailure().getType());
+
+        // only the first registration after start
+        monitor.onRegistrationSuccess(server, "reg1");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_COLD));
+
+        monitor.startProvisioning();
+        monitor.onRegistrationSuccess(server, "reg2");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_WARM));
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_COLD));
+    }
+
+    private static Object value(ReadResponse response) {
+        return ((LwM2mResource) response.getContent()).getValue();
+    }
+
+    private static LwM2mObjectInstance security(int id, String uri, boolean bootstrap, byte[] identity,
+            byte[] key, int shortServerId) {
+        return new LwM2mObjectInstance(id,
+                LwM2mSingleResource.newStringResource(LwM2mId.SEC_SERVER_URI, uri),
+                LwM2mSingleResource.newBooleanResource(LwM2mId.SEC_BOOTSTRAP, bootstrap),
+                LwM2mSingleResource.newIntegerResource(LwM2mId.SEC_SECURITY_MODE, 0),
+                LwM2mSingleResource.newBinaryResource(LwM2mId.SEC_PUBKEY_IDENTITY, identity),
+                LwM2mSingleResource.newBinaryResource(LwM2mId.SEC_SERVER_PUBKEY, new byte[0]),
+                LwM2mSingleResource.newBinaryResource(LwM2mId.SEC_SECRET_KEY, key),
+                LwM2mSingleResource.newIntegerResource(LwM2mId.SEC_SERVER_ID, shortServerId));
+    }
+}
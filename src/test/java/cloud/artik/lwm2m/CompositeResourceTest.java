@@ -0,0 +1,147 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.LwM2mId;
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.model.ResourceModel.Type;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.LocationEnum;
+import cloud.artik.lwm2m.enums.SupportedBinding;
+import cloud.artik.lwm2m.senml.SenMLCbor;
+import cloud.artik.lwm2m.senml.SenMLJson;
+import cloud.artik.lwm2m.senml.SenMLPack;
+import cloud.artik.lwm2m.senml.SenMLRecord;
+
+public class CompositeResourceTest {
+
+    private Device device = null;
+    private Location location = null;
+    private CompositeResource composite = null;
+
+    private static ObjectModel model(int objectId) {
+        for (ObjectModel model : ObjectLoader.loadDefault()) {
+            if (model.id == objectId) {
+                return model;
+            }
+        }
+        throw new IllegalArgumentException("No model " + objectId);
+    }
+
+    @Before
+    public void initialize() {
+        device = new Device("Mftr", "ModelNumber", "SerialNumber", SupportedBinding.UDP) {
+            @Override
+            public ExecuteResponse executeReboot() {
+                return ExecuteResponse.success();
+            }
+
+            @Override
+            public ExecuteResponse executeFactoryReset() {
+                return ExecuteResponse.success();
+            }
+        };
+        location = new Location() {
+        };
+        composite = new CompositeResource();
+        composite.addObject(model(LwM2mId.DEVICE), device);
+        composite.addObject(model(LwM2mId.LOCATION), location);
+    }
+
+    @Test
+    public void testParsePaths() {
+        List<LwM2mPath> paths = CompositeResource.parsePaths(Arrays.asList("/3/0/9", "p=/6/0", "pmin=10"));
+        assertEquals(2, paths.size());
+        assertEquals(new LwM2mPath(3, 0, 9), paths.get(0));
+        assertEquals(new LwM2mPath(6, 0), paths.get(1));
+    }
+
+    @Test
+    public void testCompositeRead() throws Exception {
+        device.setBatteryLevel(95, false);
+        device.setErrorCode(1, false);
+        location.setLocation("37.5", "127.0", "10", "0", "5");
+
+        SenMLPack pack = composite.read(CompositeResource.parsePaths(
+                Arrays.asList("/3/0/9", "/3/0/11", "/6/0/0", "/6/0/1", "/9/0/0")));
+        List<SenMLRecord> records = pack.getRecords();
+        assertEquals(4, records.size());
+        assertEquals("/3/0/", records.get(0).getBaseName());
+        assertEquals("9", records.get(0).getName());
+        assertEquals("11/0", records.get(1).getName());
+        assertNull(records.get(1).getBaseName());
+        assertEquals("/6/0/", records.get(2).getBaseName());
+
+        String json = new String(SenMLJson.encode(pack), "UTF-8");
+        assertEquals("[{\"bn\":\"/3/0/\",\"n\":\"9\",\"v\":95},{\"n\":\"11/0\",\"v\":1},"
+                + "{\"bn\":\"/6/0/\",\"n\":\"0\",\"vs\":\"37.5\"},{\"n\":\"1\",\"vs\":\"127.0\"}]", json);
+
+        // a whole instance
+        pack = composite.read(CompositeResource.parsePaths(Arrays.asList("/6/0")));
+        assertEquals(LocationEnum.values().length, pack.size());
+    }
+
+    @Test
+    public void testCompositeWrite() {
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3/0/", "15", Type.STRING, "Asia/Seoul");
+        pack.add("/3/0/", "14", Type.STRING, "+09");
+        List<SenMLRecord> records = SenMLCbor.decode(SenMLCbor.encode(pack));
+        assertEquals(ResponseCode.CHANGED, composite.write(records).getCode());
+        assertEquals("Asia/Seoul", device.getTimeZone());
+        assertEquals("+09", device.getUtcOffset());
+
+        // the manufacturer is read-only
+        pack = new SenMLPack();
+        pack.add("/3/0/", "0", Type.STRING, "Other");
+        records = SenMLCbor.decode(SenMLCbor.encode(pack));
+        assertEquals(ResponseCode.METHOD_NOT_ALLOWED, composite.write(records).getCode());
+    }
+
+    @Test
+    public void testConsistentAcrossObjects() throws Exception {
+        location.setLocation("0", "0", "0", "0", "0");
+        device.setBatteryLevel(0, false);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger torn = new AtomicInteger();
+        final List<LwM2mPath> paths = CompositeResource.parsePaths(Arrays.asList("/3/0/9", "/6/0/0"));
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    List<SenMLRecord> records = composite.read(paths).getRecords();
+                    long battery = (Long) records.get(0).getValue();
+                    long latitude = Long.parseLong((String) records.get(1).getValue());
+                    // the battery level is always set first
+                    if (battery != latitude && battery != latitude + 1) {
+                        torn.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 1; i < 20000; i++) {
+            device.setBatteryLevel(i, false);
+            location.batch().set(LocationEnum.LATITUDE, String.valueOf(i)).commit();
+        }
+        running.set(false);
+        reader.join();
+
+        assertEquals(0, torn.get());
+        assertTrue(device.getBatteryLevel() == 19999);
+    }
+}
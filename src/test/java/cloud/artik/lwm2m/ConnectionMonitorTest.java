@@ -0,0 +1,222 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.eclipse.leshan.client.servers.DmServerInfo;
+import org.eclipse.leshan.client.servers.ServerInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+public class ConnectionMonitorTest {
+
+    private final ConnectionMonitor monitor = new ConnectionMonitor();
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    private final List<ConnectionEvent> events = new ArrayList<ConnectionEvent>();
+    private final DmServerInfo server = new DmServerInfo();
+
+    @Before
+    public void setUp() throws Exception {
+        server.serverUri = new URI("coaps://localhost");
+        monitor.addListener(metrics);
+        monitor.addListener(new ConnectionListener() {
+            @Override
+            public void onConnectionEvent(ConnectionEvent event) {
+                events.add(event);
+            }
+        });
+    }
+
+    @Test
+    public void testHandshakeSpansFirstRequestToFirstResponse() throws Exception {
+        monitor.sendRequest(request(Code.POST, "rd"));
+        // retransmissions and other requests do not start a new handshake
+        monitor.sendRequest(request(Code.POST, "rd"));
+        Thread.sleep(20);
+        monitor.receiveResponse(response(ResponseCode.CREATED));
+        monitor.receiveResponse(response(ResponseCode.CREATED));
+
+        assertEquals(2, events.size());
+        assertEquals(ConnectionEventType.HANDSHAKE_STARTED, events.get(0).getType());
+        assertEquals(-1, events.get(0).getDuration());
+        assertEquals(ConnectionEventType.HANDSHAKE_COMPLETED, events.get(1).getType());
+        assertTrue(events.get(1).getDuration() >= 20);
+        assertEquals(1, metrics.getCount(ConnectionEventType.HANDSHAKE_COMPLETED));
+
+        // a timeout drops the session, the next request starts a new handshake
+        monitor.onUpdateTimeout(server);
+        monitor.sendRequest(request(Code.POST, "rd", "abc"));
+        monitor.receiveResponse(response(ResponseCode.CHANGED));
+        assertEquals(2, metrics.getCount(ConnectionEventType.HANDSHAKE_STARTED));
+        assertEquals(2, metrics.getCount(ConnectionEventType.HANDSHAKE_COMPLETED));
+        assertEquals(1, metrics.getCount(ConnectionEventType.UPDATE_TIMEOUT));
+
+        // server probes are not part of the registration
+        monitor.onRegistrationTimeout(server);
+        monitor.sendRequest(request(Code.GET, ".well-known", "core"));
+        assertEquals(2, metrics.getCount(ConnectionEventType.HANDSHAKE_STARTED));
+    }
+
+    @Test
+    public void testDtlsHandshakeEndsWithTheSession() throws Exception {
+        byte[] key = new byte[] { 1, 2, 3, 4 };
+        InMemoryPskStore store = new InMemoryPskStore();
+        store.setKey("device", key);
+        CoapServer server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(new DTLSConnector(new DtlsConnectorConfig.Builder(
+                new InetSocketAddress("127.0.0.1", 0)).setPskStore(store).build()), NetworkConfig.getStandard()));
+        // the server takes its time to register the device
+        server.add(new CoapResource("rd") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.respond(ResponseCode.CREATED);
+            }
+        });
+        DTLSConnector connector = new DTLSConnector(new DtlsConnectorConfig.Builder(
+                new InetSocketAddress("127.0.0.1", 0)).setClientOnly()
+                .setPskStore(new StaticPskStore("device", key)).build());
+        CoapEndpoint endpoint = new CoapEndpoint(connector, NetworkConfig.getStandard());
+        monitor.attach(endpoint);
+        try {
+            server.start();
+            endpoint.start();
+            InetSocketAddress peer = new InetSocketAddress("127.0.0.1",
+                    server.getEndpoints().get(0).getAddress().getPort());
+
+            assertNotNull(register(endpoint, peer).waitForResponse(5000));
+            assertEquals(1, metrics.getCount(ConnectionEventType.HANDSHAKE_STARTED));
+            assertEquals(1, metrics.getCount(ConnectionEventType.HANDSHAKE_COMPLETED));
+            // the processing of the Register is not part of the handshake
+            assertTrue(metrics.getLastDuration(ConnectionEventType.HANDSHAKE_COMPLETED) < 500);
+
+            // the session is established, no handshake
+            assertNotNull(register(endpoint, peer).waitForResponse(5000));
+            assertEquals(1, metrics.getCount(ConnectionEventType.HANDSHAKE_STARTED));
+
+            // whatever drops the session, e.g. the watchdog, the next request starts a new handshake
+            connector.close(peer);
+            assertNotNull(register(endpoint, peer).waitForResponse(5000));
+            assertEquals(2, metrics.getCount(ConnectionEventType.HANDSHAKE_STARTED));
+            assertEquals(2, metrics.getCount(ConnectionEventType.HANDSHAKE_COMPLETED));
+        } finally {
+            endpoint.destroy();
+            server.destroy();
+        }
+    }
+
+    private static Request register(CoapEndpoint endpoint, InetSocketAddress peer) {
+        Request request = new Request(Code.POST);
+        request.setDestination(peer.getAddress());
+        request.setDestinationPort(peer.getPort());
+        request.getOptions().addUriPath("rd");
+        endpoint.sendRequest(request);
+        return request;
+    }
+
+    @Test
+    public void testTimesRegistrationRequestsByPath() throws Exception {
+        monitor.sendRequest(request(Code.POST, "rd"));
+        Thread.sleep(30);
+        monitor.sendRequest(request(Code.POST, "rd", "abc"));
+        Thread.sleep(10);
+        monitor.onRegistrationSuccess(server, "/rd/abc");
+        monitor.onUpdateSuccess(server, "/rd/abc");
+        // other paths are ignored
+        monitor.sendRequest(request(Code.POST, "dp"));
+        monitor.sendRequest(request(Code.DELETE, "rd", "abc"));
+        monitor.onDeregistrationSuccess(server, "/rd/abc");
+
+        long register = metrics.getLastDuration(ConnectionEventType.REGISTRATION_SUCCESS);
+        long update = metrics.getLastDuration(ConnectionEventType.UPDATE_SUCCESS);
+        assertTrue(register >= 40);
+        assertTrue(update >= 10 && update < register);
+        assertEquals(1, metrics.getCount(ConnectionEventType.DEREGISTRATION_SUCCESS));
+        assertTrue(metrics.getLastDuration(ConnectionEventType.DEREGISTRATION_SUCCESS) < register);
+
+        ConnectionEvent registration = events.get(1);
+        assertEquals(ConnectionEventType.REGISTRATION_SUCCESS, registration.getType());
+        assertEquals("coaps://localhost:5684", registration.getServerUri());
+        assertEquals("/rd/abc", registration.getRegistrationId());
+        assertEquals(metrics.getLastTimestamp(ConnectionEventType.UPDATE_SUCCESS),
+                metrics.getLastSuccessfulRegistration());
+        assertNull(metrics.getLastFailure());
+    }
+
+    @Test
+    public void testFailuresAndProvisioning() throws Exception {
+        monitor.startProvisioning();
+        monitor.onUpdateFailure(server, org.eclipse.leshan.ResponseCode.NOT_FOUND, "gone");
+        ConnectionEvent failure = metrics.getLastFailure();
+        assertNotNull(failure);
+        assertEquals(ConnectionEventType.UPDATE_FAILURE, failure.getType());
+        assertEquals(org.eclipse.leshan.ResponseCode.NOT_FOUND, failure.getResponseCode());
+        assertEquals("gone", failure.getErrorMessage());
+        // no update was sent
+        assertEquals(-1, failure.getDuration());
+
+        // a bootstrap makes the provisioning cold
+        ServerInfo bsserver = new ServerInfo();
+        bsserver.serverUri = new URI("coaps://localhost:5694");
+        monitor.sendRequest(request(Code.POST, "bs"));
+        monitor.onBootstrapSuccess(bsserver);
+        Thread.sleep(10);
+        monitor.onRegistrationSuccess(server, "/rd/abc");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_COLD));
+        assertEquals(0, metrics.getCount(ConnectionEventType.PROVISIONING_WARM));
+        assertTrue(metrics.getColdProvisioningTime() >= 10);
+
+        // only the first registration after start
+        monitor.onRegistrationSuccess(server, "/rd/abc");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_COLD));
+
+        monitor.startProvisioning();
+        monitor.onRegistrationSuccess(server, "/rd/def");
+        assertEquals(1, metrics.getCount(ConnectionEventType.PROVISIONING_WARM));
+        assertEquals(3, metrics.getCount(ConnectionEventType.REGISTRATION_SUCCESS));
+    }
+
+    private static Request request(Code code, String... path) throws Exception {
+        Request request = new Request(code);
+        request.setDestination(InetAddress.getLoopbackAddress());
+        request.setDestinationPort(5684);
+        for (String segment : path) {
+            request.getOptions().addUriPath(segment);
+        }
+        return request;
+    }
+
+    private static Response response(ResponseCode code) {
+        Response response = new Response(code);
+        response.setSource(InetAddress.getLoopbackAddress());
+        response.setSourcePort(5684);
+        return response;
+    }
+}
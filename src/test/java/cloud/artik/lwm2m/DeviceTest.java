@@ -0,0 +1,185 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.TimeZone;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.client.resource.ResourceChangedListener;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.WriteResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.DeviceEnum;
+import cloud.artik.lwm2m.enums.SupportedBinding;
+
+public class DeviceTest {
+
+    private Device device = null;
+
+    @Before
+    public void initialize() {
+        device = new Device("DeviceTestMftr", "ModelNumber", "SerialNumber", SupportedBinding.UDP) {
+            @Override
+            public ExecuteResponse executeReboot() {
+                return ExecuteResponse.success();
+            }
+
+            @Override
+            public ExecuteResponse executeFactoryReset() {
+                return ExecuteResponse.success();
+            }
+        };
+    }
+
+    private Object readValue(DeviceEnum resource) {
+        ReadResponse response = device.read(resource.getResourceId());
+        assertEquals(ResponseCode.CONTENT, response.getCode());
+        return ((LwM2mSingleResource) response.getContent()).getValue();
+    }
+
+    @Test
+    public void testCurrentTimeSync() {
+        long serverTime = System.currentTimeMillis() + 3600000;
+        WriteResponse response = device.write(DeviceEnum.CURRENT_TIME.getResourceId(),
+                LwM2mSingleResource.newDateResource(DeviceEnum.CURRENT_TIME.getResourceId(), new Date(serverTime)));
+        assertEquals(ResponseCode.CHANGED, response.getCode());
+
+        long time = ((Date) readValue(DeviceEnum.CURRENT_TIME)).getTime();
+        assertTrue(time >= serverTime && time < serverTime + 1000);
+    }
+
+    @Test
+    public void testUtcOffsetFollowsTimeZone() {
+        device.setTimeZone("Asia/Kolkata", false);
+        assertEquals("+0530", readValue(DeviceEnum.UTC_OFFSET));
+        device.setTimeZone("UTC", false);
+        assertEquals("Z", readValue(DeviceEnum.UTC_OFFSET));
+
+        device.setUtcOffset("+02", false);
+        assertEquals("+02", readValue(DeviceEnum.UTC_OFFSET));
+        device.setUtcOffset(null, false);
+        assertEquals("Z", readValue(DeviceEnum.UTC_OFFSET));
+    }
+
+    @Test
+    public void testUtcOffsetFormat() {
+        for (String id : new String[] { "Asia/Tokyo", "Europe/London", "America/Los_Angeles" }) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            SimpleDateFormat format = new SimpleDateFormat("X");
+            format.setTimeZone(zone);
+            Date now = new Date();
+            assertEquals(format.format(now), Device.formatUtcOffset(zone.getOffset(now.getTime())));
+        }
+        assertEquals("-0330", Device.formatUtcOffset(-(3 * 3600000 + 30 * 60000)));
+    }
+
+    @Test
+    public void testPowerSourceInstances() {
+        final List<Integer> changes = new ArrayList<Integer>();
+        device.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                for (int resourceId : resourceIds) {
+                    changes.add(resourceId);
+                }
+            }
+        });
+        device.setAvailablePowerSource(0, 1, true);
+        device.setAvailablePowerSource(2, 5, true);
+        device.setPowerSourceVoltage(2, 5000, true);
+        device.setPowerSourceVoltage(0, 3800, true);
+        // unchanged, not notified
+        device.setPowerSourceVoltage(0, 3800, true);
+        device.setPowerSourceVoltage(0, 3700, true);
+
+        assertEquals(5, changes.size());
+        assertEquals(3700, device.getPowerSourceVoltage(0));
+        assertEquals(-1, device.getPowerSourceVoltage(1));
+
+        ReadResponse response = device.read(DeviceEnum.POWER_SOURCE_VOLTAGE.getResourceId());
+        LwM2mMultipleResource voltage = (LwM2mMultipleResource) response.getContent();
+        assertEquals(2, voltage.getValues().size());
+        assertEquals(5000L, voltage.getValue(2));
+        assertEquals(Long.valueOf(5), device.getAvailablePowerSources().get(2));
+
+        device.removePowerSource(2, true);
+        assertEquals(1, device.getPowerSourceVoltage().size());
+        assertEquals(1, device.getAvailablePowerSources().size());
+    }
+
+    @Test
+    public void testErrorCodeRing() {
+        final AtomicInteger changes = new AtomicInteger();
+        device.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                changes.incrementAndGet();
+            }
+        });
+        device.setErrorCodeCapacity(3, false);
+        assertEquals(Long.valueOf(0), device.getErrorCode());
+
+        device.setErrorCode(1, true);
+        device.setErrorCode(8, true);
+        // flapping peripheral, already reported
+        device.setErrorCode(1, true);
+        device.setErrorCode(8, true);
+        assertEquals(2, changes.get());
+        assertEquals(2, device.getErrorCodes().size());
+
+        device.setErrorCode(5, true);
+        // ring full: the oldest error (1) is replaced in its instance
+        device.setErrorCode(7, true);
+        assertEquals(Long.valueOf(7), device.getErrorCode());
+        assertEquals(Long.valueOf(7), device.getErrorCodes().get(0));
+        assertEquals(3, device.getErrorCodes().size());
+
+        ReadResponse response = device.read(DeviceEnum.ERROR_CODE.getResourceId());
+        assertEquals(3, ((LwM2mMultipleResource) response.getContent()).getValues().size());
+
+        device.execute(DeviceEnum.RESET_ERROR_CODE.getResourceId(), null);
+        assertEquals(5, changes.get());
+        assertEquals(1, device.getErrorCodes().size());
+        assertEquals(Long.valueOf(0), device.getErrorCodes().get(0));
+        // nothing to reset
+        device.execute(DeviceEnum.RESET_ERROR_CODE.getResourceId(), null);
+        assertEquals(5, changes.get());
+    }
+
+    @Test
+    public void testBatchRejectsComputedResources() {
+        device.setErrorCode(5, false);
+        try {
+            device.batch().set(DeviceEnum.BATTERY_LEVEL, 50).set(DeviceEnum.ERROR_CODE, 0);
+            fail("Error Code is computed on read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            device.batch().set(DeviceEnum.CURRENT_TIME, new Date(0));
+            fail("Current Time is computed on read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // the live values are still read
+        assertEquals(5L, ((LwM2mMultipleResource) device.read(DeviceEnum.ERROR_CODE.getResourceId())
+                .getContent()).getValue(0));
+        assertTrue(((Date) readValue(DeviceEnum.CURRENT_TIME)).getTime() > 0);
+
+        // the UTC offset written in a batch overrides the computed one, as setUtcOffset does
+        device.batch().set(DeviceEnum.UTC_OFFSET, "+01").commit();
+        assertEquals("+01", readValue(DeviceEnum.UTC_OFFSET));
+    }
+}
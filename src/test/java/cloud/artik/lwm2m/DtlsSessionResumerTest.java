@@ -0,0 +1,209 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DtlsSessionResumerTest {
+
+    private static final byte[] KEY = new byte[] { 0x13, 0x37, 0x42, 0x00, 0x7f };
+
+    private CoapServer server;
+    private NatStandIn nat;
+    private CoapEndpoint client;
+    private DtlsSessionResumer resumer;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkConfig config = NetworkConfig.createStandardWithoutFile()
+                .setInt(NetworkConfig.Keys.ACK_TIMEOUT, 500)
+                .setFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR, 1.0f)
+                .setInt(NetworkConfig.Keys.MAX_RETRANSMIT, 3);
+
+        // server stand-in
+        InMemoryPskStore pskStore = new InMemoryPskStore();
+        pskStore.setKey("device", KEY);
+        DTLSConnector serverConnector = new DTLSConnector(
+                new DtlsConnectorConfig.Builder(new InetSocketAddress("127.0.0.1", 0)).setPskStore(pskStore).build());
+        server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(serverConnector, config));
+        server.add(new CoapResource("rd") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                exchange.respond(ResponseCode.CHANGED);
+            }
+        });
+        server.start();
+
+        nat = new NatStandIn(server.getEndpoints().get(0).getAddress());
+
+        DTLSConnector clientConnector = new DTLSConnector(
+                new DtlsConnectorConfig.Builder(new InetSocketAddress("127.0.0.1", 0))
+                        .setPskStore(new StaticPskStore("device", KEY)).build());
+        client = new CoapEndpoint(clientConnector, config);
+        resumer = new DtlsSessionResumer(ConnectionMonitor.dtlsConnectorOf(client));
+        client.addInterceptor(resumer);
+        client.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.destroy();
+        nat.close();
+        server.destroy();
+    }
+
+    @Test
+    public void testRebindingResumesSession() throws Exception {
+        assertEquals(ResponseCode.CHANGED, post().getCode());
+        assertEquals(1, nat.handshakes.get());
+        assertEquals(1, nat.fullHandshakes.get());
+
+        // a request without retransmission keeps the session
+        assertEquals(ResponseCode.CHANGED, post().getCode());
+        assertEquals(1, nat.handshakes.get());
+
+        // the NAT maps the device to another port: the server drops its records until the session is resumed
+        nat.rebind();
+        assertEquals(ResponseCode.CHANGED, post().getCode());
+        assertEquals(1, resumer.getResumptions());
+        assertEquals(2, nat.handshakes.get());
+        assertEquals(1, nat.fullHandshakes.get());
+
+        assertEquals(ResponseCode.CHANGED, post().getCode());
+        assertEquals(2, nat.handshakes.get());
+    }
+
+    private Response post() throws InterruptedException {
+        Request request = Request.newPost();
+        request.setURI("coaps://127.0.0.1:" + nat.getPort() + "/rd");
+        client.sendRequest(request);
+        Response response = request.waitForResponse(10000);
+        assertNotNull("No response", response);
+        return response;
+    }
+
+    /**
+     * UDP relay standing in for a NAT, which counts the DTLS handshakes going through it.
+     */
+    private static class NatStandIn {
+        private static final int HANDSHAKE = 22;
+        private static final int SERVER_HELLO = 2;
+        private static final int CLIENT_KEY_EXCHANGE = 16;
+
+        final AtomicInteger handshakes = new AtomicInteger();
+        final AtomicInteger fullHandshakes = new AtomicInteger();
+
+        private final InetSocketAddress server;
+        private final DatagramSocket inside;
+        private volatile DatagramSocket outside;
+        private volatile SocketAddress device;
+
+        NatStandIn(InetSocketAddress server) throws IOException {
+            this.server = server;
+            this.inside = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            this.outside = openOutside();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[2048];
+                    try {
+                        while (true) {
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            inside.receive(packet);
+                            device = packet.getSocketAddress();
+                            count(packet, CLIENT_KEY_EXCHANGE, fullHandshakes);
+                            outside.send(new DatagramPacket(packet.getData(), packet.getLength(),
+                                    NatStandIn.this.server));
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return inside.getLocalPort();
+        }
+
+        /**
+         * Forwards the traffic of the device from a new source port.
+         */
+        void rebind() throws IOException {
+            DatagramSocket previous = outside;
+            outside = openOutside();
+            previous.close();
+        }
+
+        void close() {
+            inside.close();
+            outside.close();
+        }
+
+        private DatagramSocket openOutside() throws IOException {
+            final DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[2048];
+                    try {
+                        while (true) {
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            socket.receive(packet);
+                            count(packet, SERVER_HELLO, handshakes);
+                            inside.send(new DatagramPacket(packet.getData(), packet.getLength(), device));
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return socket;
+        }
+
+        /**
+         * Counts the plain text handshake messages of the given type in the records of the datagram.
+         */
+        private static void count(DatagramPacket packet, int messageType, AtomicInteger counter) {
+            byte[] data = packet.getData();
+            int offset = packet.getOffset();
+            int end = offset + packet.getLength();
+            while (offset + 13 < end) {
+                int type = data[offset] & 0xff;
+                int epoch = ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff);
+                int length = ((data[offset + 11] & 0xff) << 8) | (data[offset + 12] & 0xff);
+                if (type == HANDSHAKE && epoch == 0 && (data[offset + 13] & 0xff) == messageType) {
+                    counter.incrementAndGet();
+                }
+                offset += 13 + length;
+            }
+        }
+    }
+}
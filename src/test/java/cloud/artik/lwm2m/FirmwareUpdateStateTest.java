@@ -0,0 +1,308 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateEnum;
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+import cloud.artik.lwm2m.firmware.FirmwareStaging;
+import cloud.artik.lwm2m.firmware.FirmwareUpdateStatus;
+
+public class FirmwareUpdateStateTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 1500;
+
+    private static final LwM2mSingleResource PACKAGE_URI = LwM2mSingleResource.newStringResource(
+            FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), "http://host/fw.bin");
+    private static final LwM2mSingleResource RESET = LwM2mSingleResource.newStringResource(
+            FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), "");
+
+    @Test
+    public void testIllegalUpdateIsRejected() throws Exception {
+        FirmwareUpdate firmwareUpdate = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+        };
+        ExecuteResponse response = firmwareUpdate.execute(FirmwareUpdateEnum.UPDATE.getResourceId(), null);
+        assertEquals(ResponseCode.METHOD_NOT_ALLOWED, response.getCode());
+        assertEquals(FirmwareUpdateState.IDLE, firmwareUpdate.getState());
+
+        assertEquals(ResponseCode.CHANGED,
+                firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode());
+        awaitState(firmwareUpdate, FirmwareUpdateState.DOWNLOADED);
+        assertEquals(ResponseCode.CHANGED,
+                firmwareUpdate.execute(FirmwareUpdateEnum.UPDATE.getResourceId(), null).getCode());
+        awaitState(firmwareUpdate, FirmwareUpdateState.IDLE);
+        assertEquals(FirmwareUpdateResult.SUCCESS, firmwareUpdate.getUpdateResult());
+    }
+
+    @Test
+    public void testResetDuringDownloadIsNotStaged() throws Exception {
+        File directory = File.createTempFile("staging", "");
+        directory.delete();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        FirmwareUpdate firmwareUpdate = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) throws Exception {
+                return downloadAndStagePackage(packageUri);
+            }
+
+            @Override
+            protected FirmwareUpdateResult downloadPackage(String packageUri, File target) {
+                started.countDown();
+                // a download which does not stop on the interrupt of the reset
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                }
+                try {
+                    FileOutputStream out = new FileOutputStream(target);
+                    out.write(new byte[100]);
+                    out.close();
+                } catch (IOException e) {
+                    return FirmwareUpdateResult.NO_STORAGE;
+                }
+                return FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+        };
+        FirmwareStaging staging = new FirmwareStaging(directory);
+        firmwareUpdate.setFirmwareStaging(staging);
+        try {
+            assertEquals(ResponseCode.CHANGED,
+                    firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode());
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(ResponseCode.CHANGED,
+                    firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), RESET).getCode());
+            assertEquals(FirmwareUpdateState.IDLE, firmwareUpdate.getState());
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            // the reset download still owns the download file
+            assertEquals(ResponseCode.METHOD_NOT_ALLOWED,
+                    firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode());
+
+            release.countDown();
+            ResponseCode code = ResponseCode.METHOD_NOT_ALLOWED;
+            for (int i = 0; i < 500 && code == ResponseCode.METHOD_NOT_ALLOWED; i++) {
+                Thread.sleep(10);
+                assertNull(staging.getStagedPackageUri());
+                assertFalse(staging.getStagedSlot().exists());
+                assertEquals(FirmwareUpdateState.IDLE, firmwareUpdate.getState());
+                code = firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode();
+            }
+            // accepted once the reset download ended, without staging
+            assertEquals(ResponseCode.CHANGED, code);
+            awaitState(firmwareUpdate, FirmwareUpdateState.DOWNLOADED);
+            assertEquals(PACKAGE_URI.getValue(), staging.getStagedPackageUri());
+            assertEquals(FirmwareUpdateState.DOWNLOADED, staging.recover().getState());
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Stress harness: package writes, resets and updates from many threads, while a reader checks every
+     * State/Update Result pair it sees.
+     */
+    @Test
+    public void testResetInterruptsDownload() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        FirmwareUpdate firmwareUpdate = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) {
+                if (started.getCount() == 0) {
+                    return FirmwareUpdateResult.SUCCESS;
+                }
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    return FirmwareUpdateResult.CONNECTION_LOST;
+                }
+                return FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+        };
+        assertEquals(ResponseCode.CHANGED,
+                firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(ResponseCode.CHANGED,
+                firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), RESET).getCode());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // without a FirmwareStaging nothing is shared with the next download
+        assertEquals(ResponseCode.CHANGED,
+                firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI).getCode());
+        awaitState(firmwareUpdate, FirmwareUpdateState.DOWNLOADED);
+    }
+
+    @Test
+    public void testConcurrentTransitions() throws Exception {
+        final AtomicInteger updating = new AtomicInteger();
+        final AtomicInteger overlappingUpdates = new AtomicInteger();
+        final AtomicInteger updates = new AtomicInteger();
+        final Random random = new Random();
+        final FirmwareUpdate firmwareUpdate = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) {
+                Thread.yield();
+                return random.nextInt(4) == 0 ? FirmwareUpdateResult.CONNECTION_LOST : FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                if (updating.incrementAndGet() > 1 || getState() != FirmwareUpdateState.UPDATING) {
+                    overlappingUpdates.incrementAndGet();
+                }
+                updates.incrementAndGet();
+                Thread.yield();
+                updating.decrementAndGet();
+                return random.nextInt(4) == 0 ? FirmwareUpdateResult.FAILED : FirmwareUpdateResult.SUCCESS;
+            }
+        };
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<FirmwareUpdateStatus> inconsistent = new ArrayList<FirmwareUpdateStatus>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    FirmwareUpdateStatus status = firmwareUpdate.getStatus();
+                    if (!status.isConsistent()) {
+                        inconsistent.add(status);
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int seed = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random operations = new Random(seed);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < OPERATIONS; j++) {
+                        ResponseCode code;
+                        switch (operations.nextInt(5)) {
+                        case 0:
+                            code = firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), RESET)
+                                    .getCode();
+                            break;
+                        case 1:
+                        case 2:
+                            code = firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI)
+                                    .getCode();
+                            break;
+                        default:
+                            code = firmwareUpdate.execute(FirmwareUpdateEnum.UPDATE.getResourceId(), null).getCode();
+                            break;
+                        }
+                        if (code == ResponseCode.METHOD_NOT_ALLOWED) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // let the last download or update end
+        awaitNotBusy(firmwareUpdate);
+        // the random schedule may not have reached Downloaded before an Update: run one, still under the reader
+        for (int i = 0; i < 50 && updates.get() == 0; i++) {
+            if (firmwareUpdate.write(FirmwareUpdateEnum.PACKAGE_URI.getResourceId(), PACKAGE_URI)
+                    .getCode() == ResponseCode.METHOD_NOT_ALLOWED) {
+                // a reset download may still be ending
+                Thread.sleep(10);
+            }
+            awaitNotBusy(firmwareUpdate);
+            firmwareUpdate.execute(FirmwareUpdateEnum.UPDATE.getResourceId(), null);
+            awaitNotBusy(firmwareUpdate);
+        }
+        running.set(false);
+        reader.join();
+
+        assertTrue(inconsistent.toString(), inconsistent.isEmpty());
+        assertEquals(0, overlappingUpdates.get());
+        assertTrue(updates.get() > 0);
+        assertTrue(rejected.get() > 0);
+        assertTrue(firmwareUpdate.getStatus().isConsistent());
+        FirmwareUpdateState state = firmwareUpdate.getState();
+        assertTrue(state.toString(), state == FirmwareUpdateState.IDLE || state == FirmwareUpdateState.DOWNLOADED);
+    }
+
+    private static void awaitNotBusy(FirmwareUpdate firmwareUpdate) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && (firmwareUpdate.getState() == FirmwareUpdateState.DOWNLOADING
+                || firmwareUpdate.getState() == FirmwareUpdateState.UPDATING)) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitState(FirmwareUpdate firmwareUpdate, FirmwareUpdateState state)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && firmwareUpdate.getState() != state; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, firmwareUpdate.getState());
+    }
+}
@@ -4,6 +4,7 @@ import cloud.artik.lwm2m.enums.FirmwareUpdateEnum;
 import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
 import cloud.artik.lwm2m.enums.SupportedBinding;
 import cloud.artik.lwm2m.exception.ConnectionLostException;
+import org.eclipse.leshan.client.resource.ResourceChangedListener;
 import org.eclipse.leshan.core.node.LwM2mSingleResource;
 import org.eclipse.leshan.core.response.ExecuteResponse;
 import org.eclipse.leshan.core.response.ReadResponse;
@@ -11,6 +12,8 @@ import org.eclipse.leshan.core.response.WriteResponse;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -140,4 +143,40 @@ public class FirmwareUpdateTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void ProgressNotificationTest() {
+        FirmwareUpdate firmwareUpdate = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+        };
+        final AtomicInteger notifications = new AtomicInteger();
+        firmwareUpdate.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                notifications.incrementAndGet();
+            }
+        });
+        firmwareUpdate.setProgressNotificationInterval(0);
+        firmwareUpdate.setProgressNotificationStep(25);
+
+        // one chunk of 1000 bytes at a time
+        for (long received = 1000; received <= 100000; received += 1000) {
+            firmwareUpdate.setDownloadProgress(received, 100000);
+        }
+
+        assertEquals(100000L, firmwareUpdate.getBytesReceived());
+        assertEquals(100, firmwareUpdate.getDownloadProgress());
+        // 25, 50, 75 and 100 percent
+        assertEquals(4, notifications.get());
+        ReadResponse readResponse = firmwareUpdate.read(FirmwareUpdateEnum.DOWNLOAD_PROGRESS.getResourceId());
+        assertEquals(100L, ((LwM2mSingleResource) readResponse.getContent()).getValue());
+    }
 }
@@ -0,0 +1,126 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+import cloud.artik.lwm2m.enums.ShutdownOutcome;
+
+public class FleetShutdownTest {
+
+    @Test
+    public void testDeregistersInParallel() {
+        List<StubClient> clients = new ArrayList<StubClient>();
+        for (int i = 0; i < 50; i++) {
+            clients.add(new StubClient("device-" + i, 100, ConnectionEventType.DEREGISTRATION_SUCCESS));
+        }
+
+        FleetShutdownReport report = new FleetShutdown(10).shutdown(clients, 10, TimeUnit.SECONDS);
+
+        assertEquals(50, report.getCount(ShutdownOutcome.DEREGISTERED));
+        assertTrue(report.isConfirmed());
+        // 5 rounds of 100ms rather than 50
+        assertTrue("Took " + report.getDuration() + "ms", report.getDuration() < 2500);
+        for (StubClient client : clients) {
+            assertTrue(client.deregistered);
+        }
+    }
+
+    @Test
+    public void testForceClosesAfterDeadline() {
+        StubClient hanging1 = new StubClient("hanging-1", 60000, ConnectionEventType.DEREGISTRATION_SUCCESS);
+        StubClient hanging2 = new StubClient("hanging-2", 60000, ConnectionEventType.DEREGISTRATION_SUCCESS);
+        StubClient rejected = new StubClient("rejected", 0, ConnectionEventType.DEREGISTRATION_FAILURE);
+        StubClient queued = new StubClient("queued", 0, ConnectionEventType.DEREGISTRATION_SUCCESS);
+        List<StubClient> clients = new ArrayList<StubClient>();
+        clients.add(rejected);
+        clients.add(hanging1);
+        clients.add(hanging2);
+        clients.add(queued);
+
+        FleetShutdown shutdown = new FleetShutdown(2);
+        shutdown.setForceCloseTimeout(1000);
+        FleetShutdownReport report = shutdown.shutdown(clients, 1, TimeUnit.SECONDS);
+
+        assertFalse(report.isConfirmed());
+        assertEquals(ShutdownOutcome.DEREGISTRATION_FAILED, report.getOutcome(rejected));
+        assertEquals(ShutdownOutcome.FORCE_CLOSED, report.getOutcome(hanging1));
+        assertEquals(ShutdownOutcome.FORCE_CLOSED, report.getOutcome(hanging2));
+        assertEquals(ShutdownOutcome.FORCE_CLOSED, report.getOutcome(queued));
+        assertEquals(3, report.getClients(ShutdownOutcome.FORCE_CLOSED).size());
+        // never got a thread before the deadline
+        assertTrue(queued.closed);
+        assertFalse(queued.deregistered);
+        assertTrue(report.getDuration() < 5000);
+    }
+
+    @Test
+    public void testClientNotRegistered() {
+        StubClient client = new StubClient("offline", 0, null);
+        client.registrationId = null;
+        List<StubClient> clients = new ArrayList<StubClient>();
+        clients.add(client);
+
+        FleetShutdownReport report = new FleetShutdown(1).shutdown(clients, 1, TimeUnit.SECONDS);
+
+        assertEquals(ShutdownOutcome.NOT_REGISTERED, report.getOutcome(client));
+        assertTrue(report.isConfirmed());
+    }
+
+    /**
+     * Client answering the de-registration after a delay, without a server.
+     */
+    private static class StubClient extends ArtikCloudClient {
+        private final long delay;
+        private final ConnectionEventType event;
+        private volatile ConnectionListener listener = null;
+        private volatile String registrationId = "registration";
+        private volatile boolean closed = false;
+        private volatile boolean deregistered = false;
+
+        StubClient(String deviceId, long delay, ConnectionEventType event) {
+            super(deviceId, "token", null);
+            this.delay = delay;
+            this.event = event;
+        }
+
+        @Override
+        public void close(boolean deregister) {
+            closed = true;
+            if (!deregister || registrationId == null) {
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // de-registration interrupted, as in Leshan
+                return;
+            }
+            deregistered = true;
+            listener.onConnectionEvent(new ConnectionEvent(event, System.currentTimeMillis(), delay, "coaps://server",
+                    registrationId, null, null));
+        }
+
+        @Override
+        public String getRegistrationId() {
+            return registrationId;
+        }
+
+        @Override
+        public void addConnectionListener(ConnectionListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void removeConnectionListener(ConnectionListener listener) {
+            this.listener = null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LifetimeTunerTest {
+
+    // the lifetimes applied by the tuner, negative when written without a new Register
+    private final BlockingQueue<Long> applied = new ArrayBlockingQueue<Long>(20);
+    private LifetimeTuner tuner;
+
+    @Before
+    public void setUp() {
+        tuner = new LifetimeTuner(300, 60, 3600, true) {
+            @Override
+            void apply(long lifetime, boolean register) {
+                applied.add(register ? lifetime : -lifetime);
+            }
+        };
+        tuner.setMinRegisterInterval(0);
+    }
+
+    @After
+    public void tearDown() {
+        tuner.shutdown();
+    }
+
+    @Test
+    public void testDoublesWhileReachable() throws Exception {
+        tuner.survived(270000);
+        assertEquals(600, tuner.getLifetime());
+        tuner.survived(540000);
+        tuner.survived(1080000);
+        assertEquals(2400, tuner.getLifetime());
+        tuner.survived(2160000);
+        assertEquals(3600, tuner.getLifetime());
+        // the upper bound
+        tuner.survived(3240000);
+        assertEquals(3600, tuner.getLifetime());
+
+        assertEquals(Long.valueOf(600), applied.poll(1, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(1200), applied.poll(1, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(2400), applied.poll(1, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(3600), applied.poll(1, TimeUnit.SECONDS));
+        assertEquals(null, applied.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testSettlesBelowBindingTimeout() throws Exception {
+        tuner.survived(270000);
+        tuner.expired(540000);
+        // halfway, 405s between updates
+        assertEquals(450, tuner.getLifetime());
+        tuner.survived(405000);
+        assertEquals(525, tuner.getLifetime());
+        tuner.expired(472500);
+        assertEquals(488, tuner.getLifetime());
+        // close enough: stays on the longest idle time survived
+        tuner.survived(438750);
+        assertEquals(488, tuner.getLifetime());
+        assertEquals(438750, tuner.getBindingTimeout());
+
+        // too short to tell anything
+        tuner.expired(5000);
+        assertEquals(488, tuner.getLifetime());
+        assertEquals(4, countApplied());
+    }
+
+    @Test
+    public void testStricterNat() {
+        tuner.survived(270000);
+        tuner.survived(540000);
+        assertEquals(1200, tuner.getLifetime());
+
+        // the binding now expires after 100s: search again from below, down to the lower bound
+        tuner.expired(100000);
+        assertEquals(0, tuner.getBindingTimeout());
+        assertEquals(60, tuner.getLifetime());
+        tuner.survived(50000);
+        assertEquals(84, tuner.getLifetime());
+    }
+
+    @Test
+    public void testRegistersAgainOnlyWhenNeeded() throws Exception {
+        tuner.setMinRegisterInterval(200);
+        tuner.survived(270000);
+        tuner.survived(540000);
+        assertEquals(1200, tuner.getLifetime());
+        // the server keeps 300s until the interval elapsed
+        assertEquals(null, applied.poll(100, TimeUnit.MILLISECONDS));
+
+        // the next update registers again instead
+        Thread.sleep(200);
+        Request update = Request.newPost();
+        update.getOptions().setUriPath("rd/5a3f");
+        update.setToken(new byte[] { 1 });
+        update.setMID(1);
+        tuner.sendRequest(update);
+        assertEquals(Long.valueOf(1200), applied.poll(1, TimeUnit.SECONDS));
+
+        // a converged search registers at once
+        tuner.setMinRegisterInterval(3600000);
+        tuner.expired(1500000);
+        assertEquals(Long.valueOf(-1134), applied.poll(1, TimeUnit.SECONDS));
+        tuner.survived(1380000);
+        assertEquals(1534, tuner.getLifetime());
+        assertEquals(Long.valueOf(1534), applied.poll(1, TimeUnit.SECONDS));
+
+        // a shorter lifetime does not: the updates only come earlier
+        tuner.expired(500000);
+        assertEquals(278, tuner.getLifetime());
+        assertEquals(Long.valueOf(-278), applied.poll(1, TimeUnit.SECONDS));
+        assertEquals(null, applied.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private int countApplied() throws InterruptedException {
+        int count = 0;
+        while (applied.poll(200, TimeUnit.MILLISECONDS) != null) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,125 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.auth.RawPublicKeyIdentity;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RawPublicKeyTrustTest {
+
+    private KeyPair serverKeys;
+    private KeyPair clientKeys;
+    private CoapServer server;
+    private CoapEndpoint client;
+    private RawPublicKeyTrust trust;
+    private volatile Object clientIdentity;
+    private final AtomicInteger registers = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        serverKeys = generator.generateKeyPair();
+        clientKeys = generator.generateKeyPair();
+
+        DTLSConnector serverConnector = new DTLSConnector(
+                new DtlsConnectorConfig.Builder(new InetSocketAddress("127.0.0.1", 0))
+                        .setIdentity(serverKeys.getPrivate(), serverKeys.getPublic()).build());
+        server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(serverConnector, NetworkConfig.createStandardWithoutFile()));
+        server.add(new CoapResource("rd") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                registers.incrementAndGet();
+                clientIdentity = exchange.advanced().getRequest().getSenderIdentity();
+                exchange.respond(ResponseCode.CHANGED);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.destroy();
+        }
+        server.destroy();
+    }
+
+    @Test
+    public void testRawPublicKeyHandshake() throws Exception {
+        startClient(new KeyConfig(clientKeys.getPublic(), clientKeys.getPrivate(), serverKeys.getPublic()));
+
+        // held back until the server authenticated
+        assertNull(post(500));
+        assertEquals(0, registers.get());
+
+        assertTrue(trust.verify(serverUri(), 10000));
+        Response response = post(10000);
+        assertNotNull(response);
+        assertEquals(ResponseCode.CHANGED, response.getCode());
+        assertTrue(clientIdentity instanceof RawPublicKeyIdentity);
+        assertEquals(clientKeys.getPublic(), ((RawPublicKeyIdentity) clientIdentity).getKey());
+    }
+
+    @Test
+    public void testUnknownServerKeyIsRejected() throws Exception {
+        KeyPair other = KeyPairGenerator.getInstance("EC").generateKeyPair();
+        startClient(new KeyConfig(clientKeys.getPublic(), clientKeys.getPrivate(), other.getPublic()));
+
+        assertFalse(trust.verify(serverUri(), 10000));
+        assertNull(post(2000));
+        // the impostor never received the request
+        assertEquals(0, registers.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRsaKeysAreRefused() throws Exception {
+        KeyPair rsa = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        new KeyConfig(rsa.getPublic(), rsa.getPrivate(), serverKeys.getPublic());
+    }
+
+    private void startClient(KeyConfig keyConfig) throws Exception {
+        // a PSK connector, as Leshan builds it
+        DTLSConnector connector = new DTLSConnector(
+                new DtlsConnectorConfig.Builder(new InetSocketAddress("127.0.0.1", 0))
+                        .setPskStore(new StaticPskStore("device", new byte[] { 0x01 })).build());
+        client = new CoapEndpoint(connector, NetworkConfig.createStandardWithoutFile());
+        trust = RawPublicKeyTrust.configure(client, connector, keyConfig);
+        client.start();
+    }
+
+    private String serverUri() {
+        return "coaps://127.0.0.1:" + server.getEndpoints().get(0).getAddress().getPort();
+    }
+
+    private Response post(long timeout) throws InterruptedException {
+        Request request = Request.newPost();
+        request.setURI(serverUri() + "/rd");
+        client.sendRequest(request);
+        return request.waitForResponse(timeout);
+    }
+}
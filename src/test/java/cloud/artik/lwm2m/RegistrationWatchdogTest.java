@@ -0,0 +1,146 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+public class RegistrationWatchdogTest {
+
+    private static final String SERVER = "coaps://server:5686";
+
+    private final ConnectionMonitor monitor = new ConnectionMonitor();
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    // the steps taken by the watchdog
+    private final BlockingQueue<String> steps = new ArrayBlockingQueue<String>(100);
+    private volatile boolean answering = true;
+    private RegistrationWatchdog watchdog;
+
+    @Before
+    public void setUp() {
+        watchdog = new RegistrationWatchdog(monitor, 1) {
+            @Override
+            String registrationId() {
+                return "reg";
+            }
+
+            @Override
+            boolean update(String registrationId) {
+                steps.add("update");
+                return answering;
+            }
+
+            @Override
+            boolean rehandshake() {
+                steps.add("rehandshake");
+                return true;
+            }
+
+            @Override
+            void reregister() {
+                steps.add("reregister");
+            }
+        };
+        // the check runs 1s after the registration: 900ms for the scheduled update, then 100ms
+        watchdog.setResponseTimeout(100);
+        monitor.addListener(metrics);
+        monitor.addListener(watchdog);
+    }
+
+    @After
+    public void tearDown() {
+        watchdog.shutdown();
+    }
+
+    @Test
+    public void testQuietWhileUpdatesSucceed() throws Exception {
+        monitor.fire(ConnectionEventType.REGISTRATION_SUCCESS, 100, SERVER, "reg", null, null);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(500);
+            monitor.fire(ConnectionEventType.UPDATE_SUCCESS, 100, SERVER, "reg", null, null);
+        }
+        assertEquals(null, steps.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, metrics.getCount(ConnectionEventType.WATCHDOG_UPDATE));
+    }
+
+    @Test
+    public void testOwnUpdateRecovers() throws Exception {
+        monitor.fire(ConnectionEventType.REGISTRATION_SUCCESS, 100, SERVER, "reg", null, null);
+        assertEquals("update", steps.poll(5, TimeUnit.SECONDS));
+        assertEquals(null, steps.poll(200, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, metrics.getCount(ConnectionEventType.WATCHDOG_UPDATE));
+        assertEquals(1, metrics.getCount(ConnectionEventType.UPDATE_SUCCESS));
+        assertEquals(0, metrics.getCount(ConnectionEventType.WATCHDOG_REHANDSHAKE));
+        assertEquals(0, metrics.getCount(ConnectionEventType.WATCHDOG_REREGISTRATION));
+    }
+
+    @Test
+    public void testEscalatesToRegister() throws Exception {
+        answering = false;
+        monitor.fire(ConnectionEventType.REGISTRATION_SUCCESS, 100, SERVER, "reg", null, null);
+        assertEquals("update", steps.poll(5, TimeUnit.SECONDS));
+        assertEquals("rehandshake", steps.poll(1, TimeUnit.SECONDS));
+        assertEquals("update", steps.poll(1, TimeUnit.SECONDS));
+        assertEquals("reregister", steps.poll(1, TimeUnit.SECONDS));
+        // until the new registration succeeds
+        assertEquals(null, steps.poll(1500, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, metrics.getCount(ConnectionEventType.WATCHDOG_UPDATE));
+        assertEquals(1, metrics.getCount(ConnectionEventType.WATCHDOG_REHANDSHAKE));
+        assertEquals(1, metrics.getCount(ConnectionEventType.WATCHDOG_REREGISTRATION));
+        assertEquals(0, metrics.getCount(ConnectionEventType.UPDATE_SUCCESS));
+    }
+
+    @Test
+    public void testUpdatesTheRegistrationLocation() throws Exception {
+        // the server answers the updates on the location it gave to the Register
+        CoapResource rd = new CoapResource("rd");
+        rd.add(new CoapResource("5a3f") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                exchange.respond(ResponseCode.CHANGED);
+            }
+        });
+        CoapServer server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0)));
+        server.add(rd);
+        final CoapEndpoint endpoint = new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0));
+        RegistrationWatchdog watchdog = new RegistrationWatchdog(monitor, 60) {
+            @Override
+            Endpoint endpoint() {
+                return endpoint;
+            }
+        };
+        monitor.addListener(watchdog);
+        try {
+            server.start();
+            endpoint.start();
+            String uri = "coap://127.0.0.1:" + server.getEndpoints().get(0).getAddress().getPort();
+            monitor.fire(ConnectionEventType.REGISTRATION_SUCCESS, 100, uri, "rd/5a3f", null, null);
+
+            assertTrue(watchdog.update("rd/5a3f"));
+            assertFalse(watchdog.update("rd/0000"));
+        } finally {
+            watchdog.shutdown();
+            endpoint.destroy();
+            server.destroy();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.client.resource.ResourceChangedListener;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.LocationEnum;
+import cloud.artik.lwm2m.enums.Lwm2mEnum;
+
+public class ResourceBatchTest {
+
+    @Test
+    public void testSingleNotification() throws InterruptedException {
+        Location location = new Location() {
+        };
+        final AtomicInteger notifications = new AtomicInteger();
+        final int[] notified = new int[1];
+        location.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                notifications.incrementAndGet();
+                notified[0] = resourceIds.length;
+            }
+        });
+
+        location.setLocation("37.5", "127.0", "10", "0", "5");
+        assertEquals(1, notifications.get());
+        // five values and the timestamp
+        assertEquals(6, notified[0]);
+
+        // a new timestamp
+        Thread.sleep(5);
+        location.batch().set(LocationEnum.LATITUDE, "37.5").set(LocationEnum.LONGITUDE, "127.1").commit();
+        assertEquals(2, notifications.get());
+        // only the longitude and the timestamp changed
+        assertEquals(2, notified[0]);
+        assertEquals("127.1", location.getLongitude());
+    }
+
+    @Test
+    public void testReadersSeeWholeBatches() throws Exception {
+        final Location location = new Location() {
+        };
+        location.setLocation("0", "0", "0", "0", "0");
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger torn = new AtomicInteger();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    Map<Lwm2mEnum, LwM2mResource> snapshot = location.snapshot();
+                    Object latitude = snapshot.get(LocationEnum.LATITUDE).getValue();
+                    Object longitude = snapshot.get(LocationEnum.LONGITUDE).getValue();
+                    if (!latitude.equals(longitude)) {
+                        torn.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20000; i++) {
+            String value = String.valueOf(i);
+            location.batch().set(LocationEnum.LATITUDE, value).set(LocationEnum.LONGITUDE, value).commit();
+        }
+        running.set(false);
+        reader.join();
+
+        assertEquals(0, torn.get());
+        assertTrue(location.getTimestamp() != null);
+    }
+}
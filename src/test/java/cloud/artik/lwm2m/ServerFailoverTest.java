@@ -0,0 +1,161 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
+import org.eclipse.leshan.client.object.Security;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.ConnectionEventType;
+
+public class ServerFailoverTest {
+
+    private static final String FIRST = "coaps://first:5686";
+    private static final String SECOND = "coaps://second:5686";
+    private static final String THIRD = "coaps://third";
+
+    // probed round-trip latency of each server, -1 for unreachable
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private final BlockingQueue<String> activated = new ArrayBlockingQueue<String>(10);
+    private ServerFailover failover;
+
+    @Before
+    public void setUp() {
+        failover = new ServerFailover(Arrays.asList(FIRST, SECOND, THIRD)) {
+            @Override
+            void probe(ServerStatus server) {
+                long latency = latencies.get(server.getUri());
+                if (latency < 0) {
+                    server.recordFailure(System.currentTimeMillis());
+                } else {
+                    server.recordHandshake(latency * 3);
+                    server.recordRoundTrip(latency);
+                }
+            }
+
+            @Override
+            void activate(ServerStatus server) {
+                activated.add(server.getUri());
+            }
+        };
+        failover.setSlowThreshold(1000);
+        latencies.put(FIRST, 300L);
+        latencies.put(SECOND, 40L);
+        latencies.put(THIRD, 120L);
+    }
+
+    @After
+    public void tearDown() {
+        failover.shutdown();
+    }
+
+    @Test
+    public void testPreferFastestReachable() {
+        assertEquals(FIRST, failover.getActive().getUri());
+        assertEquals(SECOND, failover.probeAll().getUri());
+        assertEquals(120, failover.getServers().get(2).getRoundTripLatency());
+        assertEquals(360, failover.getServers().get(2).getHandshakeLatency());
+
+        latencies.put(SECOND, -1L);
+        failover.probeAll();
+        assertFalse(failover.getServers().get(1).isReachable());
+        assertEquals(THIRD, failover.getActive().getUri());
+    }
+
+    @Test
+    public void testFailoverOnTimeout() throws Exception {
+        failover.probeAll();
+        failover.onConnectionEvent(event(ConnectionEventType.UPDATE_TIMEOUT, SECOND, 93000));
+        assertEquals(THIRD, activated.poll(5, TimeUnit.SECONDS));
+        assertEquals(THIRD, failover.getActive().getUri());
+        assertEquals(1, failover.getServers().get(1).getConsecutiveFailures());
+
+        // a late event of the server left behind changes nothing
+        failover.onConnectionEvent(event(ConnectionEventType.REGISTRATION_TIMEOUT, SECOND, 93000));
+        assertEquals(null, activated.poll(200, TimeUnit.MILLISECONDS));
+
+        // all servers down: cycle to the one that failed first; events carry the URI with its default port
+        latencies.put(FIRST, -1L);
+        latencies.put(SECOND, -1L);
+        failover.onConnectionEvent(event(ConnectionEventType.REGISTRATION_TIMEOUT, "coaps://third:5684", 93000));
+        String next = activated.poll(5, TimeUnit.SECONDS);
+        assertTrue(next, FIRST.equals(next) || SECOND.equals(next));
+    }
+
+    @Test
+    public void testLeaveSlowServer() throws Exception {
+        failover.onConnectionEvent(event(ConnectionEventType.REGISTRATION_SUCCESS, FIRST, 900));
+        assertEquals(null, activated.poll(200, TimeUnit.MILLISECONDS));
+
+        // slow, but the others are not twice as fast
+        latencies.put(SECOND, 1500L);
+        latencies.put(THIRD, 1500L);
+        failover.onConnectionEvent(event(ConnectionEventType.UPDATE_SUCCESS, FIRST, 3000));
+        assertEquals(null, activated.poll(200, TimeUnit.MILLISECONDS));
+
+        latencies.put(THIRD, 100L);
+        failover.onConnectionEvent(event(ConnectionEventType.UPDATE_SUCCESS, FIRST, 8000));
+        assertEquals(THIRD, activated.poll(5, TimeUnit.SECONDS));
+    }
+
+    private static ConnectionEvent event(ConnectionEventType type, String uri, long duration) {
+        return new ConnectionEvent(type, System.currentTimeMillis(), duration, uri, null, null, null);
+    }
+
+    @Test
+    public void testProbesWithDevicePsk() throws Exception {
+        byte[] key = new byte[] { 1, 2, 3, 4 };
+        CoapServer accepting = pskServer("device", key);
+        CoapServer rejecting = pskServer("device", new byte[] { 5, 6, 7, 8 });
+        ServerFailover probing = null;
+        try {
+            String rejectingUri = "coaps://127.0.0.1:" + rejecting.getEndpoints().get(0).getAddress().getPort();
+            String acceptingUri = "coaps://127.0.0.1:" + accepting.getEndpoints().get(0).getAddress().getPort();
+            probing = new ServerFailover(Arrays.asList(rejectingUri, acceptingUri));
+            probing.setProbeTimeout(1000);
+            // the Security instance names the other server, as before a failover
+            probing.attach(null, Security.psk(rejectingUri, 123, "device".getBytes(), key));
+
+            assertEquals(acceptingUri, probing.probeAll().getUri());
+            ServerStatus reached = probing.getServers().get(1);
+            assertTrue(reached.isReachable());
+            assertTrue(reached.getHandshakeLatency() >= 0);
+            assertTrue(reached.getRoundTripLatency() >= 0);
+            assertFalse(probing.getServers().get(0).isReachable());
+        } finally {
+            if (probing != null) {
+                probing.shutdown();
+            }
+            accepting.destroy();
+            rejecting.destroy();
+        }
+    }
+
+    private static CoapServer pskServer(String identity, byte[] key) {
+        InMemoryPskStore store = new InMemoryPskStore();
+        store.setKey(identity, key);
+        DtlsConnectorConfig config = new DtlsConnectorConfig.Builder(new InetSocketAddress("127.0.0.1", 0))
+                .setPskStore(store).build();
+        CoapServer server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(new DTLSConnector(config), NetworkConfig.getStandard()));
+        server.start();
+        return server;
+    }
+}
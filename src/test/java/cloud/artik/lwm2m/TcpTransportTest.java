@@ -0,0 +1,131 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.tcp.TcpClientConnector;
+import org.eclipse.californium.elements.tcp.TcpServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TcpTransportTest {
+
+    private static final int CLIENTS = 20;
+
+    private NetworkConfig config;
+    private CoapServer server;
+    private int port;
+    private TcpTransport transport;
+    private List<CoapEndpoint> clients = new ArrayList<CoapEndpoint>();
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        config = NetworkConfig.createStandardWithoutFile();
+        server = new CoapServer();
+        server.addEndpoint(new CoapEndpoint(new TcpServerConnector(new InetSocketAddress("127.0.0.1", port), 2, 100),
+                config));
+        server.add(new CoapResource("rd") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                exchange.respond(ResponseCode.CHANGED);
+            }
+        });
+        server.start();
+        transport = new TcpTransport(1);
+    }
+
+    @After
+    public void tearDown() {
+        for (CoapEndpoint client : clients) {
+            client.destroy();
+        }
+        transport.shutdown();
+        // destroy() stops the TcpServerConnector twice, which fails
+        server.stop();
+    }
+
+    @Test
+    public void testClientsShareTheIoThreads() throws Exception {
+        for (int i = 0; i < CLIENTS; i++) {
+            // as Leshan builds them
+            CoapEndpoint client = new CoapEndpoint(new TcpClientConnector(1, 100000, 1000), config);
+            assertTrue(transport.install(client, null));
+            client.start();
+            clients.add(client);
+        }
+        exchange(2);
+        assertEquals(CLIENTS, transport.getConnectionCount());
+
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("tcp-transport")) {
+                threads++;
+            }
+        }
+        assertEquals(1, threads);
+
+        for (CoapEndpoint client : clients) {
+            client.stop();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, transport.getConnectionCount());
+    }
+
+    @Test
+    public void testWithoutFlushBatching() throws Exception {
+        transport.setFlushBatching(false);
+        transport.setNativeTransport(false);
+        CoapEndpoint client = new CoapEndpoint(new TcpClientConnector(1, 100000, 1000), config);
+        assertTrue(transport.install(client, null));
+        client.start();
+        clients.add(client);
+        exchange(3);
+        assertFalse(transport.isNative());
+        assertEquals(1, transport.getConnectionCount());
+    }
+
+    @Test
+    public void testUdpEndpointIsLeftAlone() {
+        assertFalse(transport.install(new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0)), null));
+    }
+
+    private void exchange(int rounds) throws InterruptedException {
+        for (int round = 0; round < rounds; round++) {
+            List<Request> requests = new ArrayList<Request>();
+            for (CoapEndpoint client : clients) {
+                Request request = Request.newPost();
+                request.setURI("coap+tcp://127.0.0.1:" + port + "/rd");
+                client.sendRequest(request);
+                requests.add(request);
+            }
+            for (Request request : requests) {
+                Response response = request.waitForResponse(5000);
+                assertNotNull("No response", response);
+                assertEquals(ResponseCode.CHANGED, response.getCode());
+            }
+        }
+    }
+}
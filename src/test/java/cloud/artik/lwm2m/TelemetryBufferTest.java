@@ -0,0 +1,167 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.client.resource.ResourceChangedListener;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateEnum;
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+import cloud.artik.lwm2m.enums.LocationEnum;
+import cloud.artik.lwm2m.senml.SenMLCbor;
+import cloud.artik.lwm2m.senml.SenMLPack;
+
+public class TelemetryBufferTest {
+
+    // the batches sent
+    private final BlockingQueue<SenMLPack> sent = new ArrayBlockingQueue<SenMLPack>(1000);
+    private volatile boolean acknowledging = true;
+    private final AtomicInteger notifications = new AtomicInteger();
+    private TelemetryBuffer buffer;
+    private Location location;
+
+    @Before
+    public void setUp() {
+        buffer = new TelemetryBuffer() {
+            @Override
+            boolean send(SenMLPack pack) {
+                if (!acknowledging) {
+                    return false;
+                }
+                sent.add(pack);
+                return true;
+            }
+        };
+        location = new Location() {
+        };
+        location.addResourceChangedListener(new ResourceChangedListener() {
+            @Override
+            public void resourcesChanged(int... resourceIds) {
+                notifications.incrementAndGet();
+            }
+        });
+        location.setTelemetry(buffer, "/6/0/");
+    }
+
+    @After
+    public void tearDown() {
+        buffer.close(false);
+    }
+
+    @Test
+    public void testBatchesByCount() throws Exception {
+        buffer.setMaxRecords(100);
+        buffer.setMaxBytes(Integer.MAX_VALUE);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            location.record(LocationEnum.VELOCITY, (long) i, start + i * 1000);
+        }
+
+        int records = 0;
+        for (int i = 0; i < 10; i++) {
+            SenMLPack pack = sent.poll(5, TimeUnit.SECONDS);
+            assertEquals(100, pack.size());
+            records += pack.size();
+            // base name and base time once, then name, value and relative time
+            assertTrue(SenMLCbor.encode(pack).length < 100 * 12);
+        }
+        assertEquals(1000, records);
+        assertEquals(null, sent.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, notifications.get());
+        assertEquals(0, buffer.getBuffered());
+    }
+
+    @Test
+    public void testBatchesByBytesAndAge() throws Exception {
+        buffer.setMaxBytes(300);
+        buffer.setMaxAge(300);
+        for (int i = 0; i < 20; i++) {
+            location.record(LocationEnum.LATITUDE, "37.5" + i, System.currentTimeMillis());
+        }
+        int records = 0;
+        SenMLPack pack;
+        while ((pack = sent.poll(1, TimeUnit.SECONDS)) != null) {
+            // the size is estimated
+            assertTrue(SenMLCbor.encode(pack).length < 400);
+            records += pack.size();
+        }
+        assertEquals(20, records);
+        assertEquals("37.519", location.getLatitude());
+
+        // a single sample goes once it is old enough
+        long start = System.nanoTime();
+        location.record(LocationEnum.ALTITUDE, "12", System.currentTimeMillis());
+        pack = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, pack.size());
+        assertEquals("/6/0/", pack.getRecords().get(0).getBaseName());
+        assertEquals("2", pack.getRecords().get(0).getName());
+        assertTrue((System.nanoTime() - start) / 1000000 >= 250);
+    }
+
+    @Test
+    public void testKeepsBatchesUntilAcknowledged() throws Exception {
+        acknowledging = false;
+        buffer.setMaxRecords(100);
+        buffer.setMaxBytes(Integer.MAX_VALUE);
+        buffer.setMaxBuffered(250);
+        for (int i = 0; i < 400; i++) {
+            location.record(LocationEnum.VELOCITY, (long) i, 1000L * i);
+        }
+        Thread.sleep(200);
+        // the two oldest batches were dropped
+        assertEquals(200, buffer.getDroppedRecords());
+        assertEquals(200, buffer.getBuffered());
+
+        acknowledging = true;
+        buffer.flush();
+        assertEquals(200L, sent.poll(5, TimeUnit.SECONDS).getRecords().get(0).getValue());
+        assertEquals(300L, sent.poll(5, TimeUnit.SECONDS).getRecords().get(0).getValue());
+        assertEquals(null, sent.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, buffer.getBuffered());
+    }
+
+    @Test
+    public void testNotifiesWithoutBuffer() {
+        location.setTelemetry(null, null);
+        location.record(LocationEnum.VELOCITY, 3.5);
+        assertEquals(1, notifications.get());
+        assertEquals(null, sent.poll());
+    }
+
+    @Test
+    public void testRejectsComputedResources() throws Exception {
+        FirmwareUpdate firmware = new FirmwareUpdate() {
+            @Override
+            public FirmwareUpdateResult downloadPackage(String packageUri) {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+
+            @Override
+            public FirmwareUpdateResult executeUpdateFirmware() {
+                return FirmwareUpdateResult.SUCCESS;
+            }
+        };
+        firmware.setTelemetry(buffer, "/5/0/");
+        try {
+            firmware.record(FirmwareUpdateEnum.STATE, 3L);
+            fail("State is computed on read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(FirmwareUpdateState.IDLE.getStateAsLong(),
+                ((LwM2mResource) firmware.read(FirmwareUpdateEnum.STATE.getResourceId()).getContent()).getValue());
+        buffer.flush();
+        assertEquals(null, sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
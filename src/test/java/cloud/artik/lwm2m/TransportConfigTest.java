@@ -0,0 +1,94 @@
+package cloud.artik.lwm2m;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.config.NetworkConfig.Keys;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.UDPConnector;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.californium.LeshanClientBuilder;
+import org.junit.Test;
+
+public class TransportConfigTest {
+
+    @Test
+    public void testDefaults() {
+        TransportConfig config = new TransportConfig();
+        NetworkConfig defaults = NetworkConfig.createStandardWithoutFile();
+        assertEquals(defaults.getInt(Keys.ACK_TIMEOUT), config.getAckTimeout());
+        assertEquals(defaults.getLong(Keys.EXCHANGE_LIFETIME), config.getExchangeLifetime());
+        assertEquals(defaults.getInt(Keys.MAX_MESSAGE_SIZE), config.getMaxMessageSize());
+    }
+
+    @Test
+    public void testPresets() {
+        TransportConfig embedded = TransportConfig.embeddedDevice();
+        TransportConfig gateway = TransportConfig.gateway();
+        TransportConfig fleet = TransportConfig.fleetSimulator();
+
+        assertEquals(1, embedded.getProtocolThreads());
+        assertEquals(1, fleet.getProtocolThreads());
+        assertEquals(Runtime.getRuntime().availableProcessors(), gateway.getProtocolThreads());
+        assertTrue(embedded.getAckTimeout() > gateway.getAckTimeout());
+        assertTrue(fleet.getExchangeLifetime() < gateway.getExchangeLifetime());
+        assertTrue(embedded.getPreferredBlockSize() < gateway.getPreferredBlockSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBlockSize() {
+        new TransportConfig().setPreferredBlockSize(100);
+    }
+
+    @Test
+    public void testBuildAppliesToUdpEndpoints() throws Exception {
+        TransportConfig config = TransportConfig.gateway();
+        config.setAckTimeout(4000);
+        config.setReceiverThreads(3);
+        NetworkConfig standard = NetworkConfig.getStandard();
+
+        LeshanClient client = config.build(new LeshanClientBuilder("transport-test"));
+        try {
+            assertEquals(2, client.getCoapServer().getEndpoints().size());
+            for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+                assertEquals(4000, endpoint.getConfig().getInt(Keys.ACK_TIMEOUT));
+                assertEquals(1024, endpoint.getConfig().getInt(Keys.PREFERRED_BLOCK_SIZE));
+            }
+
+            // the network threads and socket buffers reach the connector of plain CoAP only
+            UDPConnector udp = null;
+            DTLSConnector dtls = null;
+            for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+                Connector connector = connector(endpoint);
+                if (connector instanceof UDPConnector) {
+                    udp = (UDPConnector) connector;
+                } else if (connector instanceof DTLSConnector) {
+                    dtls = (DTLSConnector) connector;
+                }
+            }
+            assertNotNull(dtls);
+            assertEquals(3, udp.getReceiverThreadCount());
+            assertEquals(2, udp.getSenderThreadCount());
+            assertEquals(1024 * 1024, udp.getReceiveBufferSize());
+            assertEquals(1024 * 1024, udp.getSendBufferSize());
+        } finally {
+            client.destroy(false);
+        }
+        // only the endpoints of this client
+        assertSame(standard, NetworkConfig.getStandard());
+    }
+
+    private static Connector connector(Endpoint endpoint) throws Exception {
+        Field field = CoapEndpoint.class.getDeclaredField("connector");
+        field.setAccessible(true);
+        return (Connector) field.get(endpoint);
+    }
+}
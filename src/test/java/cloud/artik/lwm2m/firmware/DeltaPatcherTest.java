@@ -0,0 +1,117 @@
+package cloud.artik.lwm2m.firmware;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.eclipse.leshan.util.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+
+public class DeltaPatcherTest {
+
+    private File current = null;
+    private File delta = null;
+    private File target = null;
+    private byte[] currentImage = null;
+    private byte[] newImage = null;
+
+    @Before
+    public void setUp() throws IOException {
+        currentImage = new byte[200000];
+        new Random(1).nextBytes(currentImage);
+
+        // New image: current image with 100 bytes changed in the middle
+        byte[] patch = new byte[100];
+        new Random(2).nextBytes(patch);
+        newImage = currentImage.clone();
+        System.arraycopy(patch, 0, newImage, 100000, patch.length);
+
+        current = File.createTempFile("current", ".bin");
+        delta = File.createTempFile("delta", ".bin");
+        target = File.createTempFile("patched", ".bin");
+
+        FileOutputStream out = new FileOutputStream(current);
+        out.write(currentImage);
+        out.close();
+
+        DataOutputStream dout = new DataOutputStream(new FileOutputStream(delta));
+        dout.write(DeltaPatcher.MAGIC);
+        dout.writeByte(DeltaPatcher.VERSION);
+        dout.writeLong(currentImage.length);
+        dout.writeLong(newImage.length);
+        dout.writeByte(DeltaPatcher.COPY);
+        dout.writeLong(0);
+        dout.writeInt(100000);
+        dout.writeByte(DeltaPatcher.ADD);
+        dout.writeInt(patch.length);
+        dout.write(patch);
+        dout.writeByte(DeltaPatcher.COPY);
+        dout.writeLong(100100);
+        dout.writeInt(currentImage.length - 100100);
+        dout.writeByte(DeltaPatcher.END);
+        dout.close();
+    }
+
+    @After
+    public void tearDown() {
+        current.delete();
+        delta.delete();
+        target.delete();
+    }
+
+    @Test
+    public void testApplyDelta() throws Exception {
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(newImage));
+        PackageDownloader downloader = new PackageDownloader();
+        downloader.setBufferSize(4096);
+
+        assertEquals(FirmwareUpdateResult.SUCCESS,
+                downloader.download(delta.toURI().toString() + "#sha256=" + sha256, target, current));
+
+        byte[] patched = new byte[(int) target.length()];
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        file.readFully(patched);
+        file.close();
+        assertArrayEquals(newImage, patched);
+    }
+
+    @Test
+    public void testDeltaVerificationFailure() throws Exception {
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(currentImage));
+        PackageDownloader downloader = new PackageDownloader();
+
+        assertEquals(FirmwareUpdateResult.CRC_CHECK_FAILURE,
+                downloader.download(delta.toURI().toString() + "#sha256=" + sha256, target, current));
+    }
+
+    @Test
+    public void testDeltaWithoutCurrentFirmware() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+
+        assertEquals(FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE,
+                downloader.download(delta.toURI().toString(), target));
+
+        // the same when the package would be downloaded in segments
+        downloader = new PackageDownloader() {
+            @Override
+            protected long getRangeLength(String location) {
+                return delta.length();
+            }
+        };
+        downloader.setConnections(4);
+        downloader.setMinSegmentSize(16);
+        assertEquals(FirmwareUpdateResult.UNSUPPORTED_PACKAGE_TYPE,
+                downloader.download(delta.toURI().toString(), target));
+    }
+}
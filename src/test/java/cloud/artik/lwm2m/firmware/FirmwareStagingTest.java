@@ -0,0 +1,158 @@
+package cloud.artik.lwm2m.firmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.enums.FirmwareUpdateState;
+import cloud.artik.lwm2m.enums.FsyncPolicy;
+
+public class FirmwareStagingTest {
+
+    private static final String URI = "http://host/fw.bin";
+
+    private File directory = null;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("staging", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private File download(FirmwareStaging staging, int size) throws IOException {
+        File file = staging.getDownloadFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testStageAndResume() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory, FsyncPolicy.ALL);
+        File download = download(staging, 1000);
+
+        assertEquals(FirmwareUpdateResult.SUCCESS, staging.stage(download, URI, false));
+        assertFalse(download.exists());
+        assertEquals(1000, staging.getStagedSlot().length());
+
+        // power loss: a new instance resumes Downloaded without downloading again
+        FirmwareStaging.Recovery recovery = new FirmwareStaging(directory).recover();
+        assertEquals(FirmwareUpdateState.DOWNLOADED, recovery.getState());
+        assertEquals(FirmwareUpdateResult.DEFAULT, recovery.getResult());
+        assertEquals(URI, recovery.getPackageUri());
+    }
+
+    @Test
+    public void testStageFromBuffer() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory, FsyncPolicy.ALL);
+        byte[] image = new byte[1000];
+        image[999] = 42;
+        ByteBuffer buffer = ByteBuffer.wrap(image).asReadOnlyBuffer();
+
+        assertEquals(FirmwareUpdateResult.SUCCESS, staging.stage(buffer, URI));
+        assertEquals(0, buffer.position());
+        File staged = staging.getStagedSlot();
+        assertEquals(1000, staged.length());
+        RandomAccessFile file = new RandomAccessFile(staged, "r");
+        file.seek(999);
+        assertEquals(42, file.read());
+        file.close();
+        assertEquals(FirmwareUpdateState.DOWNLOADED, new FirmwareStaging(directory).recover().getState());
+    }
+
+    @Test
+    public void testCommitSwapsSlots() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory, FsyncPolicy.DATA);
+        assertEquals(FirmwareStaging.SLOT_A, staging.getActiveSlotName());
+        staging.stage(download(staging, 1000), URI, false);
+        File staged = staging.getStagedSlot();
+
+        staging.markUpdating();
+        staging.commit();
+
+        assertEquals(FirmwareStaging.SLOT_B, staging.getActiveSlotName());
+        assertEquals(staged, staging.getActiveSlot());
+        assertNull(staging.getStagedPackageUri());
+        assertEquals(FirmwareUpdateState.IDLE, staging.recover().getState());
+    }
+
+    @Test
+    public void testInterruptedUpdate() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory);
+        staging.stage(download(staging, 1000), URI, false);
+        staging.markUpdating();
+
+        FirmwareStaging.Recovery recovery = new FirmwareStaging(directory).recover();
+        assertEquals(FirmwareUpdateState.DOWNLOADED, recovery.getState());
+        assertEquals(FirmwareUpdateResult.FAILED, recovery.getResult());
+    }
+
+    @Test
+    public void testPowerLossAfterSwap() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory);
+        staging.stage(download(staging, 1000), URI, false);
+        staging.markUpdating();
+        // the active marker was renamed into place, the staging marker was not removed yet
+        FileOutputStream out = new FileOutputStream(new File(directory, "active"));
+        out.write(FirmwareStaging.SLOT_B.getBytes("UTF-8"));
+        out.close();
+
+        FirmwareStaging.Recovery recovery = new FirmwareStaging(directory).recover();
+        assertEquals(FirmwareUpdateState.IDLE, recovery.getState());
+        assertEquals(FirmwareUpdateResult.SUCCESS, recovery.getResult());
+        assertNull(staging.getStagedPackageUri());
+    }
+
+    @Test
+    public void testIncompleteImageIsDiscarded() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory);
+        staging.stage(download(staging, 1000), URI, false);
+        FileOutputStream out = new FileOutputStream(staging.getStagedSlot());
+        out.write(new byte[10]);
+        out.close();
+
+        assertEquals(FirmwareUpdateState.IDLE, staging.recover().getState());
+        assertNull(staging.getStagedPackageUri());
+    }
+
+    @Test
+    public void testCopyKeepsSource() throws Exception {
+        FirmwareStaging staging = new FirmwareStaging(directory, FsyncPolicy.NONE);
+        File source = File.createTempFile("cached", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(source);
+            out.write(new byte[5000]);
+            out.close();
+
+            assertEquals(FirmwareUpdateResult.SUCCESS, staging.stage(source, URI, true));
+            assertTrue(source.exists());
+            assertEquals(5000, staging.getStagedSlot().length());
+        } finally {
+            source.delete();
+        }
+    }
+}
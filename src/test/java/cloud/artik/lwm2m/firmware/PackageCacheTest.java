@@ -0,0 +1,191 @@
+package cloud.artik.lwm2m.firmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.util.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+
+public class PackageCacheTest {
+
+    private File directory = null;
+    private List<File> packages = new ArrayList<File>();
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("cache", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : packages) {
+            file.delete();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Creates a package, returning its URI with a digest fragment.
+     */
+    private String createPackage(int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = File.createTempFile("package", ".bin");
+        write(file, content);
+        packages.add(file);
+        return file.toURI().toString() + "#sha256="
+                + Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    /**
+     * Counts the downloads and makes them slow enough for concurrent fetches to overlap.
+     */
+    private PackageDownloader newDownloader() {
+        return new PackageDownloader() {
+            @Override
+            protected URLConnection openConnection(String packageUri) throws IOException {
+                downloads.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.openConnection(packageUri);
+            }
+        };
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final String uri = createPackage(50000);
+        final PackageCache cache = new PackageCache(directory, 1000000);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<CachedPackage>> futures = new ArrayList<Future<CachedPackage>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<CachedPackage>() {
+                @Override
+                public CachedPackage call() throws Exception {
+                    start.await();
+                    return cache.fetch(uri, newDownloader(), null);
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<CachedPackage> future : futures) {
+            CachedPackage cached = future.get();
+            assertEquals(FirmwareUpdateResult.SUCCESS, cached.getResult());
+            ByteBuffer buffer = cached.getBuffer();
+            assertEquals(50000, buffer.remaining());
+            assertTrue(buffer.isReadOnly());
+        }
+        executor.shutdown();
+        assertEquals(1, downloads.get());
+
+        // cache hit
+        assertEquals(FirmwareUpdateResult.SUCCESS, cache.fetch(uri, newDownloader(), null).getResult());
+        assertEquals(1, downloads.get());
+
+        // packages are found again after a restart
+        PackageCache reopened = new PackageCache(directory, 1000000);
+        assertEquals(1, reopened.getCount());
+        assertEquals(FirmwareUpdateResult.SUCCESS, reopened.fetch(uri, newDownloader(), null).getResult());
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        String first = createPackage(40000);
+        String second = createPackage(40000);
+        String third = createPackage(40000);
+        PackageCache cache = new PackageCache(directory, 100000);
+
+        cache.fetch(first, newDownloader(), null);
+        CachedPackage view = cache.fetch(second, newDownloader(), null);
+        // touch the first package, the second becomes least recently used
+        cache.fetch(first, newDownloader(), null);
+        cache.fetch(third, newDownloader(), null);
+        assertEquals(3, downloads.get());
+        assertEquals(2, cache.getCount());
+        assertEquals(80000, cache.getSize());
+        assertFalse(view.getFile().exists());
+        // the mapped view outlives the eviction
+        assertEquals(40000, view.getBuffer().remaining());
+
+        cache.fetch(first, newDownloader(), null);
+        assertEquals(3, downloads.get());
+        cache.fetch(second, newDownloader(), null);
+        assertEquals(4, downloads.get());
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws Exception {
+        PackageCache cache = new PackageCache(directory, 100000);
+        String uri = new File(directory, "missing.bin").toURI().toString();
+
+        CachedPackage cached = cache.fetch(uri, newDownloader(), null);
+        assertEquals(FirmwareUpdateResult.INVALID_URI, cached.getResult());
+        assertNull(cached.getBuffer());
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testPackageWithoutDigestIsNotKept() throws Exception {
+        File file = File.createTempFile("latest", ".bin");
+        packages.add(file);
+        write(file, new byte[] { 1, 2, 3 });
+        String uri = file.toURI().toString();
+        PackageCache cache = new PackageCache(directory, 100000);
+
+        CachedPackage cached = cache.fetch(uri, newDownloader(), null);
+        assertEquals(FirmwareUpdateResult.SUCCESS, cached.getResult());
+        assertEquals(3, cached.getBuffer().remaining());
+        assertEquals(0, cache.getCount());
+        assertEquals(0, directory.listFiles().length);
+
+        // a new image published at the same location
+        write(file, new byte[] { 4, 5, 6, 7 });
+        cached = cache.fetch(uri, newDownloader(), null);
+        assertEquals(4, cached.getBuffer().remaining());
+        assertEquals(4, cached.getBuffer().get(0));
+        assertEquals(2, downloads.get());
+        assertEquals(0, new PackageCache(directory, 100000).getCount());
+    }
+}
@@ -0,0 +1,215 @@
+package cloud.artik.lwm2m.firmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.util.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import cloud.artik.lwm2m.enums.DigestAlgorithm;
+import cloud.artik.lwm2m.enums.FirmwareUpdateResult;
+import cloud.artik.lwm2m.exception.ConnectionLostException;
+
+public class PackageDownloaderTest {
+
+    private File source = null;
+    private File target = null;
+    private byte[] content = null;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[100000];
+        new Random(42).nextBytes(content);
+        source = File.createTempFile("package", ".bin");
+        target = File.createTempFile("download", ".bin");
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(content);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    private String sha256() throws Exception {
+        return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    @Test
+    public void testDigestFromUri() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+        String uri = source.toURI().toString() + "#sha256=" + sha256();
+
+        assertEquals(FirmwareUpdateResult.SUCCESS, downloader.download(uri, target));
+        assertEquals(content.length, target.length());
+    }
+
+    @Test
+    public void testDigestMismatch() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+        String uri = source.toURI().toString() + "#crc32=00000000";
+
+        assertEquals(FirmwareUpdateResult.CRC_CHECK_FAILURE, downloader.download(uri, target));
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void testExpectedDigest() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+        downloader.setExpectedDigest(DigestAlgorithm.SHA256, Hex.decodeHex(sha256().toCharArray()));
+
+        assertEquals(FirmwareUpdateResult.SUCCESS, downloader.download(source.toURI().toString(), target));
+    }
+
+    @Test
+    public void testVerifierCrc32() {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String hex = String.format("%08x", crc.getValue());
+
+        PackageVerifier verifier = PackageVerifier.fromUri("http://host/fw.bin#crc32=" + hex);
+        verifier.update(content, 0, 1000);
+        verifier.update(content, 1000, content.length - 1000);
+        assertTrue(verifier.verify());
+    }
+
+    @Test
+    public void testMissingPackage() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+        String uri = new File(source.getParentFile(), "missing-package.bin").toURI().toString();
+
+        assertEquals(FirmwareUpdateResult.INVALID_URI, downloader.download(uri, target));
+    }
+
+    @Test
+    public void testConnectionLostLeavesNoPartialImage() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fw.bin", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // the connection drops after the first bytes
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content, 0, 1000);
+                out.flush();
+                exchange.close();
+            }
+        });
+        server.start();
+        PackageDownloader downloader = new PackageDownloader();
+        try {
+            downloader.download("http://127.0.0.1:" + server.getAddress().getPort() + "/fw.bin", target);
+            fail("Connection not lost");
+        } catch (ConnectionLostException e) {
+            assertFalse(target.exists());
+        } finally {
+            server.stop(0);
+        }
+
+        // a download interrupted, e.g. reset by the server
+        Thread.currentThread().interrupt();
+        try {
+            downloader.download(source.toURI().toString(), target);
+            fail("Download not interrupted");
+        } catch (ConnectionLostException e) {
+            assertFalse(target.exists());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        final AtomicInteger rangeRequests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fw.bin", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int start = Integer.parseInt(bounds[0]);
+                    int end = Integer.parseInt(bounds[1]);
+                    OutputStream out;
+                    if (rangeRequests.incrementAndGet() == 1) {
+                        // First request is cut in the middle, its segment must be resumed
+                        exchange.sendResponseHeaders(206, end - start + 1);
+                        out = exchange.getResponseBody();
+                        out.write(content, start, (end - start + 1) / 2);
+                    } else {
+                        exchange.sendResponseHeaders(206, end - start + 1);
+                        out = exchange.getResponseBody();
+                        out.write(content, start, end - start + 1);
+                    }
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final AtomicLong progress = new AtomicLong();
+            final AtomicInteger backwards = new AtomicInteger();
+            PackageDownloader downloader = new PackageDownloader();
+            downloader.setConnections(4);
+            downloader.setMinSegmentSize(10000);
+            downloader.setBufferSize(1024);
+            downloader.setDownloadListener(new DownloadListener() {
+                @Override
+                public void onProgress(long bytesReceived, long totalBytes) {
+                    if (progress.getAndSet(bytesReceived) > bytesReceived) {
+                        backwards.incrementAndGet();
+                    }
+                }
+            });
+            String uri = "http://127.0.0.1:" + server.getAddress().getPort() + "/fw.bin#sha256=" + sha256();
+
+            assertEquals(FirmwareUpdateResult.SUCCESS, downloader.download(uri, target));
+            assertEquals(content.length, target.length());
+            assertEquals(content.length, progress.get());
+            assertEquals(0, backwards.get());
+            assertTrue(rangeRequests.get() > 4);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testBandwidthCap() throws Exception {
+        PackageDownloader downloader = new PackageDownloader();
+        downloader.setBufferSize(4096);
+        // 100000 bytes at 50000 B/s: the first second is a burst, the rest takes about one more second
+        downloader.setMaxBytesPerSecond(50000);
+
+        long start = System.nanoTime();
+        assertEquals(FirmwareUpdateResult.SUCCESS, downloader.download(source.toURI().toString(), target));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertEquals(content.length, target.length());
+        assertTrue("Download took " + elapsed + " ms", elapsed >= 900);
+    }
+}
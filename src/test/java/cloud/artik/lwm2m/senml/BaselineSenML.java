@@ -0,0 +1,255 @@
+package cloud.artik.lwm2m.senml;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import org.eclipse.leshan.util.Base64;
+
+/**
+ * The SenML encoders as they were before EncodeBuffer, building the JSON in a StringBuilder and the CBOR in a
+ * ByteArrayOutputStream: the baseline of the allocation measurements.
+ */
+class BaselineSenML {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BaselineSenML() {
+    }
+
+    static byte[] encodeJson(SenMLPack pack) {
+        StringBuilder json = new StringBuilder(32 + pack.size() * 24);
+        json.append('[');
+        boolean first = true;
+        Long baseTime = null;
+        for (SenMLRecord record : pack.getRecords()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('{');
+            if (record.getBaseName() != null) {
+                json.append("\"bn\":");
+                appendString(json, record.getBaseName());
+                json.append(',');
+            }
+            if (record.getTime() != null) {
+                if (baseTime == null) {
+                    baseTime = record.getTime();
+                    json.append("\"bt\":");
+                    appendSeconds(json, baseTime);
+                    json.append(',');
+                } else if (record.getTime().longValue() != baseTime.longValue()) {
+                    json.append("\"t\":");
+                    appendSeconds(json, record.getTime() - baseTime);
+                    json.append(',');
+                }
+            }
+            json.append("\"n\":");
+            appendString(json, record.getName());
+            appendValue(json, record);
+            json.append('}');
+        }
+        json.append(']');
+        return json.toString().getBytes(UTF_8);
+    }
+
+    private static void appendValue(StringBuilder json, SenMLRecord record) {
+        Object value = record.getValue();
+        switch (record.getType()) {
+        case STRING:
+            json.append(",\"vs\":");
+            appendString(json, String.valueOf(value));
+            break;
+        case BOOLEAN:
+            json.append(",\"vb\":").append(value);
+            break;
+        case OPAQUE:
+            json.append(",\"vd\":");
+            appendString(json, Base64.encodeBase64URLSafeString((byte[]) value));
+            break;
+        case TIME:
+            json.append(",\"v\":").append(((Date) value).getTime() / 1000);
+            break;
+        case FLOAT:
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                json.append(",\"v\":null");
+            } else {
+                json.append(",\"v\":").append(number);
+            }
+            break;
+        case INTEGER:
+        default:
+            json.append(",\"v\":").append(((Number) value).longValue());
+            break;
+        }
+    }
+
+    private static void appendSeconds(StringBuilder json, long millis) {
+        if (millis % 1000 == 0) {
+            json.append(millis / 1000);
+        } else {
+            json.append(millis / 1000.0);
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    static byte[] encodeCbor(SenMLPack pack) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + pack.size() * 12);
+        writeHead(out, 4, pack.size());
+        Long baseTime = null;
+        for (SenMLRecord record : pack.getRecords()) {
+            boolean timed = false;
+            if (record.getTime() != null) {
+                timed = baseTime == null || record.getTime().longValue() != baseTime.longValue();
+            }
+            writeHead(out, 5, 2 + (record.getBaseName() != null ? 1 : 0) + (timed ? 1 : 0));
+            if (record.getBaseName() != null) {
+                writeInt(out, -2);
+                writeText(out, record.getBaseName());
+            }
+            if (timed) {
+                if (baseTime == null) {
+                    baseTime = record.getTime();
+                    writeInt(out, -3);
+                    writeSeconds(out, baseTime);
+                } else {
+                    writeInt(out, 6);
+                    writeSeconds(out, record.getTime() - baseTime);
+                }
+            }
+            writeInt(out, 0);
+            writeText(out, record.getName());
+            writeValue(out, record);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, SenMLRecord record) {
+        Object value = record.getValue();
+        switch (record.getType()) {
+        case STRING:
+            writeInt(out, 3);
+            writeText(out, String.valueOf(value));
+            break;
+        case BOOLEAN:
+            writeInt(out, 4);
+            out.write(((Boolean) value) ? 0xf5 : 0xf4);
+            break;
+        case OPAQUE:
+            byte[] data = (byte[]) value;
+            writeInt(out, 8);
+            writeHead(out, 2, data.length);
+            out.write(data, 0, data.length);
+            break;
+        case TIME:
+            writeInt(out, 2);
+            writeInt(out, ((Date) value).getTime() / 1000);
+            break;
+        case FLOAT:
+            writeInt(out, 2);
+            writeFloat(out, ((Number) value).doubleValue());
+            break;
+        case INTEGER:
+        default:
+            writeInt(out, 2);
+            writeInt(out, ((Number) value).longValue());
+            break;
+        }
+    }
+
+    private static void writeSeconds(ByteArrayOutputStream out, long millis) {
+        if (millis % 1000 == 0) {
+            writeInt(out, millis / 1000);
+        } else {
+            writeFloat(out, millis / 1000.0);
+        }
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeHead(out, 3, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        if (value < 0) {
+            writeHead(out, 1, -1 - value);
+        } else {
+            writeHead(out, 0, value);
+        }
+    }
+
+    private static void writeHead(ByteArrayOutputStream out, int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument < 0x10000) {
+            out.write(type | 25);
+            writeBytes(out, argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            writeBytes(out, argument, 4);
+        } else {
+            out.write(type | 27);
+            writeBytes(out, argument, 8);
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, long value, int length) {
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeFloat(ByteArrayOutputStream out, double value) {
+        float single = (float) value;
+        if (single == value || Double.isNaN(value)) {
+            int half = SenMLCbor.toHalf(single);
+            if (half >= 0) {
+                out.write(0xf9);
+                writeBytes(out, half, 2);
+            } else {
+                out.write(0xfa);
+                writeBytes(out, Float.floatToIntBits(single), 4);
+            }
+        } else {
+            out.write(0xfb);
+            writeBytes(out, Double.doubleToLongBits(value), 8);
+        }
+    }
+}
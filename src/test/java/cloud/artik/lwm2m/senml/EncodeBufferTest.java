@@ -0,0 +1,121 @@
+package cloud.artik.lwm2m.senml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.junit.Test;
+
+public class EncodeBufferTest {
+
+    private static final int ENCODINGS = 20000;
+
+    private enum Encoder {
+        BASELINE_JSON, BASELINE_CBOR, UNPOOLED_JSON, UNPOOLED_CBOR, JSON, CBOR
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        String value = "aé中😀\ud800z";
+        EncodeBuffer buffer = EncodeBuffer.acquire();
+        buffer.writeUtf8(value);
+        assertEquals(EncodeBuffer.utf8Length(value), buffer.size());
+        assertArrayEquals(value.getBytes("UTF-8"), buffer.release());
+
+        buffer = EncodeBuffer.acquire();
+        buffer.writeDecimal(-9876543210L).write(' ').writeDecimal(0).write(' ').writeDecimal(Long.MIN_VALUE);
+        assertEquals("-9876543210 0 " + Long.MIN_VALUE, new String(buffer.release(), "UTF-8"));
+    }
+
+    @Test
+    public void testLargePayloadIsNotRetained() {
+        EncodeBuffer buffer = EncodeBuffer.acquire();
+        buffer.write(new byte[EncodeBuffer.MAX_RETAINED * 4], 0, EncodeBuffer.MAX_RETAINED * 4);
+        buffer.release();
+        for (int i = 0; i < 20; i++) {
+            buffer = EncodeBuffer.acquire();
+            buffer.write(new byte[100], 0, 100);
+            buffer.release();
+        }
+        assertTrue(buffer.capacity() <= EncodeBuffer.MAX_RETAINED);
+        assertTrue(buffer.capacity() >= 100);
+    }
+
+    /**
+     * Allocation benchmark: bytes allocated per encoding of a typical notification, by the original
+     * StringBuilder and ByteArrayOutputStream encoders, and by the new ones with and without the thread-local
+     * buffers.
+     */
+    @Test
+    public void testAllocationsPerEncoding() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3/0/", LwM2mSingleResource.newIntegerResource(9, 95));
+        pack.add("/3/0/", LwM2mSingleResource.newIntegerResource(10, 256000));
+        pack.add("/3/0/", LwM2mSingleResource.newDateResource(13, new Date()));
+        pack.add("/3/0/", LwM2mSingleResource.newStringResource(15, "Asia/Seoul"));
+        pack.add("/6/0/", LwM2mSingleResource.newStringResource(0, "-43.5723"));
+        pack.add("/6/0/", LwM2mSingleResource.newStringResource(1, "153.21760"));
+
+        byte[] json = SenMLJson.encode(pack);
+        byte[] cbor = SenMLCbor.encode(pack);
+        assertArrayEquals(BaselineSenML.encodeJson(pack), json);
+        assertArrayEquals(BaselineSenML.encodeCbor(pack), cbor);
+
+        long jsonBaseline = allocatedPerEncoding(threads, pack, Encoder.BASELINE_JSON);
+        long cborBaseline = allocatedPerEncoding(threads, pack, Encoder.BASELINE_CBOR);
+        long jsonUnpooled = allocatedPerEncoding(threads, pack, Encoder.UNPOOLED_JSON);
+        long cborUnpooled = allocatedPerEncoding(threads, pack, Encoder.UNPOOLED_CBOR);
+        long jsonPooled = allocatedPerEncoding(threads, pack, Encoder.JSON);
+        long cborPooled = allocatedPerEncoding(threads, pack, Encoder.CBOR);
+
+        assertTrue(jsonBaseline + " -> " + jsonPooled, jsonPooled < jsonBaseline / 2);
+        assertTrue(cborBaseline + " -> " + cborPooled, cborPooled < cborBaseline);
+        assertTrue(jsonUnpooled + " -> " + jsonPooled, jsonPooled < jsonUnpooled);
+        assertTrue(cborUnpooled + " -> " + cborPooled, cborPooled < cborUnpooled);
+        // the returned array, and a few boxed times and iterators
+        assertTrue(jsonPooled + " for " + json.length, jsonPooled <= json.length + 128);
+        assertTrue(cborPooled + " for " + cbor.length, cborPooled <= cbor.length + 128);
+    }
+
+    private static long allocatedPerEncoding(com.sun.management.ThreadMXBean threads, SenMLPack pack,
+            Encoder encoder) {
+        long id = Thread.currentThread().getId();
+        // warm up
+        for (int i = 0; i < ENCODINGS; i++) {
+            encode(pack, encoder);
+        }
+        long start = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ENCODINGS; i++) {
+            encode(pack, encoder);
+        }
+        return (threads.getThreadAllocatedBytes(id) - start) / ENCODINGS;
+    }
+
+    private static byte[] encode(SenMLPack pack, Encoder encoder) {
+        switch (encoder) {
+        case BASELINE_JSON:
+            return BaselineSenML.encodeJson(pack);
+        case BASELINE_CBOR:
+            return BaselineSenML.encodeCbor(pack);
+        case UNPOOLED_JSON:
+            return SenMLJson.encode(pack, new EncodeBuffer(EncodeBuffer.MIN_CAPACITY));
+        case UNPOOLED_CBOR:
+            return SenMLCbor.encode(pack, new EncodeBuffer(EncodeBuffer.MIN_CAPACITY));
+        case JSON:
+            return SenMLJson.encode(pack);
+        default:
+            return SenMLCbor.encode(pack);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cloud.artik.lwm2m.senml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.leshan.core.model.ResourceModel.Type;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.junit.Test;
+
+public class SenMLCborTest {
+
+    @Test
+    public void testRoundTrip() {
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3/0/", LwM2mSingleResource.newIntegerResource(9, 95));
+        pack.add("/3/0/", LwM2mSingleResource.newIntegerResource(10, -70000));
+        pack.add("/3/0/", LwM2mSingleResource.newBooleanResource(16, true));
+        pack.add("/3/0/", LwM2mSingleResource.newBinaryResource(17, new byte[] { 1, 2, 3 }));
+        pack.add("/6/0/", LwM2mSingleResource.newStringResource(0, "-43.5723"));
+        pack.add("/6/0/", LwM2mSingleResource.newFloatResource(4, 0.5));
+        pack.add("/6/0/", LwM2mSingleResource.newFloatResource(5, 3.14159));
+
+        List<SenMLRecord> records = SenMLCbor.decode(SenMLCbor.encode(pack));
+        assertEquals(7, records.size());
+        assertEquals("/3/0/", records.get(1).getBaseName());
+        assertEquals("10", records.get(1).getName());
+        assertEquals(-70000L, records.get(1).getValue());
+        assertEquals(Boolean.TRUE, records.get(2).getValue());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) records.get(3).getValue());
+        assertEquals("/6/0/", records.get(4).getBaseName());
+        assertEquals("-43.5723", records.get(4).getValue());
+        assertEquals(Type.FLOAT, records.get(5).getType());
+        assertEquals(0.5, records.get(5).getValue());
+        assertEquals(3.14159, records.get(6).getValue());
+        assertNull(records.get(0).getTime());
+    }
+
+    @Test
+    public void testCompactEncoding() throws Exception {
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3/0/", LwM2mSingleResource.newIntegerResource(9, 95));
+        pack.add("/3/0/", LwM2mMultipleResource.newIntegerResource(7, Collections.singletonMap(0, 3800L)));
+        pack.add("/6/0/", LwM2mSingleResource.newFloatResource(4, 1.5));
+        byte[] cbor = SenMLCbor.encode(pack);
+        byte[] json = SenMLJson.encode(pack);
+        assertTrue(cbor.length * 2 < json.length);
+
+        // 1.5 as a half float
+        assertEquals(0x3e00, SenMLCbor.toHalf(1.5f));
+        assertEquals(-1, SenMLCbor.toHalf(3.14159f));
+        assertEquals(65504.0, SenMLCbor.fromHalf(SenMLCbor.toHalf(65504f)), 0);
+        assertEquals(Math.pow(2, -24), SenMLCbor.fromHalf(SenMLCbor.toHalf((float) Math.pow(2, -24))), 0);
+    }
+
+    @Test
+    public void testBaseTime() throws Exception {
+        long now = 1500000000000L;
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3303/0/", "5700", Type.FLOAT, 21.5, now);
+        pack.add("/3303/0/", "5700", Type.FLOAT, 22.0, now + 10000);
+        pack.add("/3303/0/", "5700", Type.FLOAT, 22.5, now + 10500);
+
+        List<SenMLRecord> records = SenMLCbor.decode(SenMLCbor.encode(pack));
+        assertEquals(Long.valueOf(now), records.get(0).getTime());
+        assertEquals(Long.valueOf(now + 10000), records.get(1).getTime());
+        assertEquals(Long.valueOf(now + 10500), records.get(2).getTime());
+
+        assertEquals("[{\"bn\":\"/3303/0/\",\"bt\":1500000000,\"n\":\"5700\",\"v\":21.5},"
+                + "{\"t\":10,\"n\":\"5700\",\"v\":22.0},{\"t\":10.5,\"n\":\"5700\",\"v\":22.5}]",
+                new String(SenMLJson.encode(pack), "UTF-8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        SenMLPack pack = new SenMLPack();
+        pack.add("/3/0/", LwM2mSingleResource.newStringResource(15, "Europe/Paris"));
+        byte[] cbor = SenMLCbor.encode(pack);
+        byte[] truncated = new byte[cbor.length - 3];
+        System.arraycopy(cbor, 0, truncated, 0, truncated.length);
+        SenMLCbor.decode(truncated);
+    }
+}